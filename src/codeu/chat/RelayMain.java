@@ -15,10 +15,18 @@
 package codeu.chat;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import codeu.chat.common.Secret;
+import codeu.chat.relay.DiskHistory;
 import codeu.chat.relay.Server;
 import codeu.chat.relay.ServerFrontEnd;
 import codeu.chat.util.Logger;
@@ -32,6 +40,19 @@ final class RelayMain {
 
   private static final Logger.Log LOG = Logger.newLog(RelayMain.class);
 
+  // The most log messages that may wait to be written.
+  private static final int LOG_QUEUE_SIZE = 8192;
+
+  // How often the disk history is forced to disk and checked for segments
+  // that are too old.
+  private static final long HISTORY_SYNC_MS = 200;
+  private static final long HISTORY_RETAIN_MS = 60000;
+
+  // The most connections handled at once and the most waiting for a worker.
+  // Leaves room above the relay's limit on waiting reads for everything else.
+  private static final int WORKERS = Server.MAX_WAITING * 2;
+  private static final int WORKER_QUEUE = 1024;
+
   public static void main(String[] args) {
 
     Logger.enableConsoleOutput();
@@ -42,28 +63,49 @@ final class RelayMain {
       LOG.error(ex, "Failed to set logger to write to file");
     }
 
+    // Every connection logs a few lines, so write them from a background
+    // thread rather than making each request wait on the console and the
+    // file. The class that logged is enough to find where a line came from.
+    Logger.setCallerInfo(false);
+    Logger.enableAsync(LOG_QUEUE_SIZE);
+
     LOG.info("============================= START OF LOG =============================");
 
+    // Arguments: <port> <team file> [history directory]
     final int myPort = Integer.parseInt(args[0]);
 
     try (final ConnectionSource source = ServerConnectionSource.forPort(myPort)) {
 
       // Limit the number of messages that the server tracks to be 1024 and limit the
-      // max number of messages that the relay will send out to be 16.
-      final Server relay = new Server(1024, 16);
+      // max number of messages that the relay will send out to be 16. If a history
+      // directory was given, every message is kept on disk and the 1024 newest
+      // are kept in memory.
+      final DiskHistory history = args.length > 2 ? openHistory(args[2]) : null;
+      final Server relay = history == null ?
+          new Server(1024, 16) :
+          new Server(1024, 16, history);
 
       LOG.info("Relay object created.");
 
       LOG.info("Starting relay...");
 
-      startRelay(relay, source, args[1]);
+      startRelay(relay, history, source, args[1]);
 
     } catch (IOException ex) {
       LOG.error(ex, "Failed to establish server accept port");
     }
   }
 
+  // Keep up to 1 GB of history on disk, in 64 MB segments, for up to a week.
+  private static DiskHistory openHistory(String directory) throws IOException {
+    return new DiskHistory(new File(directory),
+                           64 * 1024 * 1024,
+                           1024L * 1024 * 1024,
+                           7L * 24 * 60 * 60 * 1000);
+  }
+
   private static void startRelay(final Server relay,
+                                 final DiskHistory history,
                                  final ConnectionSource source,
                                  final String teamFile) {
 
@@ -73,19 +115,54 @@ final class RelayMain {
     final Timeline timeline = new Timeline();
     LOG.info("Relay timeline created.");
 
-    timeline.scheduleNow(new Runnable() {
+    // The relay server is safe to use from many threads so connections are
+    // handled by a pool of workers. The timeline is only used for reloading the
+    // team data and looking after the disk history. As long polls keep a worker waiting until new bundles arrive,
+    // the pool is sized for open connections rather than for the number of
+    // processors, but it is bounded so a flood of connections cannot start
+    // a thread each. Idle workers go away after a minute.
+    final ThreadPoolExecutor workers = new ThreadPoolExecutor(
+        WORKERS,
+        WORKERS,
+        60,
+        TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(WORKER_QUEUE));
+    workers.allowCoreThreadTimeOut(true);
+    LOG.info("Relay worker pool created.");
+
+    // Reload every minute so that new team entries will be added to the
+    // relay. This won't support updating entries.
+    timeline.scheduleWithFixedDelay(Timeline.Lane.MAINTENANCE, 0, 60000, new Runnable() {
       @Override
       public void run() {
         LOG.info("Loading team data...");
         loadTeamInfo(relay, teamFile);
         LOG.info("Done loading team data.");
-
-        // Add this again in 1 minute so that new team entries will be added to
-        // the relay. This won't support updating entries.
-        timeline.scheduleIn(60000, this);
       }
     });
 
+    if (history != null) {
+
+      // Appends are not forced to disk one at a time. Force whatever has been
+      // appended a few times a second so a machine crash loses at most that
+      // much.
+      timeline.scheduleWithFixedDelay(Timeline.Lane.MAINTENANCE, HISTORY_SYNC_MS, HISTORY_SYNC_MS, new Runnable() {
+        @Override
+        public void run() {
+          history.sync();
+        }
+      });
+
+      // Old segments are otherwise only dropped when a new one is started,
+      // which a quiet relay may not do for days.
+      timeline.scheduleWithFixedDelay(Timeline.Lane.MAINTENANCE, HISTORY_RETAIN_MS, HISTORY_RETAIN_MS, new Runnable() {
+        @Override
+        public void run() {
+          history.retain();
+        }
+      });
+    }
+
     LOG.info("Starting relay main loop...");
 
     while (true) {
@@ -95,16 +172,21 @@ final class RelayMain {
         final Connection connection = source.connect();
         LOG.info("Connection established.");
 
-        timeline.scheduleNow(new Runnable() {
-          @Override
-          public void run() {
-            try {
-              frontEnd.handleConnection(connection);
-            } catch (Exception ex) {
-              LOG.error(ex, "Exception handling connection.");
+        try {
+          workers.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                frontEnd.handleConnection(connection);
+              } catch (Exception ex) {
+                LOG.error(ex, "Exception handling connection.");
+              }
             }
-          }
-        });
+          });
+        } catch (RejectedExecutionException ex) {
+          LOG.warning("Too many connections waiting. Closing connection.");
+          connection.close();
+        }
 
       } catch (IOException ex) {
         LOG.error(ex, "Failed to establish connection.");
@@ -114,6 +196,10 @@ final class RelayMain {
 
   private static void loadTeamInfo(Server relay, String file) {
 
+    // Read the whole file before giving it to the relay so that all the new
+    // teams show up at once.
+    final Map<Uuid, Secret> teams = new HashMap<>();
+
     try (final BufferedReader reader = new BufferedReader(new FileReader(file))) {
 
       String line;
@@ -140,7 +226,10 @@ final class RelayMain {
             final Uuid id = Uuid.parse(tokens[0].trim());
             final Secret secret = Secret.parse(tokens[1].trim());
 
-            relay.addTeam(id, secret);
+            // Like the relay, the first entry for a team wins.
+            if (!teams.containsKey(id)) {
+              teams.put(id, secret);
+            }
           } catch (Exception ex) {
             LOG.error(ex, "Skipping line \"%s\". Could not parse", line);
           }
@@ -149,5 +238,7 @@ final class RelayMain {
     } catch (IOException ex) {
       LOG.error(ex, "Failed to load team data");
     }
+
+    LOG.info("Added %d new teams.", relay.addTeams(teams));
   }
 }
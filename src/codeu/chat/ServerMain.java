@@ -18,6 +18,7 @@ package codeu.chat;
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
 import codeu.chat.server.NoOpRelay;
+import codeu.chat.server.PartitionedRelay;
 import codeu.chat.server.RemoteRelay;
 import codeu.chat.server.Server;
 import codeu.chat.util.Logger;
@@ -30,11 +31,16 @@ import codeu.chat.util.connections.ServerConnectionSource;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 final class ServerMain {
 
   private static final Logger.Log LOG = Logger.newLog(ServerMain.class);
 
+  // The most log messages that may wait to be written.
+  private static final int LOG_QUEUE_SIZE = 8192;
+
   public static void main(String[] args) {
 
     Logger.enableConsoleOutput();
@@ -45,6 +51,12 @@ final class ServerMain {
       LOG.error(ex, "Failed to set logger to write to file");
     }
 
+    // Every connection logs a few lines, so write them from a background
+    // thread rather than making each request wait on the console and the
+    // file. The class that logged is enough to find where a line came from.
+    Logger.setCallerInfo(false);
+    Logger.enableAsync(LOG_QUEUE_SIZE);
+
     LOG.info("============================= START OF LOG =============================");
 
     Uuid id = null;
@@ -53,14 +65,20 @@ final class ServerMain {
     // This is the directory where it is safe to store data across runs
     // of the server.
     File persistentPath = null;
-    RemoteAddress relayAddress = null;
+    // A relay address can be a list of addresses separated by commas, one for
+    // each partition of a partitioned relay.
+    final List<RemoteAddress> relayAddresses = new ArrayList<>();
 
     try {
       id = Uuid.parse(args[0]);
       secret = Secret.parse(args[1]);
       port = Integer.parseInt(args[2]);
       persistentPath = new File(args[3]);
-      relayAddress = args.length > 4 ? RemoteAddress.parse(args[4]) : null;
+      if (args.length > 4) {
+        for (final String address : args[4].split(",")) {
+          relayAddresses.add(RemoteAddress.parse(address.trim()));
+        }
+      }
     } catch (Exception ex) {
       LOG.error(ex, "Failed to read command arguments");
       System.exit(1);
@@ -71,13 +89,10 @@ final class ServerMain {
       System.exit(1);
     }
 
-    try (
-            final ConnectionSource serverSource = ServerConnectionSource.forPort(port);
-            final ConnectionSource relaySource = relayAddress == null ? null : new ClientConnectionSource(relayAddress.host, relayAddress.port)
-    ) {
+    try (final ConnectionSource serverSource = ServerConnectionSource.forPort(port)) {
 
       LOG.info("Starting server...");
-      runServer(id, secret, serverSource, relaySource, persistentPath);
+      runServer(id, secret, serverSource, relayAddresses, persistentPath);
 
     } catch (IOException ex) {
 
@@ -89,15 +104,33 @@ final class ServerMain {
   private static void runServer(Uuid id,
                                 Secret secret,
                                 ConnectionSource serverSource,
-                                ConnectionSource relaySource,
+                                List<RemoteAddress> relayAddresses,
                                 File persistentPath) {
 
-    final Relay relay = relaySource == null ?
-            new NoOpRelay() :
-            new RemoteRelay(relaySource);
+    final List<Relay> partitions = new ArrayList<>();
+    for (final RemoteAddress address : relayAddresses) {
+      partitions.add(new RemoteRelay(new ClientConnectionSource(address.host, address.port)));
+    }
+
+    final Relay relay;
+    if (partitions.isEmpty()) {
+      relay = new NoOpRelay();
+    } else if (partitions.size() == 1) {
+      relay = partitions.get(0);
+    } else {
+      LOG.info("Using a relay with %d partitions.", partitions.size());
+      relay = new PartitionedRelay(partitions);
+    }
 
     final Server server = new Server(id, secret, relay, persistentPath);
 
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        server.stop();
+      }
+    });
+
     LOG.info("Created server.");
 
     while (true) {
@@ -20,14 +20,19 @@ import codeu.chat.client.core.MessageContext;
 import codeu.chat.client.core.UserContext;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ServerInfo;
+import codeu.chat.common.ServerStats;
+import codeu.chat.common.SlowRequest;
 import codeu.chat.common.User;
+import codeu.chat.util.Histogram;
 import codeu.chat.util.Tokenizer;
 
 import java.io.Console;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
 public final class Chat {
@@ -123,6 +128,12 @@ public final class Chat {
         System.out.println("    Clear history.");
         System.out.println("  server-info");
         System.out.println("    Returns information about the server.");
+        System.out.println("  server-stats [prefix]");
+        System.out.println("    Show how busy the server is. Times are in microseconds.");
+        System.out.println("  server-footprint [prefix]");
+        System.out.println("    Show an estimate of the heap used by each part of the server's model.");
+        System.out.println("  server-slow");
+        System.out.println("    Show the server's recent slow requests and where their time went.");
         System.out.println("  exit");
         System.out.println("    Exit the program.");
       }
@@ -217,6 +228,79 @@ public final class Chat {
       }
     });
 
+    // SERVER-STATS
+    //
+    // Command to show the server's counters and latency percentiles. Only
+    // stats whose names start with the given prefix are shown.
+    panel.register("server-stats", new Panel.Command() {
+      @Override
+      public void invoke(List<String> args) {
+        final ServerStats stats = context.getStats();
+        if (stats == null) {
+          System.out.println("ERROR: Server did not send valid stats.");
+          return;
+        }
+        final String prefix = args.size() > 0 ? args.get(0) : "";
+        for (final Map.Entry<String, Long> entry : stats.values().entrySet()) {
+          if (entry.getKey().startsWith(prefix)) {
+            System.out.format("  %-40s %d\n", entry.getKey(), entry.getValue());
+          }
+        }
+        for (final Map.Entry<String, Histogram.Summary> entry : stats.histograms().entrySet()) {
+          final Histogram.Summary summary = entry.getValue();
+          if (entry.getKey().startsWith(prefix) && summary.count > 0) {
+            System.out.format("  %-40s count=%d p50=%d p99=%d p999=%d max=%d\n",
+                              entry.getKey(),
+                              summary.count,
+                              summary.p50,
+                              summary.p99,
+                              summary.p999,
+                              summary.max);
+          }
+        }
+      }
+    });
+
+    // SERVER-FOOTPRINT
+    //
+    // Command to show how many entries each store and index in the server's
+    // model holds and roughly how many bytes they take. Only parts whose
+    // names start with the given prefix are shown.
+    panel.register("server-footprint", new Panel.Command() {
+      @Override
+      public void invoke(List<String> args) {
+        final ServerStats footprint = context.getFootprint();
+        if (footprint == null) {
+          System.out.println("ERROR: Server did not send a valid footprint.");
+          return;
+        }
+        final String prefix = "model." + (args.size() > 0 ? args.get(0) : "");
+        for (final Map.Entry<String, Long> entry : footprint.values().entrySet()) {
+          if (entry.getKey().startsWith(prefix)) {
+            System.out.format("  %-40s %d\n", entry.getKey(), entry.getValue());
+          }
+        }
+      }
+    });
+
+    // SERVER-SLOW
+    //
+    // Command to show the requests that recently took the server too long,
+    // oldest first, with the time each phase took in microseconds.
+    panel.register("server-slow", new Panel.Command() {
+      @Override
+      public void invoke(List<String> args) {
+        final Collection<SlowRequest> requests = context.getSlowRequests();
+        if (requests.isEmpty()) {
+          System.out.println("No slow requests.");
+          return;
+        }
+        for (final SlowRequest request : requests) {
+          System.out.format("  %s %s\n", request.time, request);
+        }
+      }
+    });
+
     // Now that the panel has all its commands registered, return the panel
     // so that it can be used.
     return panel;
@@ -262,6 +346,8 @@ public final class Chat {
 
           System.out.println("  c-list");
           System.out.println("    List all conversations that the current user can interact with.");
+          System.out.println("  c-mine");
+          System.out.println("    List the conversations the current user created, owns, or is a member of.");
           System.out.println("  c-add <title>");
           System.out.println("    Add a new conversation with the given title and join it as the current user.");
           System.out.println("  c-join <title>");
@@ -403,6 +489,24 @@ public final class Chat {
         }
       });
 
+      // C-MINE (list my conversations)
+      //
+      // Add a command that will print the conversations the current user
+      // created, owns, or is a member of when the user enters "c-mine" while on
+      // the user panel.
+      //
+      panel.register("c-mine", new Panel.Command() {
+        @Override
+        public void invoke(List<String> args) {
+          for (final ConversationContext conversation : user.myConversations()) {
+            System.out.format(
+                    "CONVERSATION %s (UUID:%s)\n",
+                    conversation.conversation.title,
+                    conversation.conversation.id);
+          }
+        }
+      });
+
       // C-ADD (add conversation)
       //
       // Add a command that will create and join a new conversation when the user
@@ -22,6 +22,8 @@ import codeu.chat.common.BasicView;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.User;
 import codeu.chat.common.ServerInfo;
+import codeu.chat.common.ServerStats;
+import codeu.chat.common.SlowRequest;
 import codeu.chat.util.Uuid;
 import codeu.chat.util.connections.ConnectionSource;
 
@@ -68,6 +70,18 @@ public final class Context {
     return view.getInfo();
   }
 
+  public ServerStats getStats() {
+    return getView().getStats();
+  }
+
+  public ServerStats getFootprint() {
+    return getView().getFootprint();
+  }
+
+  public Collection<SlowRequest> getSlowRequests() {
+    return getView().getSlowRequests();
+  }
+
   public void deleteUser(User user) {
     controller.deleteUser(user);
   }
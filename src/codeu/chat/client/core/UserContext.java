@@ -54,6 +54,14 @@ public final class UserContext {
     return all;
   }
 
+  public Iterable<ConversationContext> myConversations() {
+    final Collection<ConversationContext> mine = new ArrayList<>();
+    for (final ConversationHeader conversation : view.getMyConversations(user.id)) {
+      mine.add(new ConversationContext(user, conversation, view, controller));
+    }
+    return mine;
+  }
+
   public void addUserInterest(String name, Uuid owner) {
     controller.newUserInterest(name, owner);
   }
@@ -26,6 +26,8 @@ import codeu.chat.common.Message;
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.User;
 import codeu.chat.common.ServerInfo;
+import codeu.chat.common.ServerStats;
+import codeu.chat.common.SlowRequest;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
@@ -66,6 +68,58 @@ final class View implements BasicView {
     return null;
   }
 
+  public ServerStats getStats() {
+    try (final Connection connection = this.source.connect()) {
+      Serializers.INTEGER.write(connection.out(), NetworkCode.STATS_REQUEST);
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.STATS_RESPONSE) {
+        return ServerStats.SERIALIZER.read(connection.in());
+      } else {
+        LOG.error("Unexpected Server Response.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception while connecting. Check log for details.");
+      LOG.error(ex, "Connection error occurred");
+    }
+    return null;
+  }
+
+  public ServerStats getFootprint() {
+    try (final Connection connection = this.source.connect()) {
+      Serializers.INTEGER.write(connection.out(), NetworkCode.FOOTPRINT_REQUEST);
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.FOOTPRINT_RESPONSE) {
+        return ServerStats.SERIALIZER.read(connection.in());
+      } else {
+        LOG.error("Unexpected Server Response.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception while connecting. Check log for details.");
+      LOG.error(ex, "Connection error occurred");
+    }
+    return null;
+  }
+
+  public Collection<SlowRequest> getSlowRequests() {
+
+    final Collection<SlowRequest> requests = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.SLOW_REQUESTS_REQUEST);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.SLOW_REQUESTS_RESPONSE) {
+        requests.addAll(Serializers.collection(SlowRequest.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return requests;
+  }
+
   @Override
   public Collection<User> getUsers() {
 
@@ -112,6 +166,30 @@ final class View implements BasicView {
     return summaries;
   }
 
+  @Override
+  public Collection<ConversationHeader> getMyConversations(Uuid user) {
+
+    final Collection<ConversationHeader> summaries = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MY_CONVERSATIONS_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), user);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MY_CONVERSATIONS_RESPONSE) {
+        summaries.addAll(Serializers.collection(ConversationHeader.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return summaries;
+  }
+
   @Override
   public Collection<ConversationPayload> getConversationPayloads(Collection<Uuid> ids) {
 
@@ -38,6 +38,12 @@ public interface BasicView {
   //   Return a summary of each converation.
   Collection<ConversationHeader> getConversations();
 
+  // GET MY CONVERSATIONS
+  //
+  //   Return a summary of each conversation that the user created, owns, or
+  //   is a member of.
+  Collection<ConversationHeader> getMyConversations(Uuid user);
+
   // GET CONVERSATIONS
   //
   //   Return all conversations whose id is found in the given collection.
@@ -21,7 +21,8 @@ import codeu.chat.util.Uuid;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 
 public final class ConversationHeader {
 
@@ -55,9 +56,10 @@ public final class ConversationHeader {
   public final Time creation;
   public final String title;
 
-  public ArrayList<Uuid> members;
-  public ArrayList<Uuid> owners;
-  public ArrayList<Uuid> creator;
+  // Hashed so that membership checks do not need to scan every member. The
+  // creator is always "owner" so it does not need a collection of its own.
+  public final Set<Uuid> members = new HashSet<>();
+  public final Set<Uuid> owners = new HashSet<>();
 
   public ConversationHeader(Uuid id, Uuid owner, Time creation, String title) {
 
@@ -65,12 +67,6 @@ public final class ConversationHeader {
     this.owner = owner;
     this.creation = creation;
     this.title = title;
-    this.members = new ArrayList<>();
-    this.owners = new ArrayList<>();
-    this.creator = new ArrayList<>();
-
-    creator.add(owner);
-
 
   }
 }
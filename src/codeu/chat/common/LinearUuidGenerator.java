@@ -25,7 +25,7 @@ public final class LinearUuidGenerator implements Uuid.Generator {
   private int current;
 
   public LinearUuidGenerator(Uuid root, int start, int end) {
-    this.commonRoot = root;
+    this.commonRoot = Uuid.intern(root);
     this.start = start;
     this.end = end;
     this.current = start;
@@ -33,7 +33,7 @@ public final class LinearUuidGenerator implements Uuid.Generator {
 
   @Override
   public Uuid make() {
-    return new Uuid(commonRoot, next());
+    return Uuid.intern(commonRoot, next());
   }
 
   private int next() {
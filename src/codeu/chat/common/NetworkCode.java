@@ -83,5 +83,22 @@ public final class NetworkCode {
       CHECK_CREATOR_REQUEST = 75,
       CHECK_CREATOR_RESPONSE = 76,
       ADD_OWNER_REQUEST = 77,
-      ADD_OWNER_RESPONSE = 78;
+      ADD_OWNER_RESPONSE = 78,
+      GET_MY_CONVERSATIONS_REQUEST = 79,
+      GET_MY_CONVERSATIONS_RESPONSE = 80,
+      RELAY_POLL_REQUEST = 81,
+      RELAY_POLL_RESPONSE = 82,
+      RELAY_CATCH_UP_REQUEST = 83,
+      RELAY_CATCH_UP_RESPONSE = 84,
+      RELAY_WRITE_BATCH_REQUEST = 85,
+      RELAY_WRITE_BATCH_RESPONSE = 86,
+      RELAY_VERSION_REQUEST = 87,
+      RELAY_VERSION_RESPONSE = 88,
+      RELAY_VERSIONED_REQUEST = 89,
+      STATS_REQUEST = 90,
+      STATS_RESPONSE = 91,
+      FOOTPRINT_REQUEST = 92,
+      FOOTPRINT_RESPONSE = 93,
+      SLOW_REQUESTS_REQUEST = 94,
+      SLOW_REQUESTS_RESPONSE = 95;
 }
@@ -27,12 +27,12 @@ public final class RandomUuidGenerator implements Uuid.Generator {
   private final Random random;
 
   public RandomUuidGenerator(Uuid root, long seed) {
-    this.commonRoot = root;
+    this.commonRoot = Uuid.intern(root);
     this.random = new Random(seed);
   }
 
   @Override
   public Uuid make() {
-    return new Uuid(commonRoot, random.nextInt());
+    return Uuid.intern(commonRoot, random.nextInt());
   }
 }
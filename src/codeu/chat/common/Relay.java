@@ -14,8 +14,16 @@
 
 package codeu.chat.common;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 
@@ -104,6 +112,91 @@ public interface Relay {
 
   }
 
+  // OUTGOING
+  //
+  // A message waiting to be written to the relay along with the user and
+  // conversation it belongs to. This is everything a bundle has except for what
+  // the relay adds itself (the id, the time, and the team).
+  interface Outgoing {
+
+    Bundle.Component user();
+
+    Bundle.Component conversation();
+
+    Bundle.Component message();
+
+  }
+
+  // FILTER
+  //
+  // Which teams' bundles a read should return. Bundles that do not pass the
+  // filter are skipped by the relay and never sent, but the relay remembers
+  // that the reading team has been past them so they are not looked at again.
+  final class Filter {
+
+    // Every bundle.
+    public static final Filter ALL = new Filter(false, null);
+
+    // Every bundle except the ones written by the team that is reading.
+    public static final Filter OTHER_TEAMS = new Filter(true, null);
+
+    public static final Serializer<Filter> SERIALIZER = new Serializer<Filter>() {
+
+      @Override
+      public void write(OutputStream out, Filter value) throws IOException {
+        Serializers.BOOLEAN.write(out, value.excludeOwn);
+        Serializers.nullable(Serializers.collection(Uuid.SERIALIZER)).write(out, value.teams);
+      }
+
+      @Override
+      public Filter read(InputStream in) throws IOException {
+        final boolean excludeOwn = Serializers.BOOLEAN.read(in);
+        final Collection<Uuid> teams = Serializers.nullable(Serializers.collection(Uuid.SERIALIZER)).read(in);
+        return new Filter(excludeOwn, teams);
+      }
+    };
+
+    private final boolean excludeOwn;
+    private final Set<Uuid> teams;
+
+    private Filter(boolean excludeOwn, Collection<Uuid> teams) {
+      this.excludeOwn = excludeOwn;
+      this.teams = teams == null ? null : Collections.unmodifiableSet(new HashSet<>(teams));
+    }
+
+    // ONLY
+    //
+    // Only bundles written by one of "teams".
+    public static Filter only(Collection<Uuid> teams) {
+      return new Filter(false, teams);
+    }
+
+    // ACCEPTS
+    //
+    // Check if a bundle written by "writer" should be given to "reader".
+    public boolean accepts(Uuid reader, Uuid writer) {
+      if (excludeOwn && Uuid.equals(reader, writer)) {
+        return false;
+      }
+      return teams == null || teams.contains(writer);
+    }
+
+    // Check if every bundle passes the filter.
+    public boolean acceptsAll() {
+      return !excludeOwn && teams == null;
+    }
+  }
+
+  // RECEIVER
+  //
+  // Where "catchUp" sends bundles. Bundles are given in batches and in order. The
+  // receiver returns false to stop the catch up early.
+  interface Receiver {
+
+    boolean onBundles(Collection<Bundle> bundles);
+
+  }
+
   // PACK
   //
   // Pack together a uuid, string, and time into a component. This is to make
@@ -123,6 +216,13 @@ public interface Relay {
                 Bundle.Component conversation,
                 Bundle.Component message);
 
+  // WRITE (BATCH)
+  //
+  // Write many messages to the relay at once, in order. This is the same as
+  // calling "write" for each one but only needs one request. As every message is
+  // from the same team, either all of them are accepted or none are.
+  boolean write(Uuid teamId, Secret teamSecret, Collection<? extends Outgoing> outgoing);
+
   // READ
   //
   // Read a series of bundles from the relay. Given a Uuid as the starting point
@@ -133,4 +233,24 @@ public interface Relay {
   // was given Uuids.NULL.
   Collection<Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range);
 
+  // READ (LONG POLL)
+  //
+  // The same as "read" except that if there is nothing after the root, the relay
+  // will wait up to "waitMs" milliseconds for something to arrive before
+  // answering. This lets a server ask again as soon as it gets an answer without
+  // flooding the relay with requests. The relay may limit how long it will wait.
+  // Only bundles that pass "filter" are returned or waited for.
+  Collection<Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs, Filter filter);
+
+  // CATCH UP
+  //
+  // Send every bundle after the root to the receiver, in order and in batches,
+  // until there is nothing left or the receiver asks to stop. This is for a
+  // server that is far behind (for example after a restart) so that it does not
+  // need to page through the history one read at a time. The root is treated the
+  // same way as it is by "read". Only bundles that pass "filter" are sent.
+  // Returns the id of the last bundle given to the receiver or the root if
+  // nothing was given.
+  Uuid catchUp(Uuid teamId, Secret teamSecret, Uuid root, Filter filter, Receiver receiver);
+
 }
@@ -0,0 +1,606 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// RELAY CODEC
+//
+// How bundles and outgoing messages are written when they are sent to or from
+// the relay. Both the relay and the servers that talk to it use this so that
+// the two sides can never disagree about the format.
+//
+// There are two versions of the format:
+//
+//   LEGACY  - Every bundle is written on its own with full ids, full times, and
+//             every component in full. This is what the relay spoke before
+//             versions existed and is still what is kept on disk.
+//
+//   COMPACT - A whole batch is written together. Users, conversations, and
+//             teams that have already been seen in the batch are written as a
+//             reference to the first copy, times are written as the difference
+//             from the time before them, and numbers are written as varints so
+//             that small values only take a byte or two.
+//
+// A server asks the relay which version it speaks before using anything newer
+// than LEGACY so that a new server still works with an old relay and an old
+// server still works with a new relay.
+public final class RelayCodec {
+
+  public static final int LEGACY = 1;
+  public static final int COMPACT = 2;
+
+  // The newest version this code can read and write.
+  public static final int VERSION = COMPACT;
+
+  private static final class Component implements Relay.Bundle.Component {
+
+    private final Uuid id;
+    private final String text;
+    private final Time time;
+
+    public Component(Uuid id, String text, Time time) {
+      this.id = id;
+      this.text = text;
+      this.time = time;
+    }
+
+    @Override
+    public Uuid id() { return id; }
+
+    @Override
+    public String text() { return text; }
+
+    @Override
+    public Time time() { return time; }
+  }
+
+  private static final class Bundle implements Relay.Bundle {
+
+    private final Uuid id;
+    private final Time time;
+    private final Uuid team;
+    private final Relay.Bundle.Component user;
+    private final Relay.Bundle.Component conversation;
+    private final Relay.Bundle.Component message;
+
+    public Bundle(Uuid id,
+                  Time time,
+                  Uuid team,
+                  Relay.Bundle.Component user,
+                  Relay.Bundle.Component conversation,
+                  Relay.Bundle.Component message) {
+      this.id = id;
+      this.time = time;
+      this.team = team;
+      this.user = user;
+      this.conversation = conversation;
+      this.message = message;
+    }
+
+    @Override
+    public Uuid id() { return id; }
+
+    @Override
+    public Time time() { return time; }
+
+    @Override
+    public Uuid team() { return team; }
+
+    @Override
+    public Relay.Bundle.Component user() { return user; }
+
+    @Override
+    public Relay.Bundle.Component conversation() { return conversation; }
+
+    @Override
+    public Relay.Bundle.Component message() { return message; }
+  }
+
+  private static final class Outgoing implements Relay.Outgoing {
+
+    private final Relay.Bundle.Component user;
+    private final Relay.Bundle.Component conversation;
+    private final Relay.Bundle.Component message;
+
+    public Outgoing(Relay.Bundle.Component user,
+                    Relay.Bundle.Component conversation,
+                    Relay.Bundle.Component message) {
+      this.user = user;
+      this.conversation = conversation;
+      this.message = message;
+    }
+
+    @Override
+    public Relay.Bundle.Component user() { return user; }
+
+    @Override
+    public Relay.Bundle.Component conversation() { return conversation; }
+
+    @Override
+    public Relay.Bundle.Component message() { return message; }
+  }
+
+  // LEGACY FORMAT
+
+  public static final Serializer<Relay.Bundle.Component> COMPONENT =
+      new Serializer<Relay.Bundle.Component>() {
+
+    @Override
+    public Relay.Bundle.Component read(InputStream in) throws IOException {
+      final Uuid id = Uuid.SERIALIZER.read(in);
+      final String text = Serializers.STRING.read(in);
+      final Time time = Time.SERIALIZER.read(in);
+      return new Component(id, text, time);
+    }
+
+    @Override
+    public void write(OutputStream out, Relay.Bundle.Component value) throws IOException {
+      Uuid.SERIALIZER.write(out, value.id());
+      Serializers.STRING.write(out, value.text());
+      Time.SERIALIZER.write(out, value.time());
+    }
+  };
+
+  public static final Serializer<Relay.Bundle> BUNDLE = new Serializer<Relay.Bundle>() {
+
+    @Override
+    public Relay.Bundle read(InputStream in) throws IOException {
+      final Uuid id = Uuid.SERIALIZER.read(in);
+      final Time time = Time.SERIALIZER.read(in);
+      final Uuid team = Uuid.SERIALIZER.read(in);
+      final Relay.Bundle.Component user = COMPONENT.read(in);
+      final Relay.Bundle.Component conversation = COMPONENT.read(in);
+      final Relay.Bundle.Component message = COMPONENT.read(in);
+      return new Bundle(id, time, team, user, conversation, message);
+    }
+
+    @Override
+    public void write(OutputStream out, Relay.Bundle value) throws IOException {
+      Uuid.SERIALIZER.write(out, value.id());
+      Time.SERIALIZER.write(out, value.time());
+      Uuid.SERIALIZER.write(out, value.team());
+      COMPONENT.write(out, value.user());
+      COMPONENT.write(out, value.conversation());
+      COMPONENT.write(out, value.message());
+    }
+  };
+
+  public static final Serializer<Relay.Outgoing> OUTGOING = new Serializer<Relay.Outgoing>() {
+
+    @Override
+    public Relay.Outgoing read(InputStream in) throws IOException {
+      final Relay.Bundle.Component user = COMPONENT.read(in);
+      final Relay.Bundle.Component conversation = COMPONENT.read(in);
+      final Relay.Bundle.Component message = COMPONENT.read(in);
+      return new Outgoing(user, conversation, message);
+    }
+
+    @Override
+    public void write(OutputStream out, Relay.Outgoing value) throws IOException {
+      COMPONENT.write(out, value.user());
+      COMPONENT.write(out, value.conversation());
+      COMPONENT.write(out, value.message());
+    }
+  };
+
+  // COMPACT FORMAT
+  //
+  // A batch of bundles is written as:
+  //
+  //   count
+  //   for each bundle:
+  //     id           (see "writeId")
+  //     time         difference from the previous bundle's time
+  //     team         reference (see "Dictionary")
+  //     user         reference, component times are relative to the bundle time
+  //     conversation reference
+  //     message      full component
+  //
+  // Outgoing batches are the same without the id, time, and team, and with
+  // component times relative to the previous message's time.
+
+  private static final Serializer<Collection<Relay.Bundle>> COMPACT_BUNDLES =
+      new Serializer<Collection<Relay.Bundle>>() {
+
+    @Override
+    public void write(OutputStream out, Collection<Relay.Bundle> value) throws IOException {
+
+      final Dictionary teams = new Dictionary();
+      final Dictionary components = new Dictionary();
+
+      Uuid lastId = null;
+      long lastTime = 0;
+
+      writeVarint(out, value.size());
+
+      for (final Relay.Bundle bundle : value) {
+
+        final long time = bundle.time().inMs();
+
+        writeId(out, lastId, bundle.id());
+        writeVarint(out, zigzag(time - lastTime));
+
+        final int team = teams.find(bundle.team());
+        writeVarint(out, team);
+        if (team == 0) {
+          writeUuid(out, bundle.team());
+        }
+
+        writeShared(out, components, bundle.user(), time);
+        writeShared(out, components, bundle.conversation(), time);
+        writeComponent(out, bundle.message(), time);
+
+        lastId = bundle.id();
+        lastTime = time;
+      }
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(InputStream in) throws IOException {
+
+      final List<Uuid> teams = new ArrayList<>();
+      final List<Relay.Bundle.Component> components = new ArrayList<>();
+
+      Uuid lastId = null;
+      long lastTime = 0;
+
+      final int size = readSize(in);
+      final Collection<Relay.Bundle> result = new ArrayList<>(size);
+
+      for (int i = 0; i < size; i++) {
+
+        final Uuid id = readId(in, lastId);
+        final long time = lastTime + unzigzag(readVarint(in));
+
+        final int teamRef = readSize(in);
+        final Uuid team;
+        if (teamRef == 0) {
+          team = readUuid(in);
+          teams.add(team);
+        } else {
+          team = lookup(teams, teamRef);
+        }
+
+        final Relay.Bundle.Component user = readShared(in, components, time);
+        final Relay.Bundle.Component conversation = readShared(in, components, time);
+        final Relay.Bundle.Component message = readComponent(in, time);
+
+        result.add(new Bundle(id, Time.fromMs(time), team, user, conversation, message));
+
+        lastId = id;
+        lastTime = time;
+      }
+
+      return result;
+    }
+  };
+
+  private static final Serializer<Collection<? extends Relay.Outgoing>> COMPACT_OUTGOING =
+      new Serializer<Collection<? extends Relay.Outgoing>>() {
+
+    @Override
+    public void write(OutputStream out, Collection<? extends Relay.Outgoing> value) throws IOException {
+
+      final Dictionary components = new Dictionary();
+
+      long lastTime = 0;
+
+      writeVarint(out, value.size());
+
+      for (final Relay.Outgoing outgoing : value) {
+        writeShared(out, components, outgoing.user(), lastTime);
+        writeShared(out, components, outgoing.conversation(), lastTime);
+        writeComponent(out, outgoing.message(), lastTime);
+        lastTime = outgoing.message().time().inMs();
+      }
+    }
+
+    @Override
+    public Collection<? extends Relay.Outgoing> read(InputStream in) throws IOException {
+
+      final List<Relay.Bundle.Component> components = new ArrayList<>();
+
+      long lastTime = 0;
+
+      final int size = readSize(in);
+      final Collection<Relay.Outgoing> result = new ArrayList<>(size);
+
+      for (int i = 0; i < size; i++) {
+        final Relay.Bundle.Component user = readShared(in, components, lastTime);
+        final Relay.Bundle.Component conversation = readShared(in, components, lastTime);
+        final Relay.Bundle.Component message = readComponent(in, lastTime);
+        result.add(new Outgoing(user, conversation, message));
+        lastTime = message.time().inMs();
+      }
+
+      return result;
+    }
+  };
+
+  private static final Serializer<Collection<Relay.Bundle>> LEGACY_BUNDLES =
+      Serializers.collection(BUNDLE);
+
+  private static final Serializer<Collection<? extends Relay.Outgoing>> LEGACY_OUTGOING =
+      new Serializer<Collection<? extends Relay.Outgoing>>() {
+
+    @Override
+    public void write(OutputStream out, Collection<? extends Relay.Outgoing> value) throws IOException {
+      Serializers.INTEGER.write(out, value.size());
+      for (final Relay.Outgoing outgoing : value) {
+        OUTGOING.write(out, outgoing);
+      }
+    }
+
+    @Override
+    public Collection<? extends Relay.Outgoing> read(InputStream in) throws IOException {
+      return Serializers.collection(OUTGOING).read(in);
+    }
+  };
+
+  private RelayCodec() { }
+
+  // BUNDLES
+  //
+  // Get the serializer for a batch of bundles in the given version.
+  public static Serializer<Collection<Relay.Bundle>> bundles(int version) {
+    return version >= COMPACT ? COMPACT_BUNDLES : LEGACY_BUNDLES;
+  }
+
+  // OUTGOING
+  //
+  // Get the serializer for a batch of outgoing messages in the given version.
+  public static Serializer<Collection<? extends Relay.Outgoing>> outgoing(int version) {
+    return version >= COMPACT ? COMPACT_OUTGOING : LEGACY_OUTGOING;
+  }
+
+  // NEGOTIATE
+  //
+  // Pick the version to use when the other side says it speaks "version".
+  // Versions are only ever added so the newest one both sides know is used.
+  public static int negotiate(int version) {
+    return Math.max(LEGACY, Math.min(VERSION, version));
+  }
+
+  public static Relay.Bundle.Component component(Uuid id, String text, Time time) {
+    return new Component(id, text, time);
+  }
+
+  public static Relay.Outgoing outgoing(Relay.Bundle.Component user,
+                                        Relay.Bundle.Component conversation,
+                                        Relay.Bundle.Component message) {
+    return new Outgoing(user, conversation, message);
+  }
+
+  public static Relay.Bundle bundle(Uuid id,
+                                    Time time,
+                                    Uuid team,
+                                    Relay.Bundle.Component user,
+                                    Relay.Bundle.Component conversation,
+                                    Relay.Bundle.Component message) {
+    return new Bundle(id, time, team, user, conversation, message);
+  }
+
+  // DICTIONARY
+  //
+  // Remembers what has already been written in a batch. A value is written in
+  // full the first time (as reference 0) and as its position in the order it
+  // was first written (starting from 1) every time after that. The reader
+  // builds the same list as it goes so it never needs the dictionary itself.
+  private static final class Dictionary {
+
+    private final Map<Object, Integer> refs = new HashMap<>();
+
+    // Returns the reference for "key" or 0 if it has not been seen, in which
+    // case it is given the next reference.
+    public int find(Object key) {
+      final Integer ref = refs.get(key);
+      if (ref != null) {
+        return ref;
+      }
+      refs.put(key, refs.size() + 1);
+      return 0;
+    }
+  }
+
+  // Two components are only the same if everything matches. A user who changed
+  // their name must be sent again.
+  private static Object key(Relay.Bundle.Component component) {
+    return component.id() + " " + component.time().inMs() + " " + component.text();
+  }
+
+  private static void writeShared(OutputStream out,
+                                  Dictionary dictionary,
+                                  Relay.Bundle.Component component,
+                                  long base) throws IOException {
+    final int ref = dictionary.find(key(component));
+    writeVarint(out, ref);
+    if (ref == 0) {
+      writeComponent(out, component, base);
+    }
+  }
+
+  private static Relay.Bundle.Component readShared(InputStream in,
+                                                   List<Relay.Bundle.Component> seen,
+                                                   long base) throws IOException {
+    final int ref = readSize(in);
+    if (ref != 0) {
+      return lookup(seen, ref);
+    }
+    final Relay.Bundle.Component component = readComponent(in, base);
+    seen.add(component);
+    return component;
+  }
+
+  private static <T> T lookup(List<T> seen, int ref) throws IOException {
+    if (ref > seen.size()) {
+      throw new IOException("Relay batch refers to entry " + ref + " of " + seen.size());
+    }
+    return seen.get(ref - 1);
+  }
+
+  private static void writeComponent(OutputStream out, Relay.Bundle.Component component, long base)
+      throws IOException {
+    writeUuid(out, component.id());
+    writeText(out, component.text());
+    writeVarint(out, zigzag(component.time().inMs() - base));
+  }
+
+  private static Relay.Bundle.Component readComponent(InputStream in, long base) throws IOException {
+    final Uuid id = readUuid(in);
+    final String text = readText(in);
+    final long time = base + unzigzag(readVarint(in));
+    return new Component(id, text, Time.fromMs(time));
+  }
+
+  // Bundle ids from one relay share a root and count up so most ids are written
+  // as the difference from the one before. Zero means the full id follows.
+  private static void writeId(OutputStream out, Uuid last, Uuid id) throws IOException {
+    if (last != null && id.root() == null && last.root() == null) {
+      writeVarint(out, zigzag((long) id.id() - last.id()) + 1);
+    } else {
+      writeVarint(out, 0);
+      writeUuid(out, id);
+    }
+  }
+
+  private static Uuid readId(InputStream in, Uuid last) throws IOException {
+    final long delta = readVarint(in);
+    if (delta == 0) {
+      return readUuid(in);
+    }
+    if (last == null) {
+      throw new IOException("Relay batch starts with a relative id");
+    }
+    return Uuid.intern(null, (int) (last.id() + unzigzag(delta - 1)));
+  }
+
+  // Same as Uuid.SERIALIZER (length then each link from the leaf up) but with
+  // varints so that small ids take less than four bytes.
+  private static void writeUuid(OutputStream out, Uuid value) throws IOException {
+
+    int length = 0;
+    for (Uuid current = value; current != null; current = current.root()) {
+      length += 1;
+    }
+
+    writeVarint(out, length);
+
+    for (Uuid current = value; current != null; current = current.root()) {
+      writeVarint(out, current.id() & 0xFFFFFFFFL);
+    }
+  }
+
+  private static Uuid readUuid(InputStream in) throws IOException {
+
+    final int length = readSize(in);
+    if (length > 255) {
+      throw new IOException("Max supported Uuid chain length is 255");
+    }
+
+    final int[] chain = new int[length];
+    for (int i = 0; i < length; i++) {
+      chain[i] = (int) readVarint(in);
+    }
+
+    Uuid head = null;
+    for (int i = length - 1; i >= 0; i--) {
+      head = Uuid.intern(head, chain[i]);
+    }
+
+    return head;
+  }
+
+  private static void writeText(OutputStream out, String text) throws IOException {
+    final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readText(InputStream in) throws IOException {
+
+    final byte[] bytes = new byte[readSize(in)];
+
+    int read = 0;
+    while (read < bytes.length) {
+      final int count = in.read(bytes, read, bytes.length - read);
+      if (count < 0) {
+        throw new EOFException();
+      }
+      read += count;
+    }
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // VARINT
+  //
+  // Seven bits per byte, lowest bits first, with the top bit set on every byte
+  // but the last.
+
+  static void writeVarint(OutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  static long readVarint(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Varint is too long");
+  }
+
+  private static int readSize(InputStream in) throws IOException {
+    final long value = readVarint(in);
+    if (value < 0 || value > Integer.MAX_VALUE) {
+      throw new IOException("Size out of range: " + value);
+    }
+    return (int) value;
+  }
+
+  // Map signed values to unsigned so that small negative differences stay small.
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import codeu.chat.util.Histogram;
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+
+// SERVER STATS
+//
+// A snapshot of how the server is doing, sent in answer to STATS_REQUEST. It
+// holds plain values (like queue depths) and histogram summaries (like how
+// long events waited), each under a dotted name such as
+// "timeline.interactive.wait_us". Entries keep the order they were added in.
+public final class ServerStats {
+
+  public static final Serializer<ServerStats> SERIALIZER = new Serializer<ServerStats>() {
+
+    @Override
+    public void write(OutputStream out, ServerStats value) throws IOException {
+
+      Serializers.INTEGER.write(out, value.values.size());
+      for (final Map.Entry<String, Long> entry : value.values.entrySet()) {
+        Serializers.STRING.write(out, entry.getKey());
+        Serializers.LONG.write(out, entry.getValue());
+      }
+
+      Serializers.INTEGER.write(out, value.histograms.size());
+      for (final Map.Entry<String, Histogram.Summary> entry : value.histograms.entrySet()) {
+        Serializers.STRING.write(out, entry.getKey());
+        Histogram.Summary.SERIALIZER.write(out, entry.getValue());
+      }
+    }
+
+    @Override
+    public ServerStats read(InputStream in) throws IOException {
+
+      final ServerStats stats = new ServerStats();
+
+      final int values = Serializers.INTEGER.read(in);
+      for (int i = 0; i < values; i++) {
+        stats.values.put(Serializers.STRING.read(in), Serializers.LONG.read(in));
+      }
+
+      final int histograms = Serializers.INTEGER.read(in);
+      for (int i = 0; i < histograms; i++) {
+        stats.histograms.put(Serializers.STRING.read(in), Histogram.Summary.SERIALIZER.read(in));
+      }
+
+      return stats;
+    }
+  };
+
+  private final Map<String, Long> values = new LinkedHashMap<>();
+  private final Map<String, Histogram.Summary> histograms = new LinkedHashMap<>();
+
+  public void put(String name, long value) {
+    values.put(name, value);
+  }
+
+  public void put(String name, Histogram histogram) {
+    histograms.put(name, histogram.summary());
+  }
+
+  public Map<String, Long> values() {
+    return Collections.unmodifiableMap(values);
+  }
+
+  public Map<String, Histogram.Summary> histograms() {
+    return Collections.unmodifiableMap(histograms);
+  }
+}
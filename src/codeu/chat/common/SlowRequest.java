@@ -0,0 +1,106 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+
+// SLOW REQUEST
+//
+// A request that took the server longer than it should have, with how long
+// each phase of handling it took (like "queue" or "flush"). Every time is in
+// microseconds and the phases keep the order they were added in.
+public final class SlowRequest {
+
+  public static final Serializer<SlowRequest> SERIALIZER = new Serializer<SlowRequest>() {
+
+    @Override
+    public void write(OutputStream out, SlowRequest value) throws IOException {
+
+      Time.SERIALIZER.write(out, value.time);
+      Serializers.STRING.write(out, value.command);
+      Serializers.LONG.write(out, value.totalUs);
+      Serializers.BOOLEAN.write(out, value.failed);
+
+      Serializers.INTEGER.write(out, value.phases.size());
+      for (final Map.Entry<String, Long> entry : value.phases.entrySet()) {
+        Serializers.STRING.write(out, entry.getKey());
+        Serializers.LONG.write(out, entry.getValue());
+      }
+    }
+
+    @Override
+    public SlowRequest read(InputStream in) throws IOException {
+
+      final SlowRequest request = new SlowRequest(
+          Time.SERIALIZER.read(in),
+          Serializers.STRING.read(in),
+          Serializers.LONG.read(in),
+          Serializers.BOOLEAN.read(in));
+
+      final int phases = Serializers.INTEGER.read(in);
+      for (int i = 0; i < phases; i++) {
+        request.phases.put(Serializers.STRING.read(in), Serializers.LONG.read(in));
+      }
+
+      return request;
+    }
+  };
+
+  public final Time time;
+  public final String command;
+  public final long totalUs;
+  public final boolean failed;
+
+  private final Map<String, Long> phases = new LinkedHashMap<>();
+
+  public SlowRequest(Time time, String command, long totalUs, boolean failed) {
+    this.time = time;
+    this.command = command;
+    this.totalUs = totalUs;
+    this.failed = failed;
+  }
+
+  public void put(String phase, long us) {
+    phases.put(phase, us);
+  }
+
+  public Map<String, Long> phases() {
+    return Collections.unmodifiableMap(phases);
+  }
+
+  // One line of "name=value" pairs, so slow requests are easy to pick out of
+  // the log with grep.
+  @Override
+  public String toString() {
+    final StringBuilder build = new StringBuilder();
+    build.append("command=").append(command)
+         .append(" total_us=").append(totalUs)
+         .append(" failed=").append(failed);
+    for (final Map.Entry<String, Long> entry : phases.entrySet()) {
+      build.append(' ').append(entry.getKey()).append("_us=").append(entry.getValue());
+    }
+    return build.toString();
+  }
+}
@@ -0,0 +1,430 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCodec;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Time;
+
+// DISK HISTORY
+//
+// A relay history that lives on disk so that it survives a restart and can hold
+// far more bundles than fit in memory.
+//
+// The history is split into segments. Each segment is a pair of files that are
+// memory-mapped when the segment is opened:
+//
+//   <first id>.log   : the serialized bundles, one after another.
+//   <first id>.index : one int per bundle, the offset in the log where that
+//                      bundle ends. Unused entries are zero.
+//
+// The bundle with id "n" is entry "n - first id" in the segment that holds it,
+// so finding a bundle never needs to scan a file. Bundles are read straight out
+// of the mapped log.
+//
+// Appends and retains are serialized by the history. Syncs do not hold up
+// appends. Reads may happen at the same time as an append as long as they
+// only ask for ids that the append has returned for.
+//
+// An append only writes to the mapped files, so it is safe once it returns if
+// the process goes down but not if the machine does. "sync()" forces
+// everything appended so far to disk, and the owner calls it on a timer so
+// that many appends share one fsync instead of each paying for two. A machine
+// crash can lose what was appended since the last sync, and the OS may have
+// written an index entry before the bundle it points to. When a segment is
+// opened, entries at the end whose bundle does not read back with the right id
+// are dropped, so a torn append is never handed to a reader.
+public final class DiskHistory {
+
+  private final static Logger.Log LOG = Logger.newLog(DiskHistory.class);
+
+  private static final String LOG_SUFFIX = ".log";
+  private static final String INDEX_SUFFIX = ".index";
+
+  private static final class Segment {
+
+    final int firstId;
+    final File logFile;
+    final File indexFile;
+    final MappedByteBuffer log;
+    final MappedByteBuffer index;
+    final int maxEntries;
+
+    // Only changed by the appending thread. Readers are limited by the ids
+    // that the relay has published so they never look at an entry that is
+    // still being written.
+    volatile int entries;
+    volatile long lastTime;
+
+    Segment(File directory, int firstId, int logBytes, int maxEntries) throws IOException {
+
+      this.firstId = firstId;
+      this.logFile = new File(directory, firstId + LOG_SUFFIX);
+      this.indexFile = new File(directory, firstId + INDEX_SUFFIX);
+      this.maxEntries = maxEntries;
+
+      this.log = map(logFile, logBytes);
+      this.index = map(indexFile, maxEntries * 4);
+
+      // The end offsets only ever grow so the first empty entry can be found
+      // with a binary search instead of reading the whole index.
+      int low = 0;
+      int high = maxEntries;
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        if (index.getInt(mid * 4) == 0) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+
+      // Drop entries at the end that were torn by a machine crash.
+      final int found = low;
+      while (low > 0 && !valid(low - 1)) {
+        index.putInt((low - 1) * 4, 0);
+        low--;
+      }
+      if (low < found) {
+        index.force();
+        LOG.warning("Dropped %d torn entries from relay history segment %d", found - low, firstId);
+      }
+
+      this.entries = low;
+      this.lastTime = entries == 0 ? 0 : read(entries - 1).time().inMs();
+    }
+
+    int lastId() { return firstId + entries - 1; }
+
+    int start(int entry) { return entry == 0 ? 0 : index.getInt((entry - 1) * 4); }
+
+    int end(int entry) { return index.getInt(entry * 4); }
+
+    int used() { return entries == 0 ? 0 : end(entries - 1); }
+
+    boolean fits(int bytes) {
+      return entries < maxEntries && used() + bytes <= log.capacity();
+    }
+
+    void append(byte[] bytes, long time) {
+
+      final int start = used();
+
+      final ByteBuffer target = log.duplicate();
+      target.position(start);
+      target.put(bytes);
+
+      index.putInt(entries * 4, start + bytes.length);
+
+      lastTime = time;
+      entries++;
+    }
+
+    // Force the log before the index so that, as far as this process can
+    // control it, a bundle reaches the disk before the entry pointing to it.
+    // Only the dirty pages are written.
+    void force() {
+      log.force();
+      index.force();
+    }
+
+    // Check that an entry's bundle can be read and has the id it should.
+    private boolean valid(int entry) {
+      try {
+        return read(entry).id().id() == firstId + entry;
+      } catch (IOException | RuntimeException ex) {
+        return false;
+      }
+    }
+
+    Relay.Bundle read(int entry) throws IOException {
+
+      final ByteBuffer source = log.duplicate();
+      source.limit(end(entry));
+      source.position(start(entry));
+
+      return RelayCodec.BUNDLE.read(new ByteBufferInputStream(source));
+    }
+
+    // The files are unlinked while they are still mapped and a reader that
+    // picked up the old segment list may still be reading from them. This
+    // relies on POSIX semantics where the mapping stays valid until it is
+    // collected. On systems that will not delete a mapped file, the delete
+    // fails and is only logged.
+    void delete() {
+      if (!logFile.delete() || !indexFile.delete()) {
+        LOG.warning("Failed to delete segment %d", firstId);
+      }
+    }
+
+    private static MappedByteBuffer map(File file, int bytes) throws IOException {
+      try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        if (raf.length() < bytes) {
+          raf.setLength(bytes);
+        }
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+      }
+    }
+  }
+
+  // Reads directly from a mapped buffer so that a bundle is decoded from the
+  // page cache without first being copied into an array.
+  private static final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      final int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+  }
+
+  private final File directory;
+  private final int segmentBytes;
+  private final int segmentEntries;
+  private final long maxBytes;
+  private final long maxAgeMs;
+
+  // Segments in id order. The last segment is the one being appended to. The
+  // list is replaced, never changed, so readers can use it without locking.
+  private volatile List<Segment> segments;
+
+  // DISK HISTORY
+  //
+  // Open (or create) a history in "directory". Each segment's log will be
+  // "segmentBytes" long. Whole segments are dropped, oldest first, once the
+  // history is bigger than "maxBytes" or once everything in a segment is older
+  // than "maxAgeMs". The segment being appended to is never dropped.
+  public DiskHistory(File directory, int segmentBytes, long maxBytes, long maxAgeMs) throws IOException {
+
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.segmentEntries = Math.max(1, segmentBytes / 64);
+    this.maxBytes = maxBytes;
+    this.maxAgeMs = maxAgeMs;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create relay history directory " + directory);
+    }
+
+    final List<Integer> firstIds = new ArrayList<>();
+    for (final String name : directory.list()) {
+      if (name.endsWith(LOG_SUFFIX)) {
+        try {
+          firstIds.add(Integer.parseInt(name.substring(0, name.length() - LOG_SUFFIX.length())));
+        } catch (NumberFormatException ex) {
+          LOG.warning("Ignoring unknown file in relay history %s", name);
+        }
+      }
+    }
+    Collections.sort(firstIds);
+
+    final List<Segment> opened = new ArrayList<>();
+    for (final int firstId : firstIds) {
+      opened.add(new Segment(directory, firstId, segmentBytes, segmentEntries));
+    }
+
+    // Drop empty segments that are not at the end. They come from a crash
+    // right after a roll and would otherwise leave a hole in the ids.
+    for (int i = opened.size() - 2; i >= 0; i--) {
+      if (opened.get(i).entries == 0) {
+        opened.remove(i).delete();
+      }
+    }
+
+    segments = Collections.unmodifiableList(opened);
+
+    LOG.info("Opened relay history segments=%d first=%d last=%d",
+             opened.size(), firstId(), lastId());
+
+    retain();
+  }
+
+  // Get the id of the oldest bundle on disk. If the history is empty this will
+  // be one more than "lastId()".
+  public int firstId() {
+    final List<Segment> current = segments;
+    for (final Segment segment : current) {
+      if (segment.entries > 0) {
+        return segment.firstId;
+      }
+    }
+    return lastId() + 1;
+  }
+
+  // Get the id of the newest bundle on disk or 0 if nothing has been written.
+  public int lastId() {
+    final List<Segment> current = segments;
+    return current.isEmpty() ? 0 : current.get(current.size() - 1).lastId();
+  }
+
+  // APPEND
+  //
+  // Add a bundle to the end of the history. The bundle's id must be one more
+  // than "lastId()".
+  public synchronized void append(Relay.Bundle bundle) throws IOException {
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    RelayCodec.BUNDLE.write(bytes, bundle);
+
+    if (bytes.size() > segmentBytes) {
+      throw new IOException("Bundle is larger than a relay history segment");
+    }
+
+    final List<Segment> current = segments;
+    Segment last = current.isEmpty() ? null : current.get(current.size() - 1);
+
+    if (last == null || !last.fits(bytes.size())) {
+      last = roll(bundle.id().id());
+    }
+
+    last.append(bytes.toByteArray(), bundle.time().inMs());
+  }
+
+  // READ
+  //
+  // Read up to "count" bundles starting with the bundle "firstId". Bundles that
+  // have been dropped are skipped.
+  public Collection<Relay.Bundle> read(int firstId, int count) throws IOException {
+
+    final Collection<Relay.Bundle> found = new ArrayList<>();
+    final int lastId = firstId + count - 1;
+
+    for (final Segment segment : segments) {
+
+      if (segment.entries == 0 || segment.lastId() < firstId) {
+        continue;
+      }
+      if (segment.firstId > lastId) {
+        break;
+      }
+
+      final int from = Math.max(firstId, segment.firstId);
+      final int to = Math.min(lastId, segment.lastId());
+
+      for (int id = from; id <= to; id++) {
+        found.add(segment.read(id - segment.firstId));
+      }
+    }
+
+    return found;
+  }
+
+  // SYNC
+  //
+  // Force everything appended so far to disk. This does not lock out appends
+  // while the disk is busy. A roll forces the segment it finishes itself.
+  public void sync() {
+    final List<Segment> current = segments;
+    if (!current.isEmpty()) {
+      current.get(current.size() - 1).force();
+    }
+  }
+
+  private Segment roll(int firstId) throws IOException {
+
+    final long now = System.currentTimeMillis();
+
+    final List<Segment> next = new ArrayList<>(segments);
+
+    // Later syncs only force the newest segment so finish this one now.
+    if (!next.isEmpty()) {
+      next.get(next.size() - 1).force();
+    }
+
+    // An empty segment at the end can just be replaced.
+    if (!next.isEmpty() && next.get(next.size() - 1).entries == 0) {
+      next.remove(next.size() - 1).delete();
+    }
+
+    final Segment segment = new Segment(directory, firstId, segmentBytes, segmentEntries);
+    next.add(segment);
+    segments = Collections.unmodifiableList(next);
+
+    LOG.info("Started relay history segment %d", firstId);
+
+    retain(now);
+
+    return segment;
+  }
+
+  // RETAIN
+  //
+  // Drop the oldest segments until the history fits in "maxBytes" and no
+  // segment is entirely older than "maxAgeMs". This happens whenever a new
+  // segment is started, but a quiet relay may not start one for a long time
+  // so the owner should also call this on a timer.
+  public void retain() {
+    retain(System.currentTimeMillis());
+  }
+
+  synchronized void retain(long now) {
+
+    final List<Segment> next = new ArrayList<>(segments);
+
+    long total = 0;
+    for (final Segment segment : next) {
+      total += segment.used();
+    }
+
+    while (next.size() > 1) {
+
+      final Segment oldest = next.get(0);
+
+      final boolean tooBig = total > maxBytes;
+      final boolean tooOld = oldest.lastTime < now - maxAgeMs;
+
+      if (!tooBig && !tooOld) {
+        break;
+      }
+
+      LOG.info("Dropping relay history segment %d (%s)", oldest.firstId, tooBig ? "size" : "age");
+
+      total -= oldest.used();
+      next.remove(0);
+      oldest.delete();
+    }
+
+    segments = Collections.unmodifiableList(next);
+  }
+}
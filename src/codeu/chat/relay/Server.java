@@ -14,14 +14,16 @@
 
 package codeu.chat.relay;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import codeu.chat.common.LinearUuidGenerator;
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Logger;
@@ -100,14 +102,29 @@ public final class Server implements Relay {
 
   }
 
-  private final Queue<Relay.Bundle> history = new LinkedList<>();
-  private final Map<Uuid, Secret> teamSecrets = new HashMap<>();
+  // HISTORY
+  //
+  // The history is a ring buffer indexed by bundle id. The bundle with id "n"
+  // is always found at "history[n % maxHistory]" so a read never needs to walk
+  // the history to find where to start - it can go straight to the bundle after
+  // the root.
+  //
+  // The server is safe to use from many threads at once. Bundles are never
+  // changed once they are made so readers can copy them out of the history
+  // without any locks. See WRITE and READ for how the ids are handed out and
+  // published.
+  private final AtomicReferenceArray<Relay.Bundle> history;
+
+  // The team secrets are never changed in place. Adding teams builds a new map
+  // and swaps it in so that readers and writers always see a complete map.
+  private volatile Map<Uuid, Secret> teamSecrets = Collections.emptyMap();
+  private final Object teamLock = new Object();
 
   private final int maxHistory;
   private final int maxRead;
 
-  // Okay, some reasoning behind why I'm using a statically initialized linear
-  // generator for the ids for the relay server.
+  // Okay, some reasoning behind why I'm using a linear counter for the ids for
+  // the relay server.
   //
   //   Point A : The ids only need to be uniqiue for a single run time of the
   //             relay. Ids from the relay are only used as a position into its
@@ -122,8 +139,62 @@ public final class Server implements Relay {
   //
   // As a side note, the ids start at 1 and not 0 to avoid the first id from
   // matching the NULL id which is defined as (null, 0);
+  //
+  // When there is a disk history the ids carry on from the last id on disk
+  // after a restart so that team servers can keep reading from where they
+  // were.
+  //
+  // "claimed" is the last id handed out to a writer and "published" is the
+  // last id whose bundle is in the history for readers to see. Every id from
+  // "oldestId(published)" to "published" is in the history.
+  private final AtomicInteger claimed = new AtomicInteger(0);
+  private final AtomicInteger published = new AtomicInteger(0);
+
+  // When there is a disk history, every bundle is appended to it and the ring
+  // buffer only holds the newest bundles so that most reads never touch disk.
+  // Appends to disk must happen in id order so writers take "diskLock" for the
+  // whole write.
+  private final DiskHistory disk;
+  private final Object diskLock = new Object();
+
+  // LONG POLL
+  //
+  // Readers that are waiting for new bundles wait on "arrivals". Writers only
+  // need to wake them when someone is actually waiting so that writes stay
+  // cheap when no one is polling.
+  private static final long MAX_WAIT_MS = 30000;
 
- private final Uuid.Generator idGenerator = new LinearUuidGenerator(null, 1, Integer.MAX_VALUE);
+  // Each waiting read keeps a connection's worker thread busy. Past this many
+  // reads are answered straight away, the way a plain read is, so that polls
+  // cannot take every worker and leave none for writes.
+  public static final int MAX_WAITING = 128;
+
+  // How many bundles to give a receiver at a time when catching up.
+  private static final int CATCH_UP_BATCH = 256;
+
+  // How many bundles one filtered read will look at before giving up.
+  private static final int MAX_SCAN = 4096;
+
+  // CURSORS
+  //
+  // Where each team's last filtered read stopped. "root" is the root the team
+  // will send next time (the last bundle it was given) and "scanned" is the
+  // last bundle that was looked at.
+  private static final class Cursor {
+
+    final Uuid root;
+    final int scanned;
+
+    Cursor(Uuid root, int scanned) {
+      this.root = root;
+      this.scanned = scanned;
+    }
+  }
+
+  private final Map<Uuid, Cursor> cursors = new ConcurrentHashMap<>();
+
+  private final Object arrivals = new Object();
+  private final AtomicInteger waiting = new AtomicInteger(0);
 
   // SERVER
   //
@@ -132,8 +203,41 @@ public final class Server implements Relay {
   //   - Keep "maxRead" small enough to avoid any one client from connecting to
   //     the server for too long.
   public Server(int maxHistory, int maxRead) {
+    this(maxHistory, maxRead, null);
+  }
+
+  // SERVER
+  //
+  // Create a server that keeps its full history in "disk". "maxHistory" is now
+  // only how many of the newest bundles to keep in memory. Anything already in
+  // "disk" is available to read right away.
+  public Server(int maxHistory, int maxRead, DiskHistory disk) {
+
     this.maxHistory = Math.max(0, maxHistory);
     this.maxRead = Math.max(0, maxRead);
+    this.history = new AtomicReferenceArray<>(this.maxHistory);
+    this.disk = disk;
+
+    if (disk != null) {
+
+      final int last = disk.lastId();
+      final int first = Math.max(disk.firstId(), last + 1 - this.maxHistory);
+
+      try {
+        if (this.maxHistory > 0) {
+          for (final Relay.Bundle bundle : disk.read(first, last + 1 - first)) {
+            history.set(bundle.id().id() % this.maxHistory, bundle);
+          }
+        }
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to load recent bundles from disk. They will be read from disk.");
+      }
+
+      claimed.set(last);
+      published.set(last);
+
+      LOG.info("Relay history restored from disk first=%d last=%d", disk.firstId(), last);
+    }
   }
 
   // ADD TEAM
@@ -145,11 +249,7 @@ public final class Server implements Relay {
 
     LOG.info("Adding team to relay %s", id);
 
-    final boolean open = teamSecrets.get(id) == null;
-
-    if (open) {
-      teamSecrets.put(id, secret);
-    }
+    final boolean open = addTeams(Collections.singletonMap(id, secret)) == 1;
 
     LOG.info(open ?
              "Adding team was successful" :
@@ -158,6 +258,33 @@ public final class Server implements Relay {
     return open;
   }
 
+  // ADD TEAMS
+  //
+  // Add many teams at once. All the new teams become visible at the same time.
+  // Like "addTeam", teams that are already known will keep their old secret.
+  // Returns the number of teams that were added.
+  public int addTeams(Map<Uuid, Secret> teams) {
+
+    synchronized (teamLock) {
+
+      final Map<Uuid, Secret> next = new HashMap<>(teamSecrets);
+
+      int added = 0;
+      for (final Map.Entry<Uuid, Secret> team : teams.entrySet()) {
+        if (!next.containsKey(team.getKey())) {
+          next.put(team.getKey(), team.getValue());
+          added++;
+        }
+      }
+
+      if (added > 0) {
+        teamSecrets = Collections.unmodifiableMap(next);
+      }
+
+      return added;
+    }
+  }
+
   @Override
   public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
     return new Component(id, text, time);
@@ -179,17 +306,10 @@ public final class Server implements Relay {
           conversation.id(),
           message.id());
 
-      if (history.size() >= maxHistory) {
-         history.remove();
-      }
+      return disk == null ?
+          store(teamId, user, conversation, message) :
+          storeOnDisk(teamId, user, conversation, message);
 
-      return history.offer(new Bundle(
-          idGenerator.make(),
-          Time.now(),
-          teamId,
-          user,
-          conversation,
-          message));
     } else {
 
       LOG.warning(
@@ -204,46 +324,353 @@ public final class Server implements Relay {
   }
 
   @Override
-  public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
-
-    final Collection<Relay.Bundle> found = new ArrayList<>();
+  public boolean write(Uuid teamId, Secret teamSecret, Collection<? extends Relay.Outgoing> outgoing) {
 
     if (authenticate(teamId, teamSecret)) {
 
-      LOG.info(
-         "Request to read from server requested=%d allowed=%d",
-          range,
-          maxRead);
+      LOG.info("Writing batch to server team=%s size=%d", teamId, outgoing.size());
 
-      for (final Relay.Bundle message : history) {
+      for (final Relay.Outgoing entry : outgoing) {
 
-        // Only add a message if there is room. We cannot stop
-        // searching in case we see the root later on.
-        if (found.size() < Math.min(range, maxRead)) {
-          found.add(message);
-        }
+        final boolean stored = disk == null ?
+            store(teamId, entry.user(), entry.conversation(), entry.message()) :
+            storeOnDisk(teamId, entry.user(), entry.conversation(), entry.message());
 
-        // If the start is found, drop all previous messages.
-        if (message.id().equals(root)) {
-          found.clear();
+        // Only a disk error can stop a write part way through. Report the
+        // whole batch as failed so the team sends it again. Anything before
+        // this point will be relayed twice, which servers already ignore as
+        // they check message ids.
+        if (!stored) {
+          return false;
         }
       }
 
-      LOG.info(
-          "Read request complete requested=%d fullfilled=%d",
-          range,
-          found.size());
+      return true;
 
     } else {
 
+      LOG.warning(
+          "Unauthorized batch write attempt to server team=%s size=%d",
+          teamId,
+          outgoing.size());
+
+      return false;
+    }
+  }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+    return read(teamId, teamSecret, root, range, 0, Relay.Filter.ALL);
+  }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId,
+                                       Secret teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       long waitMs,
+                                       Relay.Filter filter) {
+
+    final Collection<Relay.Bundle> found = new ArrayList<>();
+
+    if (!authenticate(teamId, teamSecret)) {
       LOG.info(
           "Unauthroized attempt to read from server team=%s",
           teamId);
+      return found;
+    }
+
+    LOG.info(
+       "Request to read from server requested=%d allowed=%d wait=%d",
+        range,
+        maxRead,
+        waitMs);
+
+    final int count = Math.min(range, maxRead);
+    final boolean wait = waiting.incrementAndGet() <= MAX_WAITING;
+    final long deadline = System.currentTimeMillis() + (wait ? Math.min(Math.max(0, waitMs), MAX_WAIT_MS) : 0);
+
+    try {
+      while (true) {
+
+        final int scanned = scan(teamId, root, count, filter, found);
+        final long remaining = deadline - System.currentTimeMillis();
+
+        if (!found.isEmpty() || count <= 0 || remaining <= 0) {
+          break;
+        }
+
+        // Only wait if the scan got to the end of what has been published.
+        // Otherwise there is more to look at right away.
+        synchronized (arrivals) {
+          if (published.get() <= scanned) {
+            arrivals.wait(remaining);
+          }
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      waiting.decrementAndGet();
     }
 
+    LOG.info(
+        "Read request complete requested=%d fullfilled=%d",
+        range,
+        found.size());
+
     return found;
   }
 
+  @Override
+  public Uuid catchUp(Uuid teamId,
+                      Secret teamSecret,
+                      Uuid root,
+                      Relay.Filter filter,
+                      Relay.Receiver receiver) {
+
+    if (!authenticate(teamId, teamSecret)) {
+      LOG.info(
+          "Unauthroized attempt to catch up from server team=%s",
+          teamId);
+      return root;
+    }
+
+    LOG.info("Catch up started team=%s root=%s", teamId, root);
+
+    Uuid cursor = root;
+    int sent = 0;
+
+    // Catching up is not limited by "maxRead" as the receiver controls how fast
+    // bundles are sent. Keep going until the scan reaches the newest bundle.
+    while (true) {
+
+      final Collection<Relay.Bundle> batch = new ArrayList<>();
+      final int scanned = scan(teamId, cursor, CATCH_UP_BATCH, filter, batch);
+
+      if (!batch.isEmpty()) {
+
+        if (!receiver.onBundles(batch)) {
+          break;
+        }
+
+        for (final Relay.Bundle bundle : batch) {
+          cursor = bundle.id();
+        }
+        sent += batch.size();
+      }
+
+      if (scanned >= published.get()) {
+        break;
+      }
+    }
+
+    LOG.info("Catch up complete team=%s sent=%d", teamId, sent);
+
+    return cursor;
+  }
+
+  // SCAN
+  //
+  // Add up to "count" bundles from after "root" that pass "filter" to "found".
+  // This takes a snapshot of what has been published and only reads up to it.
+  // Returns the id of the last bundle that was looked at.
+  //
+  // Where each team's last scan stopped is kept in "cursors". If the team asks
+  // for the same root again, the scan picks up from where it stopped instead
+  // of looking at the bundles the filter skipped last time.
+  private int scan(Uuid team, Uuid root, int count, Relay.Filter filter, Collection<Relay.Bundle> found) {
+
+    final int last = published.get();
+    final int oldest = oldestId(last);
+
+    // If the root is still in the history, start right after it. Otherwise
+    // start from the oldest bundle there is.
+    int start = inHistory(root, oldest, last) ? root.id() + 1 : oldest;
+
+    final Cursor cursor = cursors.get(team);
+    if (cursor != null && Uuid.equals(cursor.root, root) && cursor.scanned <= last) {
+      start = Math.max(start, cursor.scanned + 1);
+    }
+
+    // Limit how far one scan can go so that a filter that skips almost
+    // everything cannot keep a reader busy for too long.
+    final int limit = Math.min(last, start + MAX_SCAN - 1);
+
+    Uuid delivered = root;
+    int next = start;
+
+    while (found.size() < Math.max(0, count) && next <= limit) {
+
+      final int end = Math.min(limit + 1, next + count - found.size());
+
+      final Collection<Relay.Bundle> chunk = new ArrayList<>();
+      readRange(next, end, chunk);
+
+      for (final Relay.Bundle bundle : chunk) {
+        if (filter.accepts(team, bundle.team())) {
+          found.add(bundle);
+          delivered = bundle.id();
+        }
+      }
+
+      next = end;
+    }
+
+    final int scanned = next - 1;
+
+    // Nothing to remember when every bundle is sent as the next root will be
+    // the last bundle sent anyway.
+    if (!filter.acceptsAll()) {
+      cursors.put(team, new Cursor(delivered, scanned));
+    }
+
+    return scanned;
+  }
+
+  // Add the bundles with ids from "start" up to (but not including) "end" to
+  // "found".
+  private void readRange(int start, int end, Collection<Relay.Bundle> found) {
+
+    final int last = published.get();
+
+    // Anything older than what the ring buffer holds has to come from disk.
+    final int inMemory = Math.max(start, Math.min(end, memoryOldestId(last)));
+
+    if (disk != null && start < inMemory) {
+      readFromDisk(start, inMemory - start, found);
+    }
+
+    for (int id = inMemory; id < end; id++) {
+
+      final Relay.Bundle bundle = history.get(id % maxHistory);
+
+      // Writers may have lapped this read since the snapshot was taken. When
+      // that happens the bundle in the slot is newer than the one we wanted
+      // and the one we wanted is gone from memory, so skip it unless it can
+      // still be found on disk.
+      if (bundle != null && bundle.id().id() == id) {
+        found.add(bundle);
+      } else if (disk != null) {
+        readFromDisk(id, 1, found);
+      }
+    }
+  }
+
+  // WRITE
+  //
+  // Claiming an id is a single atomic increment so writers never block each
+  // other while building their bundle. Writing into the slot replaces the
+  // bundle that is "maxHistory" older than this one, which is the same as
+  // dropping the oldest bundle.
+  private boolean store(Uuid teamId,
+                        Relay.Bundle.Component user,
+                        Relay.Bundle.Component conversation,
+                        Relay.Bundle.Component message) {
+
+    final int id = claimed.incrementAndGet();
+
+    if (maxHistory > 0) {
+      history.set(id % maxHistory, new Bundle(
+          Uuid.intern(null, id),
+          Time.now(),
+          teamId,
+          user,
+          conversation,
+          message));
+    }
+
+    // Bundles are published in id order so that a reader never sees a gap.
+    // A writer only has to wait here if a writer with a smaller id has not
+    // stored its bundle yet.
+    while (!published.compareAndSet(id - 1, id)) {
+      Thread.yield();
+    }
+
+    wakeWaiting();
+
+    return true;
+  }
+
+  // WRITE TO DISK
+  //
+  // The id is only used once the bundle is in the disk history so that a
+  // failed append does not leave a hole in the history.
+  private boolean storeOnDisk(Uuid teamId,
+                              Relay.Bundle.Component user,
+                              Relay.Bundle.Component conversation,
+                              Relay.Bundle.Component message) {
+
+    synchronized (diskLock) {
+
+      final int id = claimed.get() + 1;
+
+      final Relay.Bundle bundle = new Bundle(
+          Uuid.intern(null, id),
+          Time.now(),
+          teamId,
+          user,
+          conversation,
+          message);
+
+      try {
+        disk.append(bundle);
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to write bundle %d to disk", id);
+        return false;
+      }
+
+      if (maxHistory > 0) {
+        history.set(id % maxHistory, bundle);
+      }
+
+      claimed.set(id);
+      published.set(id);
+    }
+
+    wakeWaiting();
+
+    return true;
+  }
+
+  // How many reads are waiting for new bundles right now.
+  int waitingReads() {
+    return waiting.get();
+  }
+
+  private void wakeWaiting() {
+    if (waiting.get() > 0) {
+      synchronized (arrivals) {
+        arrivals.notifyAll();
+      }
+    }
+  }
+
+  private void readFromDisk(int first, int count, Collection<Relay.Bundle> found) {
+    try {
+      found.addAll(disk.read(first, count));
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to read bundles %d to %d from disk", first, first + count - 1);
+    }
+  }
+
+  private int oldestId(int last) {
+    return disk == null ? memoryOldestId(last) : Math.min(disk.firstId(), last + 1);
+  }
+
+  private int memoryOldestId(int last) {
+    return Math.max(1, last + 1 - maxHistory);
+  }
+
+  // Check if "root" is the id of a bundle that is still in the history. Only
+  // ids made by this relay have no root.
+  private boolean inHistory(Uuid root, int oldest, int last) {
+    return root != null &&
+           root.root() == null &&
+           root.id() >= oldest &&
+           root.id() <= last;
+  }
+
   private boolean authenticate(Uuid id, Secret secret) {
     return id != null && secret != null && secret.equals(teamSecrets.get(id));
   }
@@ -14,18 +14,21 @@
 
 package codeu.chat.relay;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCodec;
 import codeu.chat.common.Secret;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
-import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 import codeu.chat.util.connections.Connection;
 
@@ -33,76 +36,6 @@ public final class ServerFrontEnd {
 
   private final static Logger.Log LOG = Logger.newLog(ServerFrontEnd.class);
 
-  private static final Serializer<Relay.Bundle.Component> COMPONENT_SERIALIZER =
-      new Serializer<Relay.Bundle.Component>() {
-
-    @Override
-    public Relay.Bundle.Component read(InputStream in) throws IOException {
-
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final String text = Serializers.STRING.read(in);
-      final Time time = Time.SERIALIZER.read(in);
-
-      // I could have passed the relay and use its "pack" method but that would
-      // have been more work than just building an object here.
-      return new Relay.Bundle.Component() {
-        @Override
-        public Uuid id() { return id; }
-        @Override
-        public String text() { return text; }
-        @Override
-        public Time time() { return time; }
-      };
-    }
-
-    @Override
-    public void write(OutputStream out, Relay.Bundle.Component value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Serializers.STRING.write(out, value.text());
-      Time.SERIALIZER.write(out, value.time());
-    }
-  };
-
-  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
-      new Serializer<Relay.Bundle>() {
-
-    @Override
-    public Relay.Bundle read(InputStream in) throws IOException {
-
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final Time time = Time.SERIALIZER.read(in);
-      final Uuid team = Uuid.SERIALIZER.read(in);
-      final Relay.Bundle.Component user = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component conversation = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
-
-      return new Relay.Bundle() {
-        @Override
-        public Uuid id() { return id; }
-        @Override
-        public Time time() { return time; }
-        @Override
-        public Uuid team() { return team; }
-        @Override
-        public Relay.Bundle.Component user() { return user; }
-        @Override
-        public Relay.Bundle.Component conversation() { return conversation; }
-        @Override
-        public Relay.Bundle.Component message() { return message; }
-      };
-    }
-
-    @Override
-    public void write(OutputStream out, Relay.Bundle value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Time.SERIALIZER.write(out, value.time());
-      Uuid.SERIALIZER.write(out, value.team());
-      COMPONENT_SERIALIZER.write(out, value.user());
-      COMPONENT_SERIALIZER.write(out, value.conversation());
-      COMPONENT_SERIALIZER.write(out, value.message());
-    }
-  };
-
   private final Relay backEnd;
 
   public ServerFrontEnd(Relay backEnd) {
@@ -113,15 +46,29 @@ public final class ServerFrontEnd {
 
     LOG.info("Handling Connection - start");
 
-    switch (Serializers.INTEGER.read(connection.in())) {
-      case NetworkCode.RELAY_READ_REQUEST: handleReadMessage(connection); break;
+    int type = Serializers.INTEGER.read(connection.in());
+    int version = RelayCodec.LEGACY;
+
+    // Servers that know about codec versions put the version they want in
+    // front of the request. Servers that do not just send the request.
+    if (type == NetworkCode.RELAY_VERSIONED_REQUEST) {
+      version = RelayCodec.negotiate(Serializers.INTEGER.read(connection.in()));
+      type = Serializers.INTEGER.read(connection.in());
+    }
+
+    switch (type) {
+      case NetworkCode.RELAY_READ_REQUEST: handleReadMessage(connection, version); break;
       case NetworkCode.RELAY_WRITE_REQUEST: handleWriteMessage(connection); break;
+      case NetworkCode.RELAY_POLL_REQUEST: handlePollMessage(connection, version); break;
+      case NetworkCode.RELAY_CATCH_UP_REQUEST: handleCatchUpMessage(connection, version); break;
+      case NetworkCode.RELAY_WRITE_BATCH_REQUEST: handleWriteBatchMessage(connection, version); break;
+      case NetworkCode.RELAY_VERSION_REQUEST: handleVersionMessage(connection); break;
     }
 
     LOG.info("Handling Connection - end");
   }
 
-  private void handleReadMessage(Connection connection) throws IOException {
+  private void handleReadMessage(Connection connection, int version) throws IOException {
 
     LOG.info("Handling Read Message - start");
 
@@ -140,21 +87,166 @@ public final class ServerFrontEnd {
 
     LOG.info("Reading result.size=%d", result.size());
 
-    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_RESPONSE);
-    Serializers.collection(BUNDLE_SERIALIZER).write(connection.out(), result);
+    final OutputStream out = new BufferedOutputStream(connection.out());
+    Serializers.INTEGER.write(out, NetworkCode.RELAY_READ_RESPONSE);
+    RelayCodec.bundles(version).write(out, result);
+    out.flush();
 
     LOG.info("Handling Read Message - end");
   }
 
+  private void handlePollMessage(Connection connection, int version) throws IOException {
+
+    LOG.info("Handling Poll Message - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+    final Uuid root = Uuid.SERIALIZER.read(connection.in());
+    final int range = Serializers.INTEGER.read(connection.in());
+    final long waitMs = Serializers.LONG.read(connection.in());
+    final Relay.Filter filter = Relay.Filter.SERIALIZER.read(connection.in());
+
+    LOG.info(
+        "Polling team=%s root=%s range=%d wait=%d",
+        teamId,
+        root,
+        range,
+        waitMs);
+
+    final Collection<Relay.Bundle> result = backEnd.read(teamId, teamSecret, root, range, waitMs, filter);
+
+    LOG.info("Polling result.size=%d", result.size());
+
+    final OutputStream out = new BufferedOutputStream(connection.out());
+    Serializers.INTEGER.write(out, NetworkCode.RELAY_POLL_RESPONSE);
+    RelayCodec.bundles(version).write(out, result);
+    out.flush();
+
+    LOG.info("Handling Poll Message - end");
+  }
+
+  // CATCH UP
+  //
+  // Bundles are sent in batches, each written as a collection, and the end is
+  // marked with an empty collection. The client starts with a window of how
+  // many batches it is willing to have in flight and sends one credit back each
+  // time it finishes with a batch. When the window is used up the relay waits
+  // for a credit before sending more so a slow server is never flooded.
+  private void handleCatchUpMessage(final Connection connection, int version) throws IOException {
+
+    LOG.info("Handling Catch Up Message - start");
+
+    final Serializer<Collection<Relay.Bundle>> serializer = RelayCodec.bundles(version);
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+    final Uuid root = Uuid.SERIALIZER.read(connection.in());
+    final Relay.Filter filter = Relay.Filter.SERIALIZER.read(connection.in());
+    final int window = Serializers.INTEGER.read(connection.in());
+
+    LOG.info(
+        "Catching up team=%s root=%s window=%d",
+        teamId,
+        root,
+        window);
+
+    final OutputStream out = new BufferedOutputStream(connection.out());
+
+    Serializers.INTEGER.write(out, NetworkCode.RELAY_CATCH_UP_RESPONSE);
+    out.flush();
+
+    final int fullWindow = Math.max(1, window);
+    final int[] credits = { fullWindow };
+    final IOException[] failure = new IOException[1];
+
+    backEnd.catchUp(teamId, teamSecret, root, filter, new Relay.Receiver() {
+      @Override
+      public boolean onBundles(Collection<Relay.Bundle> bundles) {
+        try {
+          while (credits[0] == 0) {
+            final int credit = Serializers.INTEGER.read(connection.in());
+            if (credit <= 0) {
+              // The client has gone away or asked to stop.
+              return false;
+            }
+            credits[0] += credit;
+          }
+          serializer.write(out, bundles);
+          out.flush();
+          credits[0]--;
+          return true;
+        } catch (IOException ex) {
+          failure[0] = ex;
+          return false;
+        }
+      }
+    });
+
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+
+    serializer.write(out, new ArrayList<Relay.Bundle>());
+    out.flush();
+
+    // Wait for the client to finish with every batch before returning. If the
+    // connection was closed with credits still unread, the client could lose
+    // the end of the stream.
+    while (credits[0] < fullWindow) {
+      final int credit = Serializers.INTEGER.read(connection.in());
+      if (credit <= 0) {
+        break;
+      }
+      credits[0] += credit;
+    }
+
+    LOG.info("Handling Catch Up Message - end");
+  }
+
+  private void handleWriteBatchMessage(Connection connection, int version) throws IOException {
+
+    LOG.info("Handling Write Batch Message - start");
+
+    final InputStream in = new BufferedInputStream(connection.in());
+
+    final Uuid teamId = Uuid.SERIALIZER.read(in);
+    final Secret teamSecret = Secret.SERIALIZER.read(in);
+    final Collection<? extends Relay.Outgoing> outgoing = RelayCodec.outgoing(version).read(in);
+
+    LOG.info(
+        "Writing batch team=%s size=%d",
+        teamId,
+        outgoing.size());
+
+    final boolean result = backEnd.write(teamId, teamSecret, outgoing);
+
+    LOG.info("Writing batch result=%s", result ? "success" : "fail");
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_BATCH_RESPONSE);
+    Serializers.BOOLEAN.write(connection.out(), result);
+
+    LOG.info("Handling Write Batch Message - end");
+  }
+
+  private void handleVersionMessage(Connection connection) throws IOException {
+
+    LOG.info("Handling Version Message - start");
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_VERSION_RESPONSE);
+    Serializers.INTEGER.write(connection.out(), RelayCodec.VERSION);
+
+    LOG.info("Handling Version Message - end");
+  }
+
   private void handleWriteMessage(Connection connection) throws IOException {
 
     LOG.info("Handling Write Message - start");
 
     final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
     final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
-    final Relay.Bundle.Component user = COMPONENT_SERIALIZER.read(connection.in());
-    final Relay.Bundle.Component conversation = COMPONENT_SERIALIZER.read(connection.in());
-    final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(connection.in());
+    final Relay.Bundle.Component user = RelayCodec.COMPONENT.read(connection.in());
+    final Relay.Bundle.Component conversation = RelayCodec.COMPONENT.read(connection.in());
+    final Relay.Bundle.Component message = RelayCodec.COMPONENT.read(connection.in());
 
     LOG.info(
         "Writing team=%s user=%s conversation=%s message=%s",
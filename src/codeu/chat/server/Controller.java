@@ -37,6 +37,9 @@ public final class Controller implements RawController, BasicController {
   private final Uuid.Generator uuidGenerator;
   private final File persistentPath;
 
+  // How long each write of the log buffer to disk took, in microseconds.
+  private final Histogram flushTimes = new Histogram();
+
   public Controller(Uuid serverId, Model model, File persistentPath) {
     this.model = model;
     this.uuidGenerator = new RandomUuidGenerator(serverId, System.currentTimeMillis());
@@ -101,7 +104,7 @@ public final class Controller implements RawController, BasicController {
   public void newUserInterest(String name, Uuid owner) {
 
     User userInterest = model.userByText().first(name);
-    model.addWatch(userInterest.id, owner);
+    model.addUserWatch(userInterest.id, owner);
 
     LOG.info("InterestStore added");
   }
@@ -110,12 +113,7 @@ public final class Controller implements RawController, BasicController {
   public void newConversationInterest(String title, Uuid owner) {
 
     ConversationHeader conversationInterest = model.conversationByText().first(title);
-
-    InterestStore myInterests = model.userInterests().get(owner);
-    myInterests.addConversationInterest(conversationInterest.id);
-
-    // save owner as someone interested in conversationInterest
-    model.addWatch(conversationInterest.id, owner);
+    model.addConversationWatch(conversationInterest.id, owner);
 
     LOG.info("Conversation interest added");
   }
@@ -142,17 +140,10 @@ public final class Controller implements RawController, BasicController {
 
     if (foundUser != null && foundConversation != null && isIdFree(id)) {
 
-      message = new Message(id, Uuid.NULL, Uuid.NULL, creationTime, author, body);
-      model.add(message);
-      updateMessageCounts(conversation);
-
-      //keeping track of conversations that this owner, who may be an interest, added to
-      if (model.interestedByID().containsKey(author)) {
-        for (Uuid user : model.interestedByID().get(author)) {
-          ConversationHeader c = model.conversationById().first(conversation);
-          model.userInterests().get(user).addConversation(author, c);
-        }
-      }
+      // The new message goes at the end of the conversation so the current last
+      // message (NULL when the conversation is empty) comes before it.
+      message = new Message(id, Uuid.NULL, foundConversation.lastMessage, creationTime, author, body);
+      model.add(conversation, message);
 
       LOG.info("Message added: %s", message.id);
 
@@ -226,7 +217,6 @@ public final class Controller implements RawController, BasicController {
     if (foundOwner != null && isIdFree(id)) {
       conversation = new ConversationHeader(id, owner, creationTime, title);
       model.add(conversation);
-      updateConversations(id, owner);
 
       LOG.info("Conversation added: " + id);
     }
@@ -281,6 +271,9 @@ public final class Controller implements RawController, BasicController {
     Queue<String> logBuffer = Server.getLogBuffer();
 
     if (logBuffer.size() == 15) {
+      final long start = System.nanoTime();
+      final Flight.Event event = Flight.PERSISTENCE_FLUSH.begin();
+      boolean failed = true;
       try {
 
         BufferedWriter writer = new BufferedWriter(new FileWriter(log, true));
@@ -289,31 +282,41 @@ public final class Controller implements RawController, BasicController {
           writer.newLine();
         }
         writer.close();
+        failed = false;
 
       } catch (IOException e) {
         e.printStackTrace();
+      } finally {
+        final long elapsed = System.nanoTime() - start;
+        flushTimes.record(elapsed / 1000);
+        RequestTrace.add(RequestTrace.Phase.FLUSH, elapsed);
+        event.set("transactions", 15).set("failed", failed).commit();
       }
     }
   }
 
-  private void updateConversations(Uuid interest, Uuid owner) {
-    if (model.interestedByID().containsKey(owner)) {
-      for (Uuid u : model.interestedByID().get(owner)) {
-        ConversationHeader conversation = model.conversationById().first(interest);
-        model.userInterests().get(u).addConversation(owner, conversation);
-      }
-    }
+  public Histogram flushTimes() {
+    return flushTimes;
   }
 
-  private void updateMessageCounts(Uuid conversation) {
-    if (model.interestedByID().containsKey(conversation)) {
-      for (Uuid user : model.interestedByID().get(conversation)) {
-        InterestStore myInterests = model.userInterests().get(user);
-        myInterests.increaseMessageCount(conversation);
-      }
+  // Record how far through the relay this server has read. The cursor is
+  // written to the same log as the users, conversations, and messages that came
+  // from the relay, after them, so a restored cursor never skips anything that
+  // was not restored.
+  public void setRelayCursor(Uuid cursor, boolean log) {
+    model.setRelayCursor(cursor);
+    if (log) {
+      logTransaction(PersistenceLog.RELAY_CURSOR, cursor, null, 0, null, null);
     }
   }
 
+  // Write a transaction to the log. Used for data that was made somewhere else
+  // (like the relay) and added with the methods that take an id.
+  void logTransaction(String type, Uuid id, String text, long time, Uuid owner, Uuid convoId) {
+    checkBuffer();
+    PersistenceLog.writeTransaction(type, id, text, time, owner, convoId);
+  }
+
   public void addAdmin(String name, boolean log) {
     Uuid id = model.userByText().first(name).id;
     model.addAdmin(id);
@@ -328,16 +331,12 @@ public final class Controller implements RawController, BasicController {
     PersistenceLog.writeTransaction(PersistenceLog.REMOVE_ADMIN, id, null, 0, null, null);
   }
 
-  boolean setPassword(Uuid id, String password) {
+  // Hashing the password is left to the caller (see PasswordUtils.createHash)
+  // as it is too slow to do on the timeline.
+  void setPasswordHash(Uuid id, String hash) {
     model.removeNewAdmin(id);
-    try {
-      String hash = PasswordUtils.createHash(password);
-      model.addPassword(id, hash);
-      PersistenceLog.writeAuthInfo(persistentPath, id, hash);
-      return true;
-    } catch (PasswordUtils.CannotPerformOperationException e) {
-      return false;
-    }
+    model.addPassword(id, hash);
+    PersistenceLog.writeAuthInfo(persistentPath, id, hash);
   }
 
   void clean(File persistentPath) {
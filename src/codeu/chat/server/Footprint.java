@@ -0,0 +1,111 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import codeu.chat.common.ServerStats;
+
+// FOOTPRINT
+//
+// An estimate of how much heap the model holds on to, broken into parts (one
+// per store, index, or kind of entity). Nothing is measured - the sizes come
+// from the object layout of a 64-bit JVM with compressed references: 12 byte
+// object headers, 16 byte array headers, 4 byte references, and everything
+// rounded up to 8 bytes. Objects that are shared (like a message's id, which
+// is also its key in messageById) are only counted in the part that owns them.
+final class Footprint {
+
+  private static final int HEADER = 12;
+  private static final int ARRAY_HEADER = 16;
+  private static final int REFERENCE = 4;
+
+  // Uuid (root, id, hash) and Time (totalMs).
+  static final long UUID = object(1, 8);
+  static final long TIME = object(0, 8);
+
+  // StoreLink (key, value, next) and TreeMap.Entry (key, value, left, right,
+  // parent, color).
+  private static final long STORE_LINK = object(3, 0);
+  private static final long TREE_ENTRY = object(5, 1);
+
+  // HashMap.Node (hash, key, value, next).
+  private static final long HASH_NODE = object(3, 4);
+
+  private final ServerStats stats = new ServerStats();
+
+  private long total = 0;
+
+  void add(String part, long entries, long bytes) {
+    stats.put("model." + part + ".entries", entries);
+    stats.put("model." + part + ".bytes", bytes);
+    total += bytes;
+  }
+
+  // A Store also reports its links, which can be more than its entries when
+  // keys were cleared or are shared by several values.
+  void addStore(String part, int entries, int links) {
+    stats.put("model." + part + ".links", links);
+    add(part, entries, object(3, 4) + STORE_LINK + treeMap(entries) + links * STORE_LINK);
+  }
+
+  ServerStats finish(long messages) {
+    stats.put("model.total.bytes", total);
+    stats.put("model.bytes_per_message", messages == 0 ? 0 : total / messages);
+    return stats;
+  }
+
+  static long object(int references, int bytes) {
+    return align(HEADER + references * REFERENCE + bytes);
+  }
+
+  static long array(long length, int element) {
+    return align(ARRAY_HEADER + length * element);
+  }
+
+  static long references(long length) {
+    return array(length, REFERENCE);
+  }
+
+  // String (value, hash) and its char[].
+  static long string(String value) {
+    return value == null ? 0 : object(1, 4) + array(value.length(), 2);
+  }
+
+  static long hashMap(int entries) {
+    return object(4, 16) + (entries == 0 ? 0 : references(table(entries))) + entries * HASH_NODE;
+  }
+
+  static long hashSet(int entries) {
+    return object(1, 0) + hashMap(entries);
+  }
+
+  static long treeMap(int entries) {
+    return object(4, 8) + entries * TREE_ENTRY;
+  }
+
+  // The smallest power of two table that holds "entries" under the default
+  // load factor.
+  private static long table(int entries) {
+    long size = 16;
+    while (size * 3 / 4 < entries) {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+}
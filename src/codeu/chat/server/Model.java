@@ -21,6 +21,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ConversationPayload;
@@ -28,10 +29,13 @@ import codeu.chat.common.Message;
 import codeu.chat.common.User;
 import codeu.chat.util.InterestStore;
 import codeu.chat.common.PlayInfo;
+import codeu.chat.common.ServerStats;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.store.SequenceIndex;
 import codeu.chat.util.store.Store;
 import codeu.chat.util.store.StoreAccessor;
+import codeu.chat.util.store.TimeIndex;
 
 public final class Model {
 
@@ -51,33 +55,54 @@ public final class Model {
     }
   };
 
-  private static final Comparator<Time> TIME_COMPARE = new Comparator<Time>() {
-    @Override
-    public int compare(Time a, Time b) {
-      return a.compareTo(b);
-    }
-  };
-
   private static final Comparator<String> STRING_COMPARE = String.CASE_INSENSITIVE_ORDER;
 
+  // USER ACTIVITY
+  //
+  // Each time a user creates or adds to a conversation their count goes up by
+  // one and the conversation is marked with the new count. Only the latest
+  // mark for each conversation is kept, so this grows with the number of
+  // conversations a user has been active in rather than with every message.
+  private static final class Activity {
+
+    int count = 0;
+    final Map<Uuid, Integer> latest = new HashMap<>();
+
+    void add(Uuid conversation) {
+      latest.put(conversation, ++count);
+    }
+  }
+
   private Store<Uuid, User> userById = new Store<>(UUID_COMPARE);
-  private Store<Time, User> userByTime = new Store<>(TIME_COMPARE);
+  private TimeIndex<User> userByTime = new TimeIndex<>();
   private Store<String, User> userByText = new Store<>(STRING_COMPARE);
 
   private Store<Uuid, ConversationHeader> conversationById = new Store<>(UUID_COMPARE);
-  private Store<Time, ConversationHeader> conversationByTime = new Store<>(TIME_COMPARE);
+  private TimeIndex<ConversationHeader> conversationByTime = new TimeIndex<>();
   private Store<String, ConversationHeader> conversationByText = new Store<>(STRING_COMPARE);
 
   private Store<Uuid, ConversationPayload> conversationPayloadById = new Store<>(UUID_COMPARE);
 
   private Store<Uuid, Message> messageById = new Store<>(UUID_COMPARE);
-  private Store<Time, Message> messageByTime = new Store<>(TIME_COMPARE);
+  private TimeIndex<Message> messageByTime = new TimeIndex<>();
   private Store<String, Message> messageByText = new Store<>(STRING_COMPARE);
 
-  //from user/conversation id to the uuid's of the users who care
-  private Map<Uuid, Set<Uuid>> watching = new HashMap<>();
+  // from conversation id to the ids of the messages in that conversation in the
+  // order that they were added.
+  private Map<Uuid, SequenceIndex> messageSequences = new HashMap<>();
+
+  // from user id to the ids of the conversations they created, own, or are a
+  // member of.
+  private Map<Uuid, Set<Uuid>> conversationsByUser = new HashMap<>();
+
+  // from user id to what they have created or added to. Interests in a user
+  // read from this.
+  private Map<Uuid, Activity> activityByUser = new HashMap<>();
   private Map<Uuid, InterestStore> interestsByID = new HashMap<>();
 
+  // The id of the last relay bundle that has been added to the model.
+  private Uuid relayCursor = Uuid.NULL;
+
   //set of admins who haven't set their passwords yet.
   //new admins set their passwords after logging in for the first time
   private Set<Uuid> newAdmins = new HashSet<>();
@@ -144,13 +169,31 @@ public final class Model {
     conversationByTime.insert(conversation.creation, conversation);
     conversationByText.insert(conversation.title, conversation);
     conversationPayloadById.insert(conversation.id, new ConversationPayload(conversation.id));
+    messageSequences.put(conversation.id, new SequenceIndex());
+    addToUser(conversation.owner, conversation.id);
+    addActivity(conversation.owner, conversation.id);
   }
 
   public void remove(ConversationHeader c) {
+
+    // "c" may be a copy (e.g. from a client) without any members so use the
+    // model's copy to know which users need to be updated.
+    final ConversationHeader stored = conversationById.first(c.id);
+    if (stored != null) {
+      removeFromUser(stored.owner, stored.id);
+      for (final Uuid user : stored.owners) {
+        removeFromUser(user, stored.id);
+      }
+      for (final Uuid user : stored.members) {
+        removeFromUser(user, stored.id);
+      }
+    }
+
     conversationById.clear(c.id);
     conversationByTime.clear(c.creation);
     conversationByText.clear(c.title);
     conversationPayloadById.clear(c.id);
+    messageSequences.remove(c.id);
   }
 
   public StoreAccessor<Uuid, ConversationHeader> conversationById() {
@@ -169,10 +212,34 @@ public final class Model {
     return conversationPayloadById;
   }
 
-  public void add(Message message) {
+  // Get all the conversations that the user created, owns, or is a member of.
+  public Collection<ConversationHeader> conversationsForUser(Uuid user) {
+    final Collection<ConversationHeader> found = new ArrayList<>();
+    final Set<Uuid> ids = conversationsByUser.get(user);
+    if (ids != null) {
+      for (final Uuid id : ids) {
+        final ConversationHeader conversation = conversationById.first(id);
+        if (conversation != null) {
+          found.add(conversation);
+        }
+      }
+    }
+    return found;
+  }
+
+  public void add(Uuid conversation, Message message) {
     messageById.insert(message.id, message);
     messageByTime.insert(message.creation, message);
     messageByText.insert(message.content, message);
+
+    SequenceIndex sequence = messageSequences.get(conversation);
+    if (sequence == null) {
+      sequence = new SequenceIndex();
+      messageSequences.put(conversation, sequence);
+    }
+    sequence.append(message.id, message.creation.inMs());
+
+    addActivity(message.author, conversation);
   }
 
   public StoreAccessor<Uuid, Message> messageById() {
@@ -187,25 +254,67 @@ public final class Model {
     return messageByText;
   }
 
-  public Map<Uuid, Set<Uuid>> interestedByID() {
-    return watching;
+  // Get the message ids of a conversation in the order they were added. This
+  // will return null if the conversation is not known.
+  public SequenceIndex messageSequence(Uuid conversation) {
+    return messageSequences.get(conversation);
+  }
+
+  // Get the message at the given position in a conversation (0 is the first
+  // message). Returns null if there is no message at that position.
+  public Message messageAt(Uuid conversation, int sequence) {
+    final SequenceIndex messages = messageSequences.get(conversation);
+    final Uuid id = messages == null ? null : messages.at(sequence);
+    return id == null ? null : messageById.first(id);
+  }
+
+  public Uuid relayCursor() {
+    return relayCursor;
+  }
+
+  public void setRelayCursor(Uuid cursor) {
+    relayCursor = cursor;
+  }
+
+  // Get how many times the user has created or added to a conversation.
+  public int userActivityCount(Uuid user) {
+    final Activity activity = activityByUser.get(user);
+    return activity == null ? 0 : activity.count;
   }
 
-  public void addWatch(Uuid interest, Uuid owner) {
-    if (!watching.containsKey(interest)) {
-      watching.put(interest, new HashSet<>());
+  // Get the ids of the conversations the user created or added to after their
+  // activity count was "count", each once, in the order they were last active
+  // in them.
+  public Collection<Uuid> userActivitySince(Uuid user, int count) {
+    final Map<Integer, Uuid> found = new TreeMap<>();
+    final Activity activity = activityByUser.get(user);
+    if (activity != null && activity.count > count) {
+      for (final Map.Entry<Uuid, Integer> entry : activity.latest.entrySet()) {
+        if (entry.getValue() > count) {
+          found.put(entry.getValue(), entry.getKey());
+        }
+      }
     }
-    watching.get(interest).add(owner);
+    return found.values();
+  }
+
+  // Watching only records where the owner currently is in the interest's
+  // history. Nothing is done for watchers when something new is added.
+
+  public void addUserWatch(Uuid interest, Uuid owner) {
+    interestsByID.get(owner).addUserInterest(interest, userActivityCount(interest));
+  }
+
+  public void addConversationWatch(Uuid interest, Uuid owner) {
+    interestsByID.get(owner).addConversationInterest(interest, size(messageSequences.get(interest)));
   }
 
   public void removeUserWatch(Uuid interest, Uuid owner) {
-    watching.get(interest).remove(owner);
-    interestsByID.get(owner).userUpdates().clear(interest);
+    interestsByID.get(owner).removeUserInterest(interest);
   }
 
   public void removeConversationWatch(Uuid interest, Uuid owner) {
-    watching.get(interest).remove(owner);
-    interestsByID.get(owner).conversationUpdates().put(interest, 0);
+    interestsByID.get(owner).removeConversationInterest(interest);
   }
 
   public Map<Uuid, InterestStore> userInterests() {
@@ -250,23 +359,157 @@ public final class Model {
     return availablePlays;
   }
 
+  // FOOTPRINT
+  //
+  // Estimate how much heap each part of the model is holding. This walks every
+  // user, conversation, and message so it should only be called on request and
+  // not on a timer. Values in a Store's chain are counted even if their key
+  // has been cleared as the chain still holds on to them.
+  public ServerStats footprint() {
+
+    final Footprint footprint = new Footprint();
+
+    int users = 0;
+    long userBytes = 0;
+    for (final User user : userById.all()) {
+      users++;
+      userBytes += Footprint.object(3, 0) + Footprint.UUID + Footprint.TIME + Footprint.string(user.name);
+    }
+    footprint.add("users", users, userBytes);
+
+    int conversations = 0;
+    long conversationBytes = 0;
+    int roles = 0;
+    long roleBytes = 0;
+    for (final ConversationHeader conversation : conversationById.all()) {
+      conversations++;
+      conversationBytes += Footprint.object(6, 0) +
+                           Footprint.UUID +
+                           Footprint.TIME +
+                           Footprint.string(conversation.title);
+      roles += conversation.members.size() + conversation.owners.size();
+      roleBytes += Footprint.hashSet(conversation.members.size()) +
+                   Footprint.hashSet(conversation.owners.size());
+    }
+    footprint.add("conversations", conversations, conversationBytes);
+    footprint.add("conversation_roles", roles, roleBytes);
+
+    footprint.add("conversation_payloads",
+                  conversationPayloadById.links(),
+                  conversationPayloadById.links() * Footprint.object(3, 0));
+
+    int messages = 0;
+    long messageBytes = 0;
+    for (final Message message : messageById.all()) {
+      messages++;
+      messageBytes += Footprint.object(6, 0) +
+                      Footprint.UUID +
+                      Footprint.TIME +
+                      Footprint.string(message.content);
+    }
+    footprint.add("messages", messages, messageBytes);
+
+    footprint.addStore("user_by_id", userById.size(), userById.links());
+    footprint.addStore("user_by_text", userByText.size(), userByText.links());
+    footprint.addStore("conversation_by_id", conversationById.size(), conversationById.links());
+    footprint.addStore("conversation_by_text", conversationByText.size(), conversationByText.links());
+    footprint.addStore("conversation_payload_by_id", conversationPayloadById.size(), conversationPayloadById.links());
+    footprint.addStore("message_by_id", messageById.size(), messageById.links());
+    footprint.addStore("message_by_text", messageByText.size(), messageByText.links());
+
+    addIndex(footprint, "user_by_time", userByTime);
+    addIndex(footprint, "conversation_by_time", conversationByTime);
+    addIndex(footprint, "message_by_time", messageByTime);
+
+    addSequences(footprint, "message_sequences", messageSequences);
+
+    int activities = 0;
+    long activityBytes = Footprint.hashMap(activityByUser.size());
+    for (final Activity activity : activityByUser.values()) {
+      activities += activity.latest.size();
+      // Every mark is a boxed Integer.
+      activityBytes += Footprint.object(1, 4) +
+                       Footprint.hashMap(activity.latest.size()) +
+                       activity.latest.size() * Footprint.object(0, 4);
+    }
+    footprint.add("activity_by_user", activities, activityBytes);
+
+    int memberships = 0;
+    long membershipBytes = Footprint.hashMap(conversationsByUser.size());
+    for (final Set<Uuid> ids : conversationsByUser.values()) {
+      memberships += ids.size();
+      membershipBytes += Footprint.hashSet(ids.size());
+    }
+    footprint.add("conversations_by_user", memberships, membershipBytes);
+
+    int interests = 0;
+    long interestBytes = Footprint.hashMap(interestsByID.size());
+    for (final InterestStore store : interestsByID.values()) {
+      final int conversationInterests = store.conversationInterests();
+      final int userInterests = store.userInterests();
+      interests += conversationInterests + userInterests;
+      // Every cursor is a boxed Integer.
+      interestBytes += Footprint.object(2, 0) +
+                       Footprint.hashMap(conversationInterests) +
+                       Footprint.hashMap(userInterests) +
+                       (conversationInterests + userInterests) * Footprint.object(0, 4);
+    }
+    footprint.add("interests", interests, interestBytes);
+
+    long passwordBytes = Footprint.hashMap(passwords.size());
+    for (final String password : passwords.values()) {
+      passwordBytes += Footprint.string(password);
+    }
+    footprint.add("passwords", passwords.size(), passwordBytes);
+    footprint.add("admins",
+                  admins.size(),
+                  Footprint.hashSet(admins.size()) + Footprint.hashSet(newAdmins.size()));
+
+    return footprint.finish(messages);
+  }
+
+  private static void addIndex(Footprint footprint, String part, TimeIndex<?> index) {
+    // A long key and a value reference per slot.
+    footprint.add(part,
+                  index.size(),
+                  Footprint.object(2, 4) + Footprint.array(index.capacity(), 8) + Footprint.references(index.capacity()));
+  }
+
+  private static void addSequences(Footprint footprint, String part, Map<Uuid, SequenceIndex> sequences) {
+    int entries = 0;
+    long bytes = Footprint.hashMap(sequences.size());
+    for (final SequenceIndex sequence : sequences.values()) {
+      entries += sequence.size();
+      // An id reference and a long time per slot. The directory of chunks is
+      // small enough to leave out.
+      bytes += Footprint.object(2, 4) +
+               Footprint.references(sequence.capacity()) +
+               Footprint.array(sequence.capacity(), 8);
+    }
+    footprint.add(part, entries, bytes);
+  }
+
   public void clearStores() {
     userById = new Store<>(UUID_COMPARE);
-    userByTime = new Store<>(TIME_COMPARE);
+    userByTime = new TimeIndex<>();
     userByText = new Store<>(STRING_COMPARE);
 
     conversationById = new Store<>(UUID_COMPARE);
-    conversationByTime = new Store<>(TIME_COMPARE);
+    conversationByTime = new TimeIndex<>();
     conversationByText = new Store<>(STRING_COMPARE);
 
     conversationPayloadById = new Store<>(UUID_COMPARE);
 
     messageById = new Store<>(UUID_COMPARE);
-    messageByTime = new Store<>(TIME_COMPARE);
+    messageByTime = new TimeIndex<>();
     messageByText = new Store<>(STRING_COMPARE);
 
-    watching.clear();
+    messageSequences.clear();
+    conversationsByUser.clear();
+
+    activityByUser.clear();
     interestsByID.clear();
+    relayCursor = Uuid.NULL;
     newAdmins.clear();
     admins.clear();
     passwords.clear();
@@ -282,6 +525,7 @@ public final class Model {
     Uuid userId = user.id;
     ConversationHeader conversation = conversationById().first(conversationId);
     conversation.members.add(userId);
+    addToUser(userId, conversationId);
     return true;
   }
 
@@ -296,6 +540,7 @@ public final class Model {
       return false;
     }
     conversation.members.remove(userId);
+    removeFromUser(conversation, userId);
     return true;
   }
 
@@ -309,6 +554,7 @@ public final class Model {
     Uuid userId = user.id;
     ConversationHeader conversation = conversationById().first(conversationId);
     conversation.owners.add(userId);
+    addToUser(userId, conversationId);
     return true;
   }
 
@@ -323,6 +569,7 @@ public final class Model {
       return false;
     }
     conversation.owners.remove(userId);
+    removeFromUser(conversation, userId);
     return true;
   }
 
@@ -335,7 +582,50 @@ public final class Model {
   }
 
   public boolean isUserCreator(ConversationHeader conversation, Uuid userId) {
-    return conversation.creator.contains(userId);
+    return Uuid.equals(conversation.owner, userId);
+  }
+
+  private void addActivity(Uuid user, Uuid conversation) {
+    Activity activity = activityByUser.get(user);
+    if (activity == null) {
+      activity = new Activity();
+      activityByUser.put(user, activity);
+    }
+    activity.add(conversation);
+  }
+
+  private static int size(SequenceIndex index) {
+    return index == null ? 0 : index.size();
+  }
+
+  // Helper functions to keep the user to conversation index up to date.
+
+  private void addToUser(Uuid userId, Uuid conversationId) {
+    Set<Uuid> conversations = conversationsByUser.get(userId);
+    if (conversations == null) {
+      conversations = new HashSet<>();
+      conversationsByUser.put(userId, conversations);
+    }
+    conversations.add(conversationId);
+  }
+
+  // Only drop the conversation once the user has no remaining role in it.
+  private void removeFromUser(ConversationHeader conversation, Uuid userId) {
+    if (!isUserMember(conversation, userId) &&
+        !isUserOwner(conversation, userId) &&
+        !isUserCreator(conversation, userId)) {
+      removeFromUser(userId, conversation.id);
+    }
+  }
+
+  private void removeFromUser(Uuid userId, Uuid conversationId) {
+    final Set<Uuid> conversations = conversationsByUser.get(userId);
+    if (conversations != null) {
+      conversations.remove(conversationId);
+      if (conversations.isEmpty()) {
+        conversationsByUser.remove(userId);
+      }
+    }
   }
 
 }
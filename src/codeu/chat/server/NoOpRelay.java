@@ -56,6 +56,14 @@ public final class NoOpRelay implements Relay {
     return true;
   }
 
+  @Override
+  public boolean write(Uuid teamId,
+                       Secret teamSecret,
+                       Collection<? extends Relay.Outgoing> outgoing) {
+
+    return true;
+  }
+
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId,
                                        Secret teamSecret,
@@ -64,4 +72,33 @@ public final class NoOpRelay implements Relay {
 
     return new ArrayList<Relay.Bundle>();
   }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId,
+                                       Secret teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       long waitMs,
+                                       Relay.Filter filter) {
+
+    // Nothing will ever arrive so wait out the full time like a real relay
+    // would.
+    try {
+      Thread.sleep(Math.max(0, waitMs));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    return new ArrayList<Relay.Bundle>();
+  }
+
+  @Override
+  public Uuid catchUp(Uuid teamId,
+                      Secret teamSecret,
+                      Uuid root,
+                      Relay.Filter filter,
+                      Relay.Receiver receiver) {
+
+    return root;
+  }
 }
@@ -0,0 +1,458 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCodec;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// PARTITIONED RELAY
+//
+// A relay made from several relays (partitions) that each hold part of the
+// history. Every message is written to the partition picked by its
+// conversation id so a conversation always lives on one partition and its
+// messages stay in order. Reads go to every partition at once and the results
+// are merged by the time the relay got them.
+//
+// Each partition is an ordinary relay and counts its own bundle ids. The id
+// given back for a merged bundle is a cursor holding the id of the last bundle
+// seen from every partition, one link per partition from the root down, so a
+// server can keep using a single id as its place in the relay. Reading from an
+// id that is not such a cursor (for example one from before the relay was
+// partitioned) starts every partition from its earliest point.
+//
+// As partitions are written one at a time, a batch write that fails on one
+// partition may already be on another. The batch is reported as failed and
+// sent again, so readers may see those messages twice.
+public final class PartitionedRelay implements Relay {
+
+  private final static Logger.Log LOG = Logger.newLog(PartitionedRelay.class);
+
+  // A long poll that has been sent to a partition. If a read returns before
+  // every partition has answered, the rest are kept and used by the next read
+  // from the same place rather than being sent again.
+  private static final class Poll {
+
+    private final Uuid root;
+    private final Relay.Filter filter;
+    private final Future<Collection<Relay.Bundle>> result;
+
+    public Poll(Uuid root, Relay.Filter filter, Future<Collection<Relay.Bundle>> result) {
+      this.root = root;
+      this.filter = filter;
+      this.result = result;
+    }
+
+    public boolean matches(Uuid root, Relay.Filter filter) {
+      return Uuid.equals(this.root, root) && this.filter == filter;
+    }
+  }
+
+  private final List<Relay> partitions;
+
+  private final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable task) {
+      final Thread thread = new Thread(task, "partitioned-relay");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  // Signalled every time a long poll to a partition finishes.
+  private final Object answers = new Object();
+
+  // Guarded by itself.
+  private final Poll[] polls;
+
+  public PartitionedRelay(List<? extends Relay> partitions) {
+
+    if (partitions.isEmpty()) {
+      throw new IllegalArgumentException("A partitioned relay needs at least one partition");
+    }
+
+    this.partitions = new ArrayList<>(partitions);
+    this.polls = new Poll[partitions.size()];
+  }
+
+  @Override
+  public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+    return RelayCodec.component(id, text, time);
+  }
+
+  @Override
+  public boolean write(Uuid teamId,
+                       Secret teamSecret,
+                       Relay.Bundle.Component user,
+                       Relay.Bundle.Component conversation,
+                       Relay.Bundle.Component message) {
+
+    return partitions.get(partitionOf(conversation.id())).write(teamId,
+                                                                teamSecret,
+                                                                user,
+                                                                conversation,
+                                                                message);
+  }
+
+  @Override
+  public boolean write(final Uuid teamId,
+                       final Secret teamSecret,
+                       Collection<? extends Relay.Outgoing> outgoing) {
+
+    // Split the batch by partition, keeping the order within each one.
+    final Map<Integer, List<Relay.Outgoing>> split = new LinkedHashMap<>();
+
+    for (final Relay.Outgoing entry : outgoing) {
+      final int partition = partitionOf(entry.conversation().id());
+      if (!split.containsKey(partition)) {
+        split.put(partition, new ArrayList<Relay.Outgoing>());
+      }
+      split.get(partition).add(entry);
+    }
+
+    final List<Future<Boolean>> results = new ArrayList<>();
+
+    for (final Map.Entry<Integer, List<Relay.Outgoing>> entry : split.entrySet()) {
+
+      final Relay partition = partitions.get(entry.getKey());
+      final List<Relay.Outgoing> batch = entry.getValue();
+
+      results.add(workers.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return partition.write(teamId, teamSecret, batch);
+        }
+      }));
+    }
+
+    boolean result = true;
+
+    for (final Future<Boolean> sent : results) {
+      result &= get(sent, false);
+    }
+
+    return result;
+  }
+
+  @Override
+  public Collection<Relay.Bundle> read(final Uuid teamId,
+                                       final Secret teamSecret,
+                                       Uuid root,
+                                       final int range) {
+
+    final Uuid[] cursors = split(root);
+    final List<Future<Collection<Relay.Bundle>>> results = new ArrayList<>();
+
+    for (int i = 0; i < partitions.size(); i++) {
+
+      final Relay partition = partitions.get(i);
+      final Uuid cursor = cursors[i];
+
+      results.add(workers.submit(new Callable<Collection<Relay.Bundle>>() {
+        @Override
+        public Collection<Relay.Bundle> call() {
+          return partition.read(teamId, teamSecret, cursor, range);
+        }
+      }));
+    }
+
+    final List<Collection<Relay.Bundle>> found = new ArrayList<>();
+
+    for (final Future<Collection<Relay.Bundle>> result : results) {
+      found.add(get(result, new ArrayList<Relay.Bundle>()));
+    }
+
+    return merge(cursors, found, range);
+  }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId,
+                                       Secret teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       long waitMs,
+                                       Relay.Filter filter) {
+
+    final Uuid[] cursors = split(root);
+    final Poll[] waiting = new Poll[partitions.size()];
+
+    // Only the bookkeeping is guarded. The wait below happens without the
+    // lock so one long poll does not hold up every other read.
+    synchronized (polls) {
+      for (int i = 0; i < partitions.size(); i++) {
+        if (polls[i] == null || !polls[i].matches(cursors[i], filter)) {
+          polls[i] = new Poll(cursors[i],
+                              filter,
+                              startPoll(partitions.get(i), teamId, teamSecret, cursors[i], range, waitMs, filter));
+        }
+        waiting[i] = polls[i];
+      }
+    }
+
+    // Wait until one partition has something, or until every partition has
+    // answered with nothing.
+    final long deadline = System.currentTimeMillis() + Math.max(0, waitMs);
+
+    synchronized (answers) {
+      while (true) {
+
+        boolean pending = false;
+        boolean found = false;
+
+        for (final Poll poll : waiting) {
+          if (!poll.result.isDone()) {
+            pending = true;
+          } else if (!get(poll.result, new ArrayList<Relay.Bundle>()).isEmpty()) {
+            found = true;
+          }
+        }
+
+        final long remaining = deadline - System.currentTimeMillis();
+
+        if (found || !pending || remaining <= 0) {
+          break;
+        }
+
+        try {
+          answers.wait(remaining);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+
+    // Take every answer that has come back. Polls still waiting are kept for
+    // the next read.
+    final List<Collection<Relay.Bundle>> found = new ArrayList<>();
+
+    synchronized (polls) {
+      for (int i = 0; i < waiting.length; i++) {
+        if (waiting[i].result.isDone()) {
+          found.add(get(waiting[i].result, new ArrayList<Relay.Bundle>()));
+          if (polls[i] == waiting[i]) {
+            polls[i] = null;
+          }
+        } else {
+          found.add(new ArrayList<Relay.Bundle>());
+        }
+      }
+    }
+
+    return merge(cursors, found, range);
+  }
+
+  @Override
+  public Uuid catchUp(Uuid teamId,
+                      Secret teamSecret,
+                      Uuid root,
+                      Relay.Filter filter,
+                      final Relay.Receiver receiver) {
+
+    final Uuid[] cursors = split(root);
+    final boolean[] stopped = { false };
+
+    // Partitions are caught up one after another. Only the order within a
+    // partition matters as a conversation never spans two partitions.
+    for (int i = 0; i < partitions.size() && !stopped[0]; i++) {
+
+      final int partition = i;
+
+      partitions.get(i).catchUp(teamId, teamSecret, cursors[i], filter, new Relay.Receiver() {
+        @Override
+        public boolean onBundles(Collection<Relay.Bundle> bundles) {
+
+          final Uuid[] next = Arrays.copyOf(cursors, cursors.length);
+          final List<Relay.Bundle> batch = new ArrayList<>(bundles.size());
+
+          for (final Relay.Bundle bundle : bundles) {
+            batch.add(relabel(next, partition, bundle));
+          }
+
+          if (!receiver.onBundles(batch)) {
+            stopped[0] = true;
+            return false;
+          }
+
+          System.arraycopy(next, 0, cursors, 0, cursors.length);
+          return true;
+        }
+      });
+    }
+
+    return join(cursors);
+  }
+
+  private Future<Collection<Relay.Bundle>> startPoll(final Relay partition,
+                                                     final Uuid teamId,
+                                                     final Secret teamSecret,
+                                                     final Uuid root,
+                                                     final int range,
+                                                     final long waitMs,
+                                                     final Relay.Filter filter) {
+
+    final FutureTask<Collection<Relay.Bundle>> task = new FutureTask<Collection<Relay.Bundle>>(
+        new Callable<Collection<Relay.Bundle>>() {
+          @Override
+          public Collection<Relay.Bundle> call() {
+            return partition.read(teamId, teamSecret, root, range, waitMs, filter);
+          }
+        }) {
+      @Override
+      protected void done() {
+        synchronized (answers) {
+          answers.notifyAll();
+        }
+      }
+    };
+
+    workers.execute(task);
+
+    return task;
+  }
+
+  // PARTITION OF
+  //
+  // The partition that holds a conversation. The Uuid hash only depends on the
+  // ids in the chain so every server picks the same partition.
+  private int partitionOf(Uuid conversation) {
+    return (conversation.hashCode() & 0x7FFFFFFF) % partitions.size();
+  }
+
+  // MERGE
+  //
+  // Merge what was read from each partition by relay time, up to "range"
+  // bundles, giving each one the cursor for everything up to and including it.
+  private Collection<Relay.Bundle> merge(Uuid[] cursors,
+                                         List<Collection<Relay.Bundle>> found,
+                                         int range) {
+
+    final Uuid[] next = Arrays.copyOf(cursors, cursors.length);
+    final List<Iterator<Relay.Bundle>> iterators = new ArrayList<>();
+    final Relay.Bundle[] heads = new Relay.Bundle[found.size()];
+
+    for (int i = 0; i < found.size(); i++) {
+      iterators.add(found.get(i).iterator());
+      heads[i] = iterators.get(i).hasNext() ? iterators.get(i).next() : null;
+    }
+
+    final List<Relay.Bundle> result = new ArrayList<>();
+
+    while (result.size() < range) {
+
+      int earliest = -1;
+
+      for (int i = 0; i < heads.length; i++) {
+        if (heads[i] != null &&
+            (earliest < 0 || heads[i].time().compareTo(heads[earliest].time()) < 0)) {
+          earliest = i;
+        }
+      }
+
+      if (earliest < 0) {
+        break;
+      }
+
+      result.add(relabel(next, earliest, heads[earliest]));
+
+      final Iterator<Relay.Bundle> iterator = iterators.get(earliest);
+      heads[earliest] = iterator.hasNext() ? iterator.next() : null;
+    }
+
+    return result;
+  }
+
+  // Move the cursor for "partition" to "bundle" and give the bundle the new
+  // combined cursor as its id.
+  private static Relay.Bundle relabel(Uuid[] cursors, int partition, Relay.Bundle bundle) {
+
+    cursors[partition] = bundle.id();
+
+    return RelayCodec.bundle(join(cursors),
+                             bundle.time(),
+                             bundle.team(),
+                             bundle.user(),
+                             bundle.conversation(),
+                             bundle.message());
+  }
+
+  // SPLIT
+  //
+  // Get the cursor for each partition from a combined cursor.
+  private Uuid[] split(Uuid root) {
+
+    final Uuid[] cursors = new Uuid[partitions.size()];
+    Arrays.fill(cursors, Uuid.NULL);
+
+    int length = 0;
+    for (Uuid current = root; current != null; current = current.root()) {
+      length++;
+    }
+
+    if (length != cursors.length) {
+      if (root != null && !Uuid.equals(root, Uuid.NULL)) {
+        LOG.warning("%s is not a cursor for %d partitions. Starting from the beginning.",
+                    root, cursors.length);
+      }
+      return cursors;
+    }
+
+    Uuid current = root;
+    for (int i = cursors.length - 1; i >= 0; i--) {
+      cursors[i] = current.id() == 0 ? Uuid.NULL : Uuid.intern(null, current.id());
+      current = current.root();
+    }
+
+    return cursors;
+  }
+
+  // JOIN
+  //
+  // Combine the cursor for each partition into one id. Partition bundle ids
+  // are expected to be single links, as the relay makes them.
+  private static Uuid join(Uuid[] cursors) {
+    Uuid head = null;
+    for (final Uuid cursor : cursors) {
+      head = Uuid.intern(head, cursor.id());
+    }
+    return head;
+  }
+
+  private static <T> T get(Future<T> future, T otherwise) {
+    try {
+      return future.get();
+    } catch (Exception ex) {
+      LOG.error(ex, "Partition request failed");
+      return otherwise;
+    }
+  }
+}
@@ -0,0 +1,459 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCodec;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Timeline;
+import codeu.chat.util.Uuid;
+
+// RELAY OUTBOX
+//
+// Messages waiting to be sent to the relay. Messages are added to the outbox
+// and sent from the outbox's own timeline in batches so that many messages can
+// go out in one request and a slow or missing relay never holds up the server.
+//
+// If a batch cannot be sent it stays in the outbox and is tried again later,
+// waiting longer after each failure. Everything in the outbox is also kept in
+// a file so that unsent messages are not lost when the server restarts. The
+// file is written and forced to disk from a timeline of its own, once for
+// everything added since the last time, so adding a message never waits on
+// the disk.
+public final class RelayOutbox {
+
+  private static final Logger.Log LOG = Logger.newLog(RelayOutbox.class);
+
+  // Wait a little after the first message before sending so that messages
+  // that arrive close together go out in the same batch.
+  private static final long COALESCE_MS = 50;
+
+  private static final long MIN_RETRY_MS = 1000;  // 1 second
+  private static final long MAX_RETRY_MS = 60000;  // 1 minute
+
+  private static final int MAX_BATCH = 64;
+
+  private static final class Entry implements Relay.Outgoing {
+
+    private final Relay.Bundle.Component user;
+    private final Relay.Bundle.Component conversation;
+    private final Relay.Bundle.Component message;
+
+    public Entry(Relay.Bundle.Component user,
+                 Relay.Bundle.Component conversation,
+                 Relay.Bundle.Component message) {
+      this.user = user;
+      this.conversation = conversation;
+      this.message = message;
+    }
+
+    @Override
+    public Relay.Bundle.Component user() { return user; }
+
+    @Override
+    public Relay.Bundle.Component conversation() { return conversation; }
+
+    @Override
+    public Relay.Bundle.Component message() { return message; }
+  }
+
+  private final Relay relay;
+  private final Uuid team;
+  private final Secret secret;
+  private final File file;
+  private final int capacity;
+
+  private final Timeline timeline = new Timeline();
+  private final Timeline disk = new Timeline();
+
+  // All of the following are guarded by "this".
+  private final Deque<Entry> queue = new ArrayDeque<>();
+  private boolean scheduled = false;
+  private long retryMs = MIN_RETRY_MS;
+
+  // Records that have not been written to "file" yet, how many entries at the
+  // front of the file have been sent or dropped since it was last rewritten,
+  // and whether it needs to be rewritten next time.
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+  private boolean syncScheduled = false;
+  private int removed = 0;
+  private boolean rewrite = false;
+  private boolean stopped = false;
+
+  // The open end of "file". Only used while holding "diskLock", which is
+  // always taken before "this".
+  private final Object diskLock = new Object();
+  private FileOutputStream out = null;
+
+  // RELAY OUTBOX
+  //
+  // Create an outbox that sends to "relay" as "team" and keeps its contents in
+  // "file". Anything left in "file" from before is loaded and sent. Once there
+  // are "capacity" messages waiting, the oldest are dropped to make room.
+  public RelayOutbox(Relay relay, Uuid team, Secret secret, File file, int capacity) {
+
+    this.relay = relay;
+    this.team = team;
+    this.secret = secret;
+    this.file = file;
+    this.capacity = Math.max(1, capacity);
+
+    synchronized (diskLock) {
+      synchronized (this) {
+        load();
+        if (!queue.isEmpty()) {
+          LOG.info("Loaded %d unsent relay messages", queue.size());
+          schedule(0);
+        }
+      }
+    }
+  }
+
+  // ADD
+  //
+  // Add a message to the outbox. The message is saved and sent soon after
+  // this returns.
+  public synchronized void add(Uuid userId, String userName, Time userCreation,
+                               Uuid conversationId, String title, Time conversationCreation,
+                               Uuid messageId, String content, Time messageCreation) {
+
+    final Entry entry = new Entry(RelayCodec.component(userId, userName, userCreation),
+                                  RelayCodec.component(conversationId, title, conversationCreation),
+                                  RelayCodec.component(messageId, content, messageCreation));
+
+    if (queue.size() >= capacity) {
+      LOG.warning("Relay outbox is full. Dropping message %s", queue.peekFirst().message().id());
+      queue.removeFirst();
+      queue.addLast(entry);
+      record(entry, 1);
+    } else {
+      queue.addLast(entry);
+      record(entry, 0);
+    }
+
+    schedule(COALESCE_MS);
+  }
+
+  // SIZE
+  //
+  // Get the number of messages waiting to be sent.
+  public synchronized int size() {
+    return queue.size();
+  }
+
+  // SYNC
+  //
+  // Write everything added so far to the file and force it to disk.
+  void sync() {
+    synchronized (diskLock) {
+
+      final byte[] bytes;
+      final List<Entry> entries;
+
+      synchronized (this) {
+        syncScheduled = false;
+        if (rewrite || removed > capacity) {
+          entries = new ArrayList<>(queue);
+          bytes = null;
+          removed = 0;
+          rewrite = false;
+        } else {
+          entries = null;
+          bytes = pending.toByteArray();
+        }
+        pending = new ByteArrayOutputStream();
+      }
+
+      final boolean saved = entries == null ? append(bytes) : save(entries);
+
+      if (!saved) {
+        synchronized (this) {
+          rewrite = true;
+        }
+      }
+    }
+  }
+
+  // STOP
+  //
+  // Stop sending, save what is left, and close the file. Anything not yet sent
+  // stays in the file. A batch that is in flight may still be sent but will not
+  // be marked as sent in the file, so it will be sent again after a restart.
+  public void stop() {
+    timeline.stop();
+    synchronized (this) {
+      stopped = true;
+    }
+    sync();
+    synchronized (diskLock) {
+      close();
+    }
+    disk.stop();
+  }
+
+  private void schedule(long delayMs) {
+    if (!scheduled) {
+      scheduled = true;
+      timeline.scheduleIn(Timeline.Lane.RELAY, delayMs, new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      });
+    }
+  }
+
+  // FLUSH
+  //
+  // Send the oldest messages as one batch. The network call is made without
+  // holding the lock so messages can still be added while it is in flight.
+  private void flush() {
+
+    final List<Entry> batch = new ArrayList<>();
+
+    synchronized (this) {
+      scheduled = false;
+      for (final Entry entry : queue) {
+        if (batch.size() >= MAX_BATCH) {
+          break;
+        }
+        batch.add(entry);
+      }
+    }
+
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    boolean sent = false;
+    try {
+      sent = relay.write(team, secret, batch);
+    } catch (Exception ex) {
+      LOG.error(ex, "Failed to write batch to relay.");
+    }
+
+    synchronized (this) {
+      if (sent) {
+
+        // Only remove what was sent. The queue may have had its oldest
+        // messages dropped while the batch was in flight.
+        int count = 0;
+        for (final Entry entry : batch) {
+          if (queue.peekFirst() == entry) {
+            queue.removeFirst();
+            count++;
+          }
+        }
+        record(null, count);
+
+        retryMs = MIN_RETRY_MS;
+
+        if (!queue.isEmpty()) {
+          schedule(0);
+        }
+
+      } else {
+
+        LOG.warning("Relay write failed. Trying again in %d ms with %d messages waiting.",
+                    retryMs, queue.size());
+
+        schedule(retryMs);
+        retryMs = Math.min(MAX_RETRY_MS, retryMs * 2);
+      }
+    }
+  }
+
+  // The file is a series of records, each one written as its length followed
+  // by its bytes so that a partial record at the end can be spotted. A record
+  // is either an entry or, when the length is REMOVED, a count of entries that
+  // have been sent or dropped from the front. Nothing in the file is changed,
+  // only appended to. Once the removed entries outnumber "capacity" the file
+  // is rewritten with just what is left, so a full outbox rewrites it once
+  // every "capacity" messages rather than on every message.
+
+  private static final int REMOVED = -1;
+
+  // Queue a record to be written by the next sync. Must hold "this".
+  private void record(Entry entry, int count) {
+
+    if (stopped || (count == 0 && entry == null)) {
+      return;
+    }
+
+    removed += count;
+
+    try {
+      if (count > 0) {
+        Serializers.INTEGER.write(pending, REMOVED);
+        Serializers.INTEGER.write(pending, count);
+      }
+      if (entry != null) {
+        write(pending, entry);
+      }
+    } catch (IOException ex) {
+      // Writing to memory does not fail.
+      throw new IllegalStateException(ex);
+    }
+
+    if (!syncScheduled) {
+      syncScheduled = true;
+      disk.scheduleNow(Timeline.Lane.MAINTENANCE, new Runnable() {
+        @Override
+        public void run() {
+          sync();
+        }
+      });
+    }
+  }
+
+  // Must hold "diskLock".
+  private boolean append(byte[] bytes) {
+
+    if (bytes.length == 0) {
+      return true;
+    }
+
+    try {
+      if (out == null) {
+        out = new FileOutputStream(file, true);
+      }
+      out.write(bytes);
+      out.getChannel().force(false);
+      return true;
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to save relay outbox");
+      close();
+      return false;
+    }
+  }
+
+  // Must hold "diskLock".
+  private boolean save(Collection<Entry> entries) {
+
+    close();
+
+    // Write to a temporary file first so that a crash part way through does not
+    // lose what was already saved.
+    final File temp = new File(file.getPath() + ".tmp");
+
+    try (final FileOutputStream stream = new FileOutputStream(temp)) {
+      final OutputStream out = new BufferedOutputStream(stream);
+      for (final Entry entry : entries) {
+        write(out, entry);
+      }
+      out.flush();
+      stream.getChannel().force(false);
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to save relay outbox");
+      return false;
+    }
+
+    if (!temp.renameTo(file)) {
+      LOG.error("Failed to replace relay outbox file %s", file);
+      return false;
+    }
+
+    return true;
+  }
+
+  private void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to close relay outbox file %s", file);
+      }
+      out = null;
+    }
+  }
+
+  // Must hold "diskLock" and "this".
+  private void load() {
+
+    if (!file.exists()) {
+      return;
+    }
+
+    try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+
+        final int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException ex) {
+          break;
+        }
+
+        if (length == REMOVED) {
+          for (int count = in.readInt(); count > 0 && !queue.isEmpty(); count--) {
+            queue.removeFirst();
+          }
+          continue;
+        }
+
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        queue.addLast(read(new ByteArrayInputStream(bytes)));
+      }
+    } catch (IOException | RuntimeException ex) {
+      // Keep whatever was read before the problem. A crash part way through an
+      // append can leave a partial entry at the end of the file.
+      LOG.warning("Stopped loading relay outbox after %d messages (%s)", queue.size(), ex.toString());
+    }
+
+    while (queue.size() > capacity) {
+      queue.removeFirst();
+    }
+
+    // Rewrite the file so that any partial entry at the end is gone before
+    // more are appended.
+    rewrite = !save(queue);
+  }
+
+  private static void write(OutputStream out, Entry entry) throws IOException {
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    RelayCodec.OUTGOING.write(bytes, entry);
+
+    Serializers.INTEGER.write(out, bytes.size());
+    bytes.writeTo(out);
+  }
+
+  private static Entry read(InputStream in) throws IOException {
+    final Relay.Outgoing outgoing = RelayCodec.OUTGOING.read(in);
+    return new Entry(outgoing.user(), outgoing.conversation(), outgoing.message());
+  }
+}
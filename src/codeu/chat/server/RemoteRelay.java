@@ -14,6 +14,8 @@
 
 package codeu.chat.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -22,7 +24,9 @@ import java.util.Collection;
 
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCodec;
 import codeu.chat.common.Secret;
+import codeu.chat.util.Flight;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
@@ -35,98 +39,78 @@ public final class RemoteRelay implements Relay {
 
   private final static Logger.Log LOG = Logger.newLog(RemoteRelay.class);
 
-  private static final class Component implements Relay.Bundle.Component {
+  // How many batches the relay may send ahead of this server when catching up.
+  private static final int CATCH_UP_WINDOW = 4;
 
-    private final Uuid id;
-    private final Time time;
-    private final String text;
+  // A LEGACY relay only knows plain reads and single writes. Long polls are
+  // made from plain reads this far apart and catch up reads pages this big.
+  private static final long LEGACY_POLL_MS = 5000;
+  private static final int LEGACY_READ_RANGE = 32;
 
-    public Component(Uuid id, Time time, String text) {
-      this.id = id;
-      this.time = time;
-      this.text = text;
-    }
-
-    @Override
-    public Uuid id() { return id; }
+  // The codec version to use with the relay or 0 if the relay has not been
+  // asked yet.
+  private volatile int version = 0;
 
-    @Override
-    public Time time() { return time; }
+  private final ConnectionSource source;
 
-    @Override
-    public String text() { return text; }
+  public RemoteRelay(ConnectionSource source) {
+    this.source = source;
   }
 
-  private static final Serializer<Relay.Bundle.Component> COMPONENT_SERIALIZER =
-      new Serializer<Relay.Bundle.Component>() {
+  @Override
+  public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+    return RelayCodec.component(id, text, time);
+  }
 
-    @Override
-    public Relay.Bundle.Component read(InputStream in) throws IOException {
+  // VERSION
+  //
+  // Get the codec version to use with the relay, asking the relay the first
+  // time. A relay from before versions existed does not know the request and
+  // closes the connection without answering, which means LEGACY.
+  private int version() {
 
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final String text = Serializers.STRING.read(in);
-      final Time time = Time.SERIALIZER.read(in);
+    int current = version;
 
-      return new Component(id, time, text);
+    if (current != 0) {
+      return current;
     }
 
-    @Override
-    public void write(OutputStream out, Relay.Bundle.Component value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Serializers.STRING.write(out, value.text());
-      Time.SERIALIZER.write(out, value.time());
-    }
-  };
-
-  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
-      new Serializer<Relay.Bundle>() {
-
-    @Override
-    public Relay.Bundle read(InputStream in) throws IOException {
-
-      final Uuid id = Uuid.SERIALIZER.read(in);
-      final Time time = Time.SERIALIZER.read(in);
-      final Uuid team = Uuid.SERIALIZER.read(in);
-      final Relay.Bundle.Component user = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component conversation = COMPONENT_SERIALIZER.read(in);
-      final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
-
-      return new Relay.Bundle() {
-        @Override
-        public Uuid id() { return id; }
-        @Override
-        public Time time() { return time; }
-        @Override
-        public Uuid team() { return team; }
-        @Override
-        public Relay.Bundle.Component user() { return user; }
-        @Override
-        public Relay.Bundle.Component conversation() { return conversation; }
-        @Override
-        public Relay.Bundle.Component message() { return message; }
-      };
-    }
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_VERSION_REQUEST);
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_VERSION_RESPONSE) {
+        current = RelayCodec.negotiate(Serializers.INTEGER.read(connection.in()));
+      } else {
+        current = RelayCodec.LEGACY;
+      }
 
-    @Override
-    public void write(OutputStream out, Relay.Bundle value) throws IOException {
-      Uuid.SERIALIZER.write(out, value.id());
-      Time.SERIALIZER.write(out, value.time());
-      Uuid.SERIALIZER.write(out, value.team());
-      COMPONENT_SERIALIZER.write(out, value.user());
-      COMPONENT_SERIALIZER.write(out, value.conversation());
-      COMPONENT_SERIALIZER.write(out, value.message());
+    } catch (Exception ex) {
+      // Do not remember anything. The relay may just not be up yet.
+      LOG.error(ex, "Unexpected error when sending RELAY_VERSION_REQUEST");
+      return RelayCodec.LEGACY;
     }
-  };
 
-  private final ConnectionSource source;
+    LOG.info("Using relay codec version %d", current);
 
-  public RemoteRelay(ConnectionSource source) {
-    this.source = source;
+    version = current;
+    return current;
   }
 
-  @Override
-  public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
-    return new Component(id, time, text);
+  // Start a request, asking for "version" if it is newer than LEGACY.
+  private static void writeRequest(OutputStream out, int type, int version) throws IOException {
+    if (version > RelayCodec.LEGACY) {
+      Serializers.INTEGER.write(out, NetworkCode.RELAY_VERSIONED_REQUEST);
+      Serializers.INTEGER.write(out, version);
+    }
+    Serializers.INTEGER.write(out, type);
+  }
+
+  // Called when the relay did not answer a request the way it should have. It
+  // may have been replaced by one that speaks a different version so ask again
+  // next time.
+  private void forgetVersion() {
+    version = 0;
   }
 
   @Override
@@ -137,18 +121,22 @@ public final class RemoteRelay implements Relay {
                        Relay.Bundle.Component message) {
 
     boolean result = false;
+    boolean failed = true;
+
+    final Flight.Event event = Flight.RELAY_REQUEST.begin();
 
     try (final Connection connection = source.connect()) {
 
       Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_REQUEST);
       Uuid.SERIALIZER.write(connection.out(), teamId);
       Secret.SERIALIZER.write(connection.out(), teamSecret);
-      COMPONENT_SERIALIZER.write(connection.out(), user);
-      COMPONENT_SERIALIZER.write(connection.out(), conversation);
-      COMPONENT_SERIALIZER.write(connection.out(), message);
+      RelayCodec.COMPONENT.write(connection.out(), user);
+      RelayCodec.COMPONENT.write(connection.out(), conversation);
+      RelayCodec.COMPONENT.write(connection.out(), message);
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_WRITE_RESPONSE) {
         result = Serializers.BOOLEAN.read(connection.in());
+        failed = false;
       } else {
         LOG.error("Server did not handle RELAY_WRITE_REQUEST");
       }
@@ -156,6 +144,49 @@ public final class RemoteRelay implements Relay {
       LOG.error(ex, "Unexpected error when sending RELAY_WRITE_REQUEST");;
     }
 
+    event.set("operation", "write").set("bundles", 1).set("failed", failed).commit();
+
+    return result;
+  }
+
+  @Override
+  public boolean write(Uuid teamId, Secret teamSecret, Collection<? extends Relay.Outgoing> outgoing) {
+
+    boolean result = false;
+
+    final int version = version();
+
+    if (version == RelayCodec.LEGACY) {
+      return writeEach(teamId, teamSecret, outgoing);
+    }
+
+    boolean failed = true;
+    final Flight.Event event = Flight.RELAY_REQUEST.begin();
+
+    try (final Connection connection = source.connect()) {
+
+      // Buffer the whole batch so it goes out in as few packets as possible.
+      final OutputStream out = new BufferedOutputStream(connection.out());
+
+      writeRequest(out, NetworkCode.RELAY_WRITE_BATCH_REQUEST, version);
+      Uuid.SERIALIZER.write(out, teamId);
+      Secret.SERIALIZER.write(out, teamSecret);
+      RelayCodec.outgoing(version).write(out, outgoing);
+      out.flush();
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_WRITE_BATCH_RESPONSE) {
+        result = Serializers.BOOLEAN.read(connection.in());
+        failed = false;
+      } else {
+        LOG.error("Server did not handle RELAY_WRITE_BATCH_REQUEST");
+        forgetVersion();
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_WRITE_BATCH_REQUEST");
+    }
+
+    event.set("operation", "write_batch").set("bundles", outgoing.size()).set("failed", failed).commit();
+
     return result;
   }
 
@@ -164,23 +195,212 @@ public final class RemoteRelay implements Relay {
 
     final Collection<Relay.Bundle> result = new ArrayList<>();
 
+    final int version = version();
+
+    boolean failed = true;
+    final Flight.Event event = Flight.RELAY_REQUEST.begin();
+
     try (final Connection connection = source.connect()) {
 
-      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_REQUEST);
+      writeRequest(connection.out(), NetworkCode.RELAY_READ_REQUEST, version);
       Uuid.SERIALIZER.write(connection.out(), teamId);
       Secret.SERIALIZER.write(connection.out(), teamSecret);
       Uuid.SERIALIZER.write(connection.out(), root);
       Serializers.INTEGER.write(connection.out(), range);
 
-      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_READ_RESPONSE) {
-        result.addAll(Serializers.collection(BUNDLE_SERIALIZER).read(connection.in()));
+      final InputStream in = new BufferedInputStream(connection.in());
+
+      if (Serializers.INTEGER.read(in) == NetworkCode.RELAY_READ_RESPONSE) {
+        result.addAll(RelayCodec.bundles(version).read(in));
+        failed = false;
       } else {
         LOG.error("Server did not handle RELAY_READ_REQUEST");
+        forgetVersion();
       }
     } catch (Exception ex) {
       LOG.error(ex, "Unexpected error when sending RELAY_READ_REQUEST");
     }
 
+    event.set("operation", "read").set("bundles", result.size()).set("failed", failed).commit();
+
+    return result;
+  }
+
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId,
+                                       Secret teamSecret,
+                                       Uuid root,
+                                       int range,
+                                       long waitMs,
+                                       Relay.Filter filter) {
+
+    final int version = version();
+
+    if (version == RelayCodec.LEGACY) {
+      return poll(teamId, teamSecret, root, range, waitMs);
+    }
+
+    final Collection<Relay.Bundle> result = new ArrayList<>();
+
+    boolean failed = true;
+    final Flight.Event event = Flight.RELAY_REQUEST.begin();
+
+    try (final Connection connection = source.connect()) {
+
+      writeRequest(connection.out(), NetworkCode.RELAY_POLL_REQUEST, version);
+      Uuid.SERIALIZER.write(connection.out(), teamId);
+      Secret.SERIALIZER.write(connection.out(), teamSecret);
+      Uuid.SERIALIZER.write(connection.out(), root);
+      Serializers.INTEGER.write(connection.out(), range);
+      Serializers.LONG.write(connection.out(), waitMs);
+      Relay.Filter.SERIALIZER.write(connection.out(), filter);
+
+      final InputStream in = new BufferedInputStream(connection.in());
+
+      if (Serializers.INTEGER.read(in) == NetworkCode.RELAY_POLL_RESPONSE) {
+        result.addAll(RelayCodec.bundles(version).read(in));
+        failed = false;
+      } else {
+        LOG.error("Server did not handle RELAY_POLL_REQUEST");
+        forgetVersion();
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_POLL_REQUEST");
+    }
+
+    event.set("operation", "poll").set("bundles", result.size()).set("failed", failed).commit();
+
     return result;
   }
+
+  @Override
+  public Uuid catchUp(Uuid teamId, Secret teamSecret, Uuid root, Relay.Filter filter, Relay.Receiver receiver) {
+
+    final int version = version();
+
+    if (version == RelayCodec.LEGACY) {
+      return readAll(teamId, teamSecret, root, receiver);
+    }
+
+    Uuid last = root;
+
+    final Serializer<Collection<Relay.Bundle>> serializer = RelayCodec.bundles(version);
+
+    int bundles = 0;
+    boolean failed = true;
+    final Flight.Event event = Flight.RELAY_REQUEST.begin();
+
+    try (final Connection connection = source.connect()) {
+
+      writeRequest(connection.out(), NetworkCode.RELAY_CATCH_UP_REQUEST, version);
+      Uuid.SERIALIZER.write(connection.out(), teamId);
+      Secret.SERIALIZER.write(connection.out(), teamSecret);
+      Uuid.SERIALIZER.write(connection.out(), root);
+      Relay.Filter.SERIALIZER.write(connection.out(), filter);
+      Serializers.INTEGER.write(connection.out(), CATCH_UP_WINDOW);
+
+      final InputStream in = new BufferedInputStream(connection.in());
+
+      if (Serializers.INTEGER.read(in) == NetworkCode.RELAY_CATCH_UP_RESPONSE) {
+
+        while (true) {
+
+          final Collection<Relay.Bundle> batch = serializer.read(in);
+
+          if (batch.isEmpty()) {
+            break;
+          }
+
+          if (!receiver.onBundles(batch)) {
+            // Closing the connection will stop the relay.
+            break;
+          }
+
+          for (final Relay.Bundle bundle : batch) {
+            last = bundle.id();
+          }
+          bundles += batch.size();
+
+          // Done with this batch so let the relay send another.
+          Serializers.INTEGER.write(connection.out(), 1);
+        }
+
+        failed = false;
+
+      } else {
+        LOG.error("Server did not handle RELAY_CATCH_UP_REQUEST");
+        forgetVersion();
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_CATCH_UP_REQUEST");
+    }
+
+    event.set("operation", "catch_up").set("bundles", bundles).set("failed", failed).commit();
+
+    return last;
+  }
+
+  // LEGACY
+  //
+  // A relay from before versions existed does not know batch writes, long
+  // polls or catch up and answers them with NO_MESSAGE. These do the same
+  // work with the plain reads and single writes that it does know. Filters
+  // are not applied: a plain read cannot skip bundles, and leaving some out
+  // would stop the cursor from moving past them. Callers already drop bundles
+  // they have seen.
+
+  private boolean writeEach(Uuid teamId, Secret teamSecret, Collection<? extends Relay.Outgoing> outgoing) {
+    for (final Relay.Outgoing entry : outgoing) {
+      if (!write(teamId, teamSecret, entry.user(), entry.conversation(), entry.message())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Read every LEGACY_POLL_MS until something comes back or "waitMs" is up.
+  private Collection<Relay.Bundle> poll(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs) {
+
+    final long deadline = System.currentTimeMillis() + waitMs;
+
+    while (true) {
+
+      final Collection<Relay.Bundle> result = read(teamId, teamSecret, root, range);
+      final long remaining = deadline - System.currentTimeMillis();
+
+      if (!result.isEmpty() || remaining <= 0) {
+        return result;
+      }
+
+      try {
+        Thread.sleep(Math.min(remaining, LEGACY_POLL_MS));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return result;
+      }
+    }
+  }
+
+  // Read page after page until a short one or the receiver stops.
+  private Uuid readAll(Uuid teamId, Secret teamSecret, Uuid root, Relay.Receiver receiver) {
+
+    Uuid last = root;
+
+    while (true) {
+
+      final Collection<Relay.Bundle> page = read(teamId, teamSecret, last, LEGACY_READ_RANGE);
+
+      if (page.isEmpty() || !receiver.onBundles(page)) {
+        return last;
+      }
+
+      for (final Relay.Bundle bundle : page) {
+        last = bundle.id();
+      }
+
+      if (page.size() < LEGACY_READ_RANGE) {
+        return last;
+      }
+    }
+  }
 }
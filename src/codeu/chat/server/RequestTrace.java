@@ -0,0 +1,95 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import codeu.chat.common.SlowRequest;
+import codeu.chat.util.Time;
+
+// REQUEST TRACE
+//
+// Where the time went while handling one request. The server times the phases
+// it can see from the outside (waiting on the timeline, reading the request,
+// and writing the response) and code further down adds the time it spends
+// flushing the log or hashing passwords to the trace running on its thread.
+// Whatever is left between the end of the request and the start of the
+// response is model work.
+final class RequestTrace {
+
+  enum Phase { QUEUE, READ, MODEL, FLUSH, HASH_WAIT, HASH, WRITE }
+
+  private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+
+  private final long[] nanos = new long[Phase.values().length];
+
+  // Start a trace on this thread. It must be stopped on the same thread.
+  static RequestTrace start() {
+    final RequestTrace trace = new RequestTrace();
+    CURRENT.set(trace);
+    return trace;
+  }
+
+  // Carry on with a trace on another thread, once it has been stopped on the
+  // thread it was started on.
+  void resume() {
+    CURRENT.set(this);
+  }
+
+  void stop() {
+    CURRENT.remove();
+  }
+
+  // Add time to the trace running on this thread, if there is one. Work that
+  // is not for a request (like adding bundles from the relay) is not counted
+  // anywhere.
+  static void add(Phase phase, long nanos) {
+    final RequestTrace trace = CURRENT.get();
+    if (trace != null) {
+      trace.nanos[phase.ordinal()] += nanos;
+    }
+  }
+
+  void set(Phase phase, long nanos) {
+    this.nanos[phase.ordinal()] = nanos;
+  }
+
+  long get(Phase phase) {
+    return nanos[phase.ordinal()];
+  }
+
+  // Split the time the request spent after leaving the timeline queue into
+  // reading the request, working on it, and writing the response. Time already
+  // put down to flushing or hashing is taken out of the model work. Commands
+  // that write part of their response before they are done will have some of
+  // their work counted as writing. A read or write time of 0 means there was
+  // none.
+  void split(long start, long lastRead, long firstWrite, long end) {
+
+    final long read = lastRead == 0 ? start : lastRead;
+    final long write = firstWrite == 0 ? end : Math.max(read, firstWrite);
+
+    set(Phase.READ, read - start);
+    set(Phase.WRITE, end - write);
+    set(Phase.MODEL, Math.max(0, write - read - get(Phase.FLUSH) - get(Phase.HASH_WAIT) - get(Phase.HASH)));
+  }
+
+  SlowRequest toSlowRequest(String command, long totalNanos, boolean failed) {
+    final SlowRequest request = new SlowRequest(Time.now(), command, totalNanos / 1000, failed);
+    for (final Phase phase : Phase.values()) {
+      request.put(phase.name().toLowerCase(), nanos[phase.ordinal()] / 1000);
+    }
+    return request;
+  }
+}
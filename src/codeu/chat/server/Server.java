@@ -21,6 +21,8 @@ import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
 import codeu.chat.common.ServerInfo;
+import codeu.chat.common.ServerStats;
+import codeu.chat.common.SlowRequest;
 import codeu.chat.common.User;
 import codeu.chat.util.*;
 import codeu.chat.util.connections.Connection;
@@ -28,29 +30,93 @@ import codeu.chat.util.connections.Connection;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Field;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class Server {
 
+  // A command reads its request from "request.in" and writes the response to
+  // "request.out". A command that finishes on another thread (see hash())
+  // also needs the request itself.
   private interface Command {
-    void onMessage(InputStream in, OutputStream out) throws IOException;
+    void onMessage(Request request) throws IOException;
+  }
+
+  // COMMAND STATS
+  //
+  // What one kind of request has cost the server so far. Latency covers
+  // reading the request, handling it, and writing the response. Safe to use
+  // from any thread.
+  private static final class CommandStats {
+
+    public final String name;
+    public final Histogram latency = new Histogram();
+    public final AtomicLong errors = new AtomicLong();
+    public final AtomicLong bytesIn = new AtomicLong();
+    public final AtomicLong bytesOut = new AtomicLong();
+
+    public CommandStats(String name) {
+      this.name = name;
+    }
   }
 
   private static final Logger.Log LOG = Logger.newLog(Server.class);
 
+  // The relay is polled with long polls. Each poll waits on the relay for up to
+  // RELAY_POLL_WAIT_MS for new bundles and a new poll is sent as soon as one
+  // returns. A poll that fails or comes back empty without waiting (a relay that
+  // is down or does not park polls) backs off, starting at RELAY_REFRESH_MS and
+  // doubling each time in a row up to RELAY_MAX_BACKOFF_MS.
   private static final int RELAY_REFRESH_MS = 5000;  // 5 seconds
+  private static final int RELAY_MAX_BACKOFF_MS = 60000;  // 1 minute
+  private static final int RELAY_POLL_WAIT_MS = 20000;  // 20 seconds
+  private static final int RELAY_READ_RANGE = 32;
+
+  // The relay gives out at most 16 bundles per read, so getting that many
+  // back means this server is behind and should catch up instead of polling.
+  private static final int RELAY_FULL_PAGE = 16;
 
+  // Client requests run in the interactive lane and bundles from the relay are
+  // added to the model in the relay lane so that a burst from the relay only
+  // gets some of the turns while clients are waiting.
   private final Timeline timeline = new Timeline();
 
+  // Polling the relay blocks while the relay waits for new bundles, so it gets
+  // its own timeline to avoid holding up client requests. Bundles are still
+  // added to the model on "timeline".
+  private final Timeline relayTimeline = new Timeline();
+
   private final Map<Integer, Command> commands = new HashMap<>();
 
+  // Filled in once every command is registered and not changed after that.
+  private final Map<Integer, CommandStats> commandStats = new TreeMap<>();
+  private final AtomicLong unknownCommands = new AtomicLong();
+
+  // How long each poll of the relay took, in microseconds.
+  private final Histogram relayPollTimes = new Histogram();
+
   private final Uuid id;
   private final Secret secret;
 
@@ -59,17 +125,78 @@ public final class Server {
   private final Controller controller;
 
   private final Relay relay;
+  private final RelayOutbox outbox;
   private Uuid lastSeen = Uuid.NULL;
 
+  // Ids of messages this server already has from the relay (or sent to it).
+  // Bundles for these are dropped before looking anything up in the model.
+  // Only used on the main timeline.
+  private static final int SEEN_MESSAGES = 8192;
+  private final Set<Uuid> seenMessages = Collections.newSetFromMap(
+      new LinkedHashMap<Uuid, Boolean>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Uuid, Boolean> eldest) {
+          return size() > SEEN_MESSAGES;
+        }
+      });
+
+  // The most messages that will wait to be sent to the relay before the oldest
+  // are dropped.
+  private static final int RELAY_OUTBOX_CAPACITY = 4096;
+
+  // How often a summary of the server's stats is written to the log.
+  private static final int STATS_LOG_MS = 60000;  // 1 minute
+
+  // Requests that take longer than SLOW_REQUEST_MS, from being accepted to the
+  // connection being closed, are logged with a breakdown of where the time
+  // went. The last SLOW_REQUEST_HISTORY of them are kept for clients to see.
+  private static final int SLOW_REQUEST_MS = 250;
+  static final int SLOW_REQUEST_HISTORY = 32;
+  private final Deque<SlowRequest> slowRequests = new ArrayDeque<>();
+
+  // Password hashing (PBKDF2) is slow on purpose. It is done by a pool of its
+  // own, using at most half the processors, so that a burst of logins waits
+  // there instead of on the timeline in front of every other request. Once
+  // HASH_QUEUE requests are waiting, more are turned away.
+  private static final int HASH_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  private static final int HASH_QUEUE = 64;
+  private final ThreadPoolExecutor hashers;
+  private final AtomicLong rejectedHashes = new AtomicLong();
+
   private static Queue<String> logBuffer = new ArrayDeque<>();
 
   public Server(final Uuid id, final Secret secret, final Relay relay, File persistentPath) {
+    this(id, secret, relay, persistentPath, new ThreadPoolExecutor(
+        HASH_THREADS,
+        HASH_THREADS,
+        0,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(HASH_QUEUE),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable task) {
+            final Thread thread = new Thread(task, "password-hasher");
+            thread.setDaemon(true);
+            return thread;
+          }
+        }));
+  }
+
+  // For tests that need to control the hashing pool.
+  Server(final Uuid id, final Secret secret, final Relay relay, File persistentPath, ThreadPoolExecutor hashers) {
 
     this.id = id;
+    this.hashers = hashers;
     this.secret = secret;
     this.controller = new Controller(id, model, persistentPath);
     this.relay = relay;
 
+    // Carry on reading the relay from where the log says this server got to.
+    this.lastSeen = model.relayCursor();
+    this.outbox = new RelayOutbox(relay, id, secret, new File(persistentPath, "outbox.bin"), RELAY_OUTBOX_CAPACITY);
+
     if (!model.userById().all().iterator().hasNext()) {
       User user = controller.newUser("admin");
       model.addAdmin(user.id);
@@ -78,85 +205,126 @@ public final class Server {
     //Request info version - user asks server for current info version
     this.commands.put(NetworkCode.SERVER_INFO_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        Serializers.INTEGER.write(out, NetworkCode.SERVER_INFO_RESPONSE);
+      public void onMessage(Request request) throws IOException {
+        Serializers.INTEGER.write(request.out, NetworkCode.SERVER_INFO_RESPONSE);
         final ServerInfo serverInfo = view.getInfo();
-        Uuid.SERIALIZER.write(out, serverInfo.getVersion());
-        Time.SERIALIZER.write(out, serverInfo.getStartTime());
+        Uuid.SERIALIZER.write(request.out, serverInfo.getVersion());
+        Time.SERIALIZER.write(request.out, serverInfo.getStartTime());
+      }
+    });
+
+    // Stats - A client wants to know how busy the server is.
+    this.commands.put(NetworkCode.STATS_REQUEST, new Command() {
+      @Override
+      public void onMessage(Request request) throws IOException {
+        Serializers.INTEGER.write(request.out, NetworkCode.STATS_RESPONSE);
+        ServerStats.SERIALIZER.write(request.out, stats());
+      }
+    });
+
+    // Footprint - A client wants to know how much heap the model is using.
+    this.commands.put(NetworkCode.FOOTPRINT_REQUEST, new Command() {
+      @Override
+      public void onMessage(Request request) throws IOException {
+        Serializers.INTEGER.write(request.out, NetworkCode.FOOTPRINT_RESPONSE);
+        ServerStats.SERIALIZER.write(request.out, model.footprint());
+      }
+    });
+
+    // Slow Requests - A client wants to know which recent requests were slow
+    // and why.
+    this.commands.put(NetworkCode.SLOW_REQUESTS_REQUEST, new Command() {
+      @Override
+      public void onMessage(Request request) throws IOException {
+        Serializers.INTEGER.write(request.out, NetworkCode.SLOW_REQUESTS_RESPONSE);
+        Serializers.collection(SlowRequest.SERIALIZER).write(request.out, slowRequests());
       }
     });
 
     // New Message - A client wants to add a new message to the back end.
     this.commands.put(NetworkCode.NEW_MESSAGE_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
-        final Uuid author = Uuid.SERIALIZER.read(in);
-        final Uuid conversation = Uuid.SERIALIZER.read(in);
-        final String content = Serializers.STRING.read(in);
+        final Uuid author = Uuid.SERIALIZER.read(request.in);
+        final Uuid conversation = Uuid.SERIALIZER.read(request.in);
+        final String content = Serializers.STRING.read(request.in);
 
         final Message message = controller.newMessage(author, conversation, content);
 
-        Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGE_RESPONSE);
-        Serializers.nullable(Message.SERIALIZER).write(out, message);
+        Serializers.INTEGER.write(request.out, NetworkCode.NEW_MESSAGE_RESPONSE);
+        Serializers.nullable(Message.SERIALIZER).write(request.out, message);
 
-        timeline.scheduleNow(createSendToRelayEvent(
-                author,
-                conversation,
-                message.id));
+        if (message != null) {
+          sendToRelay(author, conversation, message);
+        }
       }
     });
 
     // New User - A client wants to add a new user to the back end.
     this.commands.put(NetworkCode.NEW_USER_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
-        final String name = Serializers.STRING.read(in);
+        final String name = Serializers.STRING.read(request.in);
 
         final User user = controller.newUser(name);
 
-        Serializers.INTEGER.write(out, NetworkCode.NEW_USER_RESPONSE);
-        Serializers.nullable(User.SERIALIZER).write(out, user);
+        Serializers.INTEGER.write(request.out, NetworkCode.NEW_USER_RESPONSE);
+        Serializers.nullable(User.SERIALIZER).write(request.out, user);
       }
     });
 
     // New Conversation - A client wants to add a new conversation to the back end.
     this.commands.put(NetworkCode.NEW_CONVERSATION_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
-        final String title = Serializers.STRING.read(in);
-        final Uuid owner = Uuid.SERIALIZER.read(in);
+        final String title = Serializers.STRING.read(request.in);
+        final Uuid owner = Uuid.SERIALIZER.read(request.in);
 
         final ConversationHeader conversation = controller.newConversation(title, owner);
 
-        Serializers.INTEGER.write(out, NetworkCode.NEW_CONVERSATION_RESPONSE);
-        Serializers.nullable(ConversationHeader.SERIALIZER).write(out, conversation);
+        Serializers.INTEGER.write(request.out, NetworkCode.NEW_CONVERSATION_RESPONSE);
+        Serializers.nullable(ConversationHeader.SERIALIZER).write(request.out, conversation);
       }
     });
 
     // Get Users - A client wants to get all the users from the back end.
     this.commands.put(NetworkCode.GET_USERS_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
         final Collection<User> users = view.getUsers();
 
-        Serializers.INTEGER.write(out, NetworkCode.GET_USERS_RESPONSE);
-        Serializers.collection(User.SERIALIZER).write(out, users);
+        Serializers.INTEGER.write(request.out, NetworkCode.GET_USERS_RESPONSE);
+        Serializers.collection(User.SERIALIZER).write(request.out, users);
       }
     });
 
     // Get Conversations - A client wants to get all the conversations from the back end.
     this.commands.put(NetworkCode.GET_ALL_CONVERSATIONS_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
         final Collection<ConversationHeader> conversations = view.getConversations();
 
-        Serializers.INTEGER.write(out, NetworkCode.GET_ALL_CONVERSATIONS_RESPONSE);
-        Serializers.collection(ConversationHeader.SERIALIZER).write(out, conversations);
+        Serializers.INTEGER.write(request.out, NetworkCode.GET_ALL_CONVERSATIONS_RESPONSE);
+        Serializers.collection(ConversationHeader.SERIALIZER).write(request.out, conversations);
+      }
+    });
+
+    // Get My Conversations - A client wants the conversations that a user created, owns, or
+    //                        is a member of.
+    this.commands.put(NetworkCode.GET_MY_CONVERSATIONS_REQUEST, new Command() {
+      @Override
+      public void onMessage(Request request) throws IOException {
+
+        final Uuid user = Uuid.SERIALIZER.read(request.in);
+        final Collection<ConversationHeader> conversations = view.getMyConversations(user);
+
+        Serializers.INTEGER.write(request.out, NetworkCode.GET_MY_CONVERSATIONS_RESPONSE);
+        Serializers.collection(ConversationHeader.SERIALIZER).write(request.out, conversations);
       }
     });
 
@@ -166,44 +334,44 @@ public final class Server {
     //                           wants to get a subset of the payloads.
     this.commands.put(NetworkCode.GET_CONVERSATIONS_BY_ID_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
-        final Collection<Uuid> ids = Serializers.collection(Uuid.SERIALIZER).read(in);
+        final Collection<Uuid> ids = Serializers.collection(Uuid.SERIALIZER).read(request.in);
         final Collection<ConversationPayload> conversations = view.getConversationPayloads(ids);
 
-        Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE);
-        Serializers.collection(ConversationPayload.SERIALIZER).write(out, conversations);
+        Serializers.INTEGER.write(request.out, NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE);
+        Serializers.collection(ConversationPayload.SERIALIZER).write(request.out, conversations);
       }
     });
 
     // Get Messages By Id - A client wants to get a subset of the messages from the back end.
     this.commands.put(NetworkCode.GET_MESSAGES_BY_ID_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
-        final Collection<Uuid> ids = Serializers.collection(Uuid.SERIALIZER).read(in);
+        final Collection<Uuid> ids = Serializers.collection(Uuid.SERIALIZER).read(request.in);
         final Collection<Message> messages = view.getMessages(ids);
 
-        Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
-        Serializers.collection(Message.SERIALIZER).write(out, messages);
+        Serializers.INTEGER.write(request.out, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
+        Serializers.collection(Message.SERIALIZER).write(request.out, messages);
       }
     });
 
     // Clean - A client wants to clean the log
     this.commands.put(NetworkCode.CLEAN_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
         controller.clean(persistentPath);
 
-        Serializers.INTEGER.write(out, NetworkCode.CLEAN_RESPONSE);
+        Serializers.INTEGER.write(request.out, NetworkCode.CLEAN_RESPONSE);
       }
     });
 
     // Write to file - Write remaining contents of queue to file when client exits chat
     this.commands.put(NetworkCode.WRITE_REST_OF_QUEUE_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
         try {
 
           File log = new File(persistentPath, "log.txt");
@@ -218,7 +386,7 @@ public final class Server {
           e.printStackTrace();
         }
 
-        Serializers.INTEGER.write(out, NetworkCode.WRITE_REST_OF_QUEUE_RESPONSE);
+        Serializers.INTEGER.write(request.out, NetworkCode.WRITE_REST_OF_QUEUE_RESPONSE);
 
       }
     });
@@ -226,52 +394,52 @@ public final class Server {
     // Add user interest - A client wants to add a user interest
     this.commands.put(NetworkCode.NEW_USER_INTEREST_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
-        final String name = Serializers.STRING.read(in);
-        final Uuid owner = Uuid.SERIALIZER.read(in);
+        final String name = Serializers.STRING.read(request.in);
+        final Uuid owner = Uuid.SERIALIZER.read(request.in);
         controller.newUserInterest(name, owner);
 
-        Serializers.INTEGER.write(out, NetworkCode.NEW_USER_INTEREST_RESPONSE);
+        Serializers.INTEGER.write(request.out, NetworkCode.NEW_USER_INTEREST_RESPONSE);
       }
     });
 
     // Add conversation interest - A client wants to add a conversation interest
     this.commands.put(NetworkCode.NEW_CONVERSATION_INTEREST_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
-        final String title = Serializers.STRING.read(in);
-        final Uuid owner = Uuid.SERIALIZER.read(in);
+        final String title = Serializers.STRING.read(request.in);
+        final Uuid owner = Uuid.SERIALIZER.read(request.in);
         controller.newConversationInterest(title, owner);
 
-        Serializers.INTEGER.write(out, NetworkCode.NEW_CONVERSATION_INTEREST_RESPONSE);
+        Serializers.INTEGER.write(request.out, NetworkCode.NEW_CONVERSATION_INTEREST_RESPONSE);
       }
     });
 
     // Remove user interest - A client wants to remove a user interest
     this.commands.put(NetworkCode.REMOVE_USER_INTEREST_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
-        final String name = Serializers.STRING.read(in);
-        final Uuid owner = Uuid.SERIALIZER.read(in);
+        final String name = Serializers.STRING.read(request.in);
+        final Uuid owner = Uuid.SERIALIZER.read(request.in);
         controller.removeUserInterest(name, owner);
 
-        Serializers.INTEGER.write(out, NetworkCode.REMOVE_USER_INTEREST_RESPONSE);
+        Serializers.INTEGER.write(request.out, NetworkCode.REMOVE_USER_INTEREST_RESPONSE);
       }
     });
 
     // Remove conversation interest - A client wants to remove a conversation interest
     this.commands.put(NetworkCode.REMOVE_CONVERSATION_INTEREST_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
-        final String title = Serializers.STRING.read(in);
-        final Uuid owner = Uuid.SERIALIZER.read(in);
+        final String title = Serializers.STRING.read(request.in);
+        final Uuid owner = Uuid.SERIALIZER.read(request.in);
         controller.removeConversationInterest(title, owner);
 
-        Serializers.INTEGER.write(out, NetworkCode.REMOVE_CONVERSATION_INTEREST_RESPONSE);
+        Serializers.INTEGER.write(request.out, NetworkCode.REMOVE_CONVERSATION_INTEREST_RESPONSE);
       }
     });
 
@@ -279,29 +447,29 @@ public final class Server {
     // Get user update -- a client wants to get the status update for a user
     this.commands.put(NetworkCode.USER_UPDATE_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
-        final Uuid owner = Uuid.SERIALIZER.read(in);
-        final String name = Serializers.STRING.read(in);
+        final Uuid owner = Uuid.SERIALIZER.read(request.in);
+        final String name = Serializers.STRING.read(request.in);
         Collection<ConversationHeader> conversations = view.getUserUpdate(owner, name);
         LOG.info(conversations.size() + "");
 
-        Serializers.INTEGER.write(out, NetworkCode.USER_UPDATE_RESPONSE);
-        Serializers.collection(ConversationHeader.SERIALIZER).write(out, conversations);
+        Serializers.INTEGER.write(request.out, NetworkCode.USER_UPDATE_RESPONSE);
+        Serializers.collection(ConversationHeader.SERIALIZER).write(request.out, conversations);
       }
     });
 
     // Get conversation update -- a client wants to get the conversation update for a user
     this.commands.put(NetworkCode.CONVERSATION_UPDATE_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
+      public void onMessage(Request request) throws IOException {
 
-        final Uuid owner = Uuid.SERIALIZER.read(in);
-        final String name = Serializers.STRING.read(in);
+        final Uuid owner = Uuid.SERIALIZER.read(request.in);
+        final String name = Serializers.STRING.read(request.in);
         int messages = view.getConversationUpdate(owner, name);
 
-        Serializers.INTEGER.write(out, NetworkCode.CONVERSATION_UPDATE_RESPONSE);
-        Serializers.INTEGER.write(out, messages);
+        Serializers.INTEGER.write(request.out, NetworkCode.CONVERSATION_UPDATE_RESPONSE);
+        Serializers.INTEGER.write(request.out, messages);
 
       }
     });
@@ -309,242 +477,677 @@ public final class Server {
     // Delete user -- an admin wants to delete the specified user
     this.commands.put(NetworkCode.DELETE_USER_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final User user = User.SERIALIZER.read(in);
+      public void onMessage(Request request) throws IOException {
+        final User user = User.SERIALIZER.read(request.in);
         controller.removeUser(user);
         for (User u : model.userById().all()) {
           System.out.println(u.id);
         }
 
-        Serializers.INTEGER.write(out, NetworkCode.DELETE_USER_RESPONSE);
+        Serializers.INTEGER.write(request.out, NetworkCode.DELETE_USER_RESPONSE);
       }
     });
 
     //Delete conversation -- an admin wants to delete the specified conversation
     this.commands.put(NetworkCode.DELETE_CONVERSATION_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final ConversationHeader c = ConversationHeader.SERIALIZER.read(in);
+      public void onMessage(Request request) throws IOException {
+        final ConversationHeader c = ConversationHeader.SERIALIZER.read(request.in);
         controller.removeConversation(c);
 
-        Serializers.INTEGER.write(out, NetworkCode.DELETE_CONVERSATION_RESPONSE);
+        Serializers.INTEGER.write(request.out, NetworkCode.DELETE_CONVERSATION_RESPONSE);
       }
     });
 
     //Admin info -- get the password for the specified user id
     this.commands.put(NetworkCode.AUTH_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final Uuid id = Uuid.SERIALIZER.read(in);
-        final String password = Serializers.STRING.read(in);
-        String correct = view.getPassword(id);
-        boolean success;
-        try {
-          success = PasswordUtils.verifyPassword(password, correct);
-        } catch (PasswordUtils.CannotPerformOperationException | PasswordUtils.InvalidHashException e) {
-          success = false;
-        }
-
-        Serializers.INTEGER.write(out, NetworkCode.AUTH_RESPONSE);
-        Serializers.BOOLEAN.write(out, success);
+      public void onMessage(Request request) throws IOException {
+        final Uuid id = Uuid.SERIALIZER.read(request.in);
+        final String password = Serializers.STRING.read(request.in);
+        final String correct = view.getPassword(id);
+
+        // Checking the password is slow so finish on the hashing pool.
+        hash(request, new Command() {
+          @Override
+          public void onMessage(Request request) throws IOException {
+            boolean success;
+            final long start = System.nanoTime();
+            try {
+              success = PasswordUtils.verifyPassword(password, correct);
+            } catch (PasswordUtils.CannotPerformOperationException | PasswordUtils.InvalidHashException e) {
+              success = false;
+            }
+            RequestTrace.add(RequestTrace.Phase.HASH, System.nanoTime() - start);
+
+            Serializers.INTEGER.write(request.out, NetworkCode.AUTH_RESPONSE);
+            Serializers.BOOLEAN.write(request.out, success);
+          }
+        });
       }
     });
 
     //Get admins -- get the list of admins
     this.commands.put(NetworkCode.GET_ADMINS_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        Serializers.INTEGER.write(out, NetworkCode.GET_ADMINS_RESPONSE);
-        Serializers.collection(Uuid.SERIALIZER).write(out, view.getAdmins());
+      public void onMessage(Request request) throws IOException {
+        Serializers.INTEGER.write(request.out, NetworkCode.GET_ADMINS_RESPONSE);
+        Serializers.collection(Uuid.SERIALIZER).write(request.out, view.getAdmins());
       }
     });
 
     //Get new admins -- get the list of admins who have not set their passwords yet
     this.commands.put(NetworkCode.GET_NEW_ADMINS_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        Serializers.INTEGER.write(out, NetworkCode.GET_NEW_ADMINS_RESPONSE);
-        Serializers.collection(Uuid.SERIALIZER).write(out, view.getNewAdmins());
+      public void onMessage(Request request) throws IOException {
+        Serializers.INTEGER.write(request.out, NetworkCode.GET_NEW_ADMINS_RESPONSE);
+        Serializers.collection(Uuid.SERIALIZER).write(request.out, view.getNewAdmins());
       }
     });
 
     //Write auth info -- write the information to disk
     this.commands.put(NetworkCode.SET_PASSWORD_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final Uuid id = Uuid.SERIALIZER.read(in);
-        final String password = Serializers.STRING.read(in);
-        boolean success = controller.setPassword(id, password);
-        Serializers.INTEGER.write(out, NetworkCode.SET_PASSWORD_RESPONSE);
-        Serializers.BOOLEAN.write(out, success);
+      public void onMessage(Request request) throws IOException {
+        final Uuid id = Uuid.SERIALIZER.read(request.in);
+        final String password = Serializers.STRING.read(request.in);
+
+        // Hash the password on the hashing pool and then go back to the
+        // timeline to store it, as the model may only be changed there. The
+        // response waits for the password to be stored so that the client can
+        // log in with it straight away.
+        hash(request, new Command() {
+          @Override
+          public void onMessage(Request request) throws IOException {
+            String hash;
+            final long start = System.nanoTime();
+            try {
+              hash = PasswordUtils.createHash(password);
+            } catch (PasswordUtils.CannotPerformOperationException e) {
+              hash = null;
+            }
+            RequestTrace.add(RequestTrace.Phase.HASH, System.nanoTime() - start);
+
+            final boolean success = hash != null && setPasswordHash(id, hash);
+
+            Serializers.INTEGER.write(request.out, NetworkCode.SET_PASSWORD_RESPONSE);
+            Serializers.BOOLEAN.write(request.out, success);
+          }
+        });
       }
     });
 
     this.commands.put(NetworkCode.ADD_ADMIN_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final String name = Serializers.STRING.read(in);
-        final boolean log = Serializers.BOOLEAN.read(in);
+      public void onMessage(Request request) throws IOException {
+        final String name = Serializers.STRING.read(request.in);
+        final boolean log = Serializers.BOOLEAN.read(request.in);
         controller.addAdmin(name, log);
-        Serializers.INTEGER.write(out, NetworkCode.ADD_ADMIN_RESPONSE);
+        Serializers.INTEGER.write(request.out, NetworkCode.ADD_ADMIN_RESPONSE);
       }
     });
 
     this.commands.put(NetworkCode.REMOVE_ADMIN_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final String name = Serializers.STRING.read(in);
+      public void onMessage(Request request) throws IOException {
+        final String name = Serializers.STRING.read(request.in);
         controller.removeAdmin(name);
-        Serializers.INTEGER.write(out, NetworkCode.REMOVE_ADMIN_RESPONSE);
+        Serializers.INTEGER.write(request.out, NetworkCode.REMOVE_ADMIN_RESPONSE);
       }
     });
 
     this.commands.put(NetworkCode.ADD_MEMBER_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final Uuid conversationId = Uuid.SERIALIZER.read(in);
-        final String userName = Serializers.STRING.read(in);
+      public void onMessage(Request request) throws IOException {
+        final Uuid conversationId = Uuid.SERIALIZER.read(request.in);
+        final String userName = Serializers.STRING.read(request.in);
         boolean success = controller.addMember(conversationId, userName);
-        Serializers.INTEGER.write(out, NetworkCode.ADD_MEMBER_RESPONSE);
-        Serializers.BOOLEAN.write(out, success);
+        Serializers.INTEGER.write(request.out, NetworkCode.ADD_MEMBER_RESPONSE);
+        Serializers.BOOLEAN.write(request.out, success);
       }
     });
 
     this.commands.put(NetworkCode.REMOVE_MEMBER_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final Uuid conversationId = Uuid.SERIALIZER.read(in);
-        final String userName = Serializers.STRING.read(in);
+      public void onMessage(Request request) throws IOException {
+        final Uuid conversationId = Uuid.SERIALIZER.read(request.in);
+        final String userName = Serializers.STRING.read(request.in);
         boolean success = controller.removeMember(conversationId, userName);
-        Serializers.INTEGER.write(out, NetworkCode.REMOVE_MEMBER_RESPONSE);
-        Serializers.BOOLEAN.write(out, success);
+        Serializers.INTEGER.write(request.out, NetworkCode.REMOVE_MEMBER_RESPONSE);
+        Serializers.BOOLEAN.write(request.out, success);
       }
     });
 
     this.commands.put(NetworkCode.CHECK_MEMBER_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final Uuid conversationId = Uuid.SERIALIZER.read(in);
-        final Uuid memberId = Uuid.SERIALIZER.read(in);
+      public void onMessage(Request request) throws IOException {
+        final Uuid conversationId = Uuid.SERIALIZER.read(request.in);
+        final Uuid memberId = Uuid.SERIALIZER.read(request.in);
         boolean isUserMember = view.isUserMember(conversationId, memberId);
-        Serializers.INTEGER.write(out, NetworkCode.CHECK_MEMBER_RESPONSE);
-        Serializers.BOOLEAN.write(out, isUserMember);
+        Serializers.INTEGER.write(request.out, NetworkCode.CHECK_MEMBER_RESPONSE);
+        Serializers.BOOLEAN.write(request.out, isUserMember);
       }
     });
 
     this.commands.put(NetworkCode.CHECK_OWNER_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final Uuid conversationId = Uuid.SERIALIZER.read(in);
-        final Uuid memberId = Uuid.SERIALIZER.read(in);
+      public void onMessage(Request request) throws IOException {
+        final Uuid conversationId = Uuid.SERIALIZER.read(request.in);
+        final Uuid memberId = Uuid.SERIALIZER.read(request.in);
         boolean isUserOwner = view.isUserOwner(conversationId, memberId);
-        Serializers.INTEGER.write(out, NetworkCode.CHECK_OWNER_RESPONSE);
-        Serializers.BOOLEAN.write(out, isUserOwner);
+        Serializers.INTEGER.write(request.out, NetworkCode.CHECK_OWNER_RESPONSE);
+        Serializers.BOOLEAN.write(request.out, isUserOwner);
       }
     });
 
     this.commands.put(NetworkCode.ADD_OWNER_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final Uuid conversationId = Uuid.SERIALIZER.read(in);
-        final String userName = Serializers.STRING.read(in);
+      public void onMessage(Request request) throws IOException {
+        final Uuid conversationId = Uuid.SERIALIZER.read(request.in);
+        final String userName = Serializers.STRING.read(request.in);
         boolean success = controller.addOwner(conversationId, userName);
-        Serializers.INTEGER.write(out, NetworkCode.ADD_OWNER_RESPONSE);
-        Serializers.BOOLEAN.write(out, success);
+        Serializers.INTEGER.write(request.out, NetworkCode.ADD_OWNER_RESPONSE);
+        Serializers.BOOLEAN.write(request.out, success);
       }
     });
 
     this.commands.put(NetworkCode.REMOVE_OWNER_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final Uuid conversationId = Uuid.SERIALIZER.read(in);
-        final String userName = Serializers.STRING.read(in);
+      public void onMessage(Request request) throws IOException {
+        final Uuid conversationId = Uuid.SERIALIZER.read(request.in);
+        final String userName = Serializers.STRING.read(request.in);
         boolean success = controller.removeOwner(conversationId, userName);
-        Serializers.INTEGER.write(out, NetworkCode.REMOVE_OWNER_RESPONSE);
-        Serializers.BOOLEAN.write(out, success);
+        Serializers.INTEGER.write(request.out, NetworkCode.REMOVE_OWNER_RESPONSE);
+        Serializers.BOOLEAN.write(request.out, success);
       }
     });
 
     this.commands.put(NetworkCode.CHECK_CREATOR_REQUEST, new Command() {
       @Override
-      public void onMessage(InputStream in, OutputStream out) throws IOException {
-        final Uuid conversationId = Uuid.SERIALIZER.read(in);
-        final Uuid memberId = Uuid.SERIALIZER.read(in);
+      public void onMessage(Request request) throws IOException {
+        final Uuid conversationId = Uuid.SERIALIZER.read(request.in);
+        final Uuid memberId = Uuid.SERIALIZER.read(request.in);
         boolean isUserCreator = view.isUserCreator(conversationId, memberId);
-        Serializers.INTEGER.write(out, NetworkCode.CHECK_CREATOR_RESPONSE);
-        Serializers.BOOLEAN.write(out, isUserCreator);
+        Serializers.INTEGER.write(request.out, NetworkCode.CHECK_CREATOR_RESPONSE);
+        Serializers.BOOLEAN.write(request.out, isUserCreator);
       }
     });
 
-    this.timeline.scheduleNow(new Runnable() {
+    final Map<Integer, String> names = requestNames();
+    for (final int type : commands.keySet()) {
+      final String name = names.containsKey(type) ? names.get(type) : "code_" + type;
+      commandStats.put(type, new CommandStats(name));
+    }
+
+    this.timeline.scheduleAtFixedRate(Timeline.Lane.MAINTENANCE, STATS_LOG_MS, STATS_LOG_MS, new Runnable() {
+      @Override
+      public void run() {
+        logStats();
+      }
+    });
+
+    // The poll repeats with a fixed delay and sets its own delay after each
+    // run from what the relay said.
+    this.relayTimeline.scheduleWithFixedDelay(Timeline.Lane.RELAY, 0, 0, new Runnable() {
+
+      // Start by catching up as there is no telling how far behind the relay
+      // this server is.
+      private boolean behind = true;
+      private long backoff = RELAY_REFRESH_MS;
+
       @Override
       public void run() {
+
+        long delay = 0;
+
         try {
 
+          if (behind) {
+            catchUp();
+            behind = false;
+            backoff = RELAY_REFRESH_MS;
+            Timeline.Task.current().setPeriod(0);
+            return;
+          }
+
           LOG.info("Reading update from relay...");
 
-          for (final Relay.Bundle bundle : relay.read(id, secret, lastSeen, 32)) {
-            onBundle(bundle);
+          final long start = System.currentTimeMillis();
+          final Collection<Relay.Bundle> bundles =
+              relay.read(id, secret, lastSeen, RELAY_READ_RANGE, RELAY_POLL_WAIT_MS, Relay.Filter.OTHER_TEAMS);
+          final long elapsed = System.currentTimeMillis() - start;
+          relayPollTimes.record(elapsed * 1000);
+
+          // "lastSeen" is only used on this timeline so it can move forward
+          // now even though the bundles are handled later.
+          for (final Relay.Bundle bundle : bundles) {
             lastSeen = bundle.id();
           }
 
+          if (!bundles.isEmpty()) {
+            timeline.scheduleNow(Timeline.Lane.RELAY, new Runnable() {
+              @Override
+              public void run() {
+                onBundles(bundles);
+              }
+            });
+          }
+
+          behind = bundles.size() >= RELAY_FULL_PAGE;
+
+          // Anything that came back means there may be more waiting (a full
+          // page means there almost certainly is) and an empty answer after
+          // the full wait means the relay is parking polls as it should.
+          // Either way poll again right away. Only an empty answer that came
+          // back early is treated as a relay that does not wait.
+          if (!bundles.isEmpty() || elapsed >= RELAY_POLL_WAIT_MS) {
+            backoff = RELAY_REFRESH_MS;
+          } else {
+            delay = backOff();
+          }
+
         } catch (Exception ex) {
 
           LOG.error(ex, "Failed to read update from relay.");
 
+          delay = backOff();
+
         }
 
-        timeline.scheduleIn(RELAY_REFRESH_MS, this);
+        Timeline.Task.current().setPeriod(delay);
+      }
+
+      private long backOff() {
+        final long delay = backoff;
+        backoff = Math.min(backoff * 2, RELAY_MAX_BACKOFF_MS);
+        return delay;
       }
     });
   }
 
 
+  // STOP
+  //
+  // Stop handling requests and talking to the relay, and let the threads
+  // exit. Anything still waiting in the outbox stays in its file. This is a
+  // non-blocking call.
+  public void stop() {
+    relayTimeline.stop();
+    timeline.stop();
+    outbox.stop();
+    hashers.shutdownNow();
+  }
+
+  // STATS
+  //
+  // Gather the server's stats. Every histogram is in microseconds. Commands
+  // that have not been used are left out.
+  private ServerStats stats() {
+
+    final ServerStats stats = new ServerStats();
+
+    stats.put("command.unknown", unknownCommands.get());
+    for (final CommandStats command : commandStats.values()) {
+      final long count = command.latency.count();
+      if (count > 0) {
+        final String prefix = "command." + command.name;
+        stats.put(prefix + ".count", count);
+        stats.put(prefix + ".errors", command.errors.get());
+        stats.put(prefix + ".bytes_in", command.bytesIn.get());
+        stats.put(prefix + ".bytes_out", command.bytesOut.get());
+        stats.put(prefix + ".latency_us", command.latency);
+      }
+    }
+
+    stats.put("persistence.flush_us", controller.flushTimes());
+    stats.put("relay.poll_us", relayPollTimes);
+
+    stats.put("passwords.active", hashers.getActiveCount());
+    stats.put("passwords.queued", hashers.getQueue().size());
+    stats.put("passwords.rejected", rejectedHashes.get());
+
+    addStats(stats, "timeline", timeline);
+    addStats(stats, "relay_timeline", relayTimeline);
+
+    return stats;
+  }
+
+  // REQUEST NAMES
+  //
+  // Get a name for each request code from the names in NetworkCode, so
+  // NEW_MESSAGE_REQUEST is called "new_message".
+  private static Map<Integer, String> requestNames() {
+
+    final Map<Integer, String> names = new HashMap<>();
+
+    for (final Field field : NetworkCode.class.getFields()) {
+      final String name = field.getName();
+      if (name.endsWith("_REQUEST") && field.getType() == int.class) {
+        try {
+          names.put(field.getInt(null), name.substring(0, name.length() - "_REQUEST".length()).toLowerCase());
+        } catch (IllegalAccessException ex) {
+          // Public constants can always be read.
+        }
+      }
+    }
+
+    return names;
+  }
+
+  private static void addStats(ServerStats stats, String name, Timeline timeline) {
+    stats.put(name + ".backlog", timeline.backlog());
+    for (final Timeline.Lane lane : Timeline.Lane.values()) {
+      final String prefix = name + "." + lane.name().toLowerCase();
+      stats.put(prefix + ".depth", timeline.depth(lane));
+      stats.put(prefix + ".lag_us", timeline.lag(lane));
+      stats.put(prefix + ".wait_us", timeline.queueWait(lane));
+      stats.put(prefix + ".run_us", timeline.runTime(lane));
+    }
+  }
+
+  // LOG STATS
+  //
+  // Write the stats to the log. The values go on one line and each histogram
+  // that has anything in it gets a line of its own.
+  private void logStats() {
+
+    final ServerStats stats = stats();
+
+    final StringBuilder values = new StringBuilder();
+    for (final Map.Entry<String, Long> entry : stats.values().entrySet()) {
+      values.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+    }
+    LOG.info("Stats:%s", values);
+
+    for (final Map.Entry<String, Histogram.Summary> entry : stats.histograms().entrySet()) {
+      if (entry.getValue().count > 0) {
+        LOG.info("Stats: %s %s", entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
   public void handleConnection(final Connection connection) {
-    timeline.scheduleNow(new Runnable() {
+    final long accepted = System.nanoTime();
+    timeline.scheduleNow(Timeline.Lane.INTERACTIVE, new Runnable() {
       @Override
       public void run() {
+
+        final Request request = new Request(connection, accepted);
+        boolean failed = false;
+
         try {
 
           LOG.info("Handling connection...");
 
-          final int type = Serializers.INTEGER.read(connection.in());
-          final Command command = commands.get(type);
+          request.in = new CountingInputStream(connection.in());
+          request.out = new CountingOutputStream(connection.out());
+
+          request.type = Serializers.INTEGER.read(request.in);
+          final Command command = commands.get(request.type);
 
           if (command == null) {
             // The message type cannot be handled so return a dummy message.
-            Serializers.INTEGER.write(connection.out(), NetworkCode.NO_MESSAGE);
+            unknownCommands.incrementAndGet();
+            Serializers.INTEGER.write(request.out, NetworkCode.NO_MESSAGE);
             LOG.info("Connection rejected");
           } else {
-            command.onMessage(connection.in(), connection.out());
+            request.stats = commandStats.get(request.type);
+            command.onMessage(request);
             LOG.info("Connection accepted");
           }
 
         } catch (Exception ex) {
 
+          failed = true;
           LOG.error(ex, "Exception while handling connection.");
 
+        } finally {
+          request.trace.stop();
         }
 
+        if (!request.deferred) {
+          request.finish(failed);
+        }
+      }
+    });
+  }
+
+  // REQUEST
+  //
+  // One connection from a client. Most commands are done with the request
+  // when onMessage returns and it is finished straight away on the timeline. A
+  // command that hands the rest of its work to another thread (see hash())
+  // marks the request as deferred and it is finished on that thread instead.
+  private final class Request {
+
+    public final Connection connection;
+    public final long accepted;
+    public final long start = System.nanoTime();
+    public final Flight.Event event = Flight.COMMAND.begin();
+    public final RequestTrace trace = RequestTrace.start();
+
+    public CountingInputStream in = null;
+    public CountingOutputStream out = null;
+    public CommandStats stats = null;
+    public int type = NetworkCode.NO_MESSAGE;
+    public boolean deferred = false;
+
+    public Request(Connection connection, long accepted) {
+      this.connection = connection;
+      this.accepted = accepted;
+    }
+
+    // Record the request in the stats and close the connection.
+    public void finish(boolean failed) {
+
+      if (stats != null) {
+        stats.latency.record((System.nanoTime() - start) / 1000);
+        stats.bytesIn.addAndGet(in.count);
+        stats.bytesOut.addAndGet(out.count);
+        if (failed) {
+          stats.errors.incrementAndGet();
+        }
+        event.set("command", stats.name);
+      }
+
+      if (in != null) {
+        event.set("code", type)
+             .set("bytesIn", in.count)
+             .set("bytesOut", out.count)
+             .set("failed", failed)
+             .commit();
+      }
+
+      try {
+        connection.close();
+      } catch (Exception ex) {
+        LOG.error(ex, "Exception while closing connection.");
+      }
+
+      final long end = System.nanoTime();
+
+      if (end - accepted >= SLOW_REQUEST_MS * 1000000L && out != null) {
+        trace.set(RequestTrace.Phase.QUEUE, start - accepted);
+        trace.split(start, in.lastRead, out.firstWrite, end);
+        onSlowRequest(trace.toSlowRequest(stats == null ? "unknown" : stats.name, end - accepted, failed));
+      }
+    }
+  }
+
+  // HASH
+  //
+  // Run the rest of a command on the hashing pool and finish the request
+  // there. This must be the last thing the command does. If the pool is full
+  // the client is sent NO_MESSAGE and the request finishes as normal.
+  private void hash(final Request request, final Command rest) throws IOException {
+
+    final long queued = System.nanoTime();
+
+    try {
+
+      hashers.execute(new Runnable() {
+        @Override
+        public void run() {
+
+          boolean failed = false;
+
+          request.trace.resume();
+          RequestTrace.add(RequestTrace.Phase.HASH_WAIT, System.nanoTime() - queued);
+
+          try {
+            rest.onMessage(request);
+          } catch (Exception ex) {
+            failed = true;
+            LOG.error(ex, "Exception while handling connection.");
+          } finally {
+            request.trace.stop();
+          }
+
+          request.finish(failed);
+        }
+      });
+
+      request.deferred = true;
+
+    } catch (RejectedExecutionException ex) {
+      rejectedHashes.incrementAndGet();
+      LOG.warning("Too many passwords waiting to be hashed. Rejecting request.");
+      Serializers.INTEGER.write(request.out, NetworkCode.NO_MESSAGE);
+    }
+  }
+
+  // Store a password hash from the hashing pool. This waits for the timeline
+  // to store it and returns false if storing it failed or the wait was
+  // interrupted.
+  private boolean setPasswordHash(final Uuid id, final String hash) {
+
+    final CountDownLatch done = new CountDownLatch(1);
+    final boolean[] stored = { false };
+
+    timeline.scheduleNow(Timeline.Lane.INTERACTIVE, new Runnable() {
+      @Override
+      public void run() {
         try {
-          connection.close();
+          controller.setPasswordHash(id, hash);
+          stored[0] = true;
         } catch (Exception ex) {
-          LOG.error(ex, "Exception while closing connection.");
+          LOG.error(ex, "Exception while storing password.");
+        } finally {
+          done.countDown();
+        }
+      }
+    });
+
+    try {
+      done.await();
+      return stored[0];
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  // SLOW REQUESTS
+  //
+  // Log a slow request and remember it, forgetting the oldest one when there
+  // are too many. Slow requests may be added from any thread.
+  void onSlowRequest(SlowRequest request) {
+    LOG.warning("Slow request: %s", request.toString());
+    synchronized (slowRequests) {
+      if (slowRequests.size() == SLOW_REQUEST_HISTORY) {
+        slowRequests.removeFirst();
+      }
+      slowRequests.addLast(request);
+    }
+  }
+
+  // Get the remembered slow requests, oldest first.
+  Collection<SlowRequest> slowRequests() {
+    synchronized (slowRequests) {
+      return new ArrayList<>(slowRequests);
+    }
+  }
+
+  // CATCH UP
+  //
+  // Stream everything after "lastSeen" from the relay. Each batch is added to
+  // the model on the main timeline before the relay is allowed to send more so
+  // that a large backlog does not pile up in memory. This must only be called
+  // from the relay timeline.
+  private void catchUp() {
+
+    LOG.info("Catching up with relay from %s...", lastSeen);
+
+    lastSeen = relay.catchUp(id, secret, lastSeen, Relay.Filter.OTHER_TEAMS, new Relay.Receiver() {
+      @Override
+      public boolean onBundles(final Collection<Relay.Bundle> bundles) {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        timeline.scheduleNow(Timeline.Lane.RELAY, new Runnable() {
+          @Override
+          public void run() {
+            try {
+              Server.this.onBundles(bundles);
+            } finally {
+              done.countDown();
+            }
+          }
+        });
+
+        try {
+          done.await();
+          return true;
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return false;
         }
       }
     });
+
+    LOG.info("Caught up with relay at %s", lastSeen);
+  }
+
+  private void onBundles(Collection<Relay.Bundle> bundles) {
+
+    Uuid last = null;
+
+    for (final Relay.Bundle bundle : bundles) {
+
+      last = bundle.id();
+
+      // Drop bundles this server sent itself and messages it already has
+      // without touching the model.
+      if (Uuid.equals(bundle.team(), id) || !seenMessages.add(bundle.message().id())) {
+        continue;
+      }
+
+      onBundle(bundle);
+    }
+
+    if (last != null) {
+      controller.setRelayCursor(last, true);
+    }
   }
 
   private void onBundle(Relay.Bundle bundle) {
 
     final Relay.Bundle.Component relayUser = bundle.user();
     final Relay.Bundle.Component relayConversation = bundle.conversation();
-    final Relay.Bundle.Component relayMessage = bundle.user();
+    final Relay.Bundle.Component relayMessage = bundle.message();
+
+    // Anything new from the relay is written to the log so that it is still
+    // here after a restart, when the relay will not send it again.
 
     User user = model.userById().first(relayUser.id());
 
     if (user == null) {
       user = controller.newUser(relayUser.id(), relayUser.text(), relayUser.time());
+      if (user == null) {
+        LOG.warning("Dropping relay bundle %s. Could not add user %s.", bundle.id(), relayUser.id());
+        return;
+      }
+      controller.logTransaction(PersistenceLog.USER, user.id, user.name, user.creation.inMs(), null, null);
     }
 
     ConversationHeader conversation = model.conversationById().first(relayConversation.id());
@@ -558,6 +1161,12 @@ public final class Server {
               relayConversation.text(),
               user.id,
               relayConversation.time());
+      if (conversation == null) {
+        LOG.warning("Dropping relay bundle %s. Could not add conversation %s.", bundle.id(), relayConversation.id());
+        return;
+      }
+      controller.logTransaction(PersistenceLog.CONVERSATION, conversation.id, conversation.title,
+              conversation.creation.inMs(), user.id, null);
     }
 
     Message message = model.messageById().first(relayMessage.id());
@@ -568,28 +1177,97 @@ public final class Server {
               conversation.id,
               relayMessage.text(),
               relayMessage.time());
+      if (message != null) {
+        controller.logTransaction(PersistenceLog.MESSAGE, message.id, message.content,
+                message.creation.inMs(), user.id, conversation.id);
+      }
     }
   }
 
-  private Runnable createSendToRelayEvent(final Uuid userId,
-                                          final Uuid conversationId,
-                                          final Uuid messageId) {
-    return new Runnable() {
-      @Override
-      public void run() {
-        final User user = view.findUser(userId);
-        final ConversationHeader conversation = view.findConversation(conversationId);
-        final Message message = view.findMessage(messageId);
-        relay.write(id,
-                secret,
-                relay.pack(user.id, user.name, user.creation),
-                relay.pack(conversation.id, conversation.title, conversation.creation),
-                relay.pack(message.id, message.content, message.creation));
-      }
-    };
+  // Copy everything the relay needs about the message into the outbox. This
+  // is called from the main timeline so the model can be read safely here and
+  // the outbox never needs to look at it again.
+  private void sendToRelay(Uuid userId, Uuid conversationId, Message message) {
+
+    final User user = view.findUser(userId);
+    final ConversationHeader conversation = view.findConversation(conversationId);
+
+    if (user == null || conversation == null) {
+      LOG.warning("Not sending message %s to relay. Could not find its user or conversation.", message.id);
+      return;
+    }
+
+    seenMessages.add(message.id);
+
+    outbox.add(user.id, user.name, user.creation,
+               conversation.id, conversation.title, conversation.creation,
+               message.id, message.content, message.creation);
   }
 
   public static Queue<String> getLogBuffer() {
     return logBuffer;
   }
-}
\ No newline at end of file
+
+  // Streams that count the bytes that pass through them, for the command
+  // stats, and note when the request was last read from and the response first
+  // written to (as System.nanoTime() or 0 if never), for slow requests. Only
+  // used by one thread at a time.
+
+  private static final class CountingInputStream extends FilterInputStream {
+
+    public long count = 0;
+    public long lastRead = 0;
+
+    public CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int value = super.read();
+      if (value >= 0) {
+        count++;
+        lastRead = System.nanoTime();
+      }
+      return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      final int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        count += read;
+        lastRead = System.nanoTime();
+      }
+      return read;
+    }
+  }
+
+  private static final class CountingOutputStream extends FilterOutputStream {
+
+    public long count = 0;
+    public long firstWrite = 0;
+
+    public CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+      if (firstWrite == 0) {
+        firstWrite = System.nanoTime();
+      }
+      out.write(value);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      if (firstWrite == 0) {
+        firstWrite = System.nanoTime();
+      }
+      out.write(buffer, offset, length);
+      count += length;
+    }
+  }
+}
@@ -28,6 +28,7 @@ import codeu.chat.common.User;
 import codeu.chat.common.ServerInfo;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.store.SequenceIndex;
 import codeu.chat.util.store.StoreAccessor;
 
 public final class View implements BasicView, SinglesView {
@@ -54,6 +55,11 @@ public final class View implements BasicView, SinglesView {
   }
 
 
+  @Override
+  public Collection<ConversationHeader> getMyConversations(Uuid user) {
+    return model.conversationsForUser(user);
+  }
+
   @Override
   public Collection<ConversationPayload> getConversationPayloads(Collection<Uuid> ids) {
     return intersect(model.conversationPayloadById(), ids);
@@ -115,9 +121,16 @@ public final class View implements BasicView, SinglesView {
   @Override
   public Collection<ConversationHeader> getUserUpdate(Uuid owner, String name) {
     User user = model.userByText().first(name);
+
+    int current = model.userActivityCount(user.id);
+    int last = model.userInterests().get(owner).getUserUpdate(user.id, current);
+
     Collection<ConversationHeader> conversations = new ArrayList<>();
-    for (ConversationHeader c : model.userInterests().get(owner).getUserUpdate(user.id)) {
-      conversations.add(c);
+    for (Uuid id : model.userActivitySince(user.id, last)) {
+      ConversationHeader c = model.conversationById().first(id);
+      if (c != null) {
+        conversations.add(c);
+      }
     }
     return conversations;
   }
@@ -125,7 +138,9 @@ public final class View implements BasicView, SinglesView {
   @Override
   public int getConversationUpdate(Uuid owner, String title) {
     Uuid conversation = model.conversationByText().first(title).id;
-    return model.userInterests().get(owner).getConversationUpdate(conversation);
+    SequenceIndex messages = model.messageSequence(conversation);
+    int current = messages == null ? 0 : messages.size();
+    return model.userInterests().get(owner).getConversationUpdate(conversation, current);
   }
 
   @Override
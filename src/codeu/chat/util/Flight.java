@@ -0,0 +1,323 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// FLIGHT
+//
+// Java Flight Recorder events for the things the chat code does, so a
+// recording can line up requests, disk writes, and relay traffic with what
+// the JVM was doing (GC, locks, I/O) at the time.
+//
+// The project is built as Java 7, which has no jdk.jfr package, so the event
+// types are made at runtime with jdk.jfr.EventFactory when it is there (JDK
+// 8u262 and later) and everything here does nothing when it is not. A
+// listener on the flight recorder tracks whether any recording is running and
+// "begin" returns a dummy event while none is, so an event costs one volatile
+// read until someone starts a recording. Making the event types takes a few
+// hundred milliseconds, so that is left until the first recording starts and
+// is done on the thread that started it.
+//
+// Use an event like this:
+//
+//   final Flight.Event event = Flight.COMMAND.begin();
+//   ... do the work ...
+//   event.set("code", code).set("failed", false).commit();
+//
+// The time between "begin" and "commit" is the event's duration.
+public final class Flight {
+
+  private final static Logger.Log LOG = Logger.newLog(Flight.class);
+
+  private static final String[] CATEGORY = { "CodeU Chat" };
+
+  private static volatile boolean recording = false;
+
+  private static final List<Type> TYPES = new ArrayList<>();
+
+  // All null when jdk.jfr is not there.
+  private static Class<?> annotationElementClass;
+  private static Constructor<?> annotationElement;
+  private static Constructor<?> valueDescriptor;
+  private static Method create;
+  private static Method newEvent;
+  private static Method begin;
+  private static Method set;
+  private static Method commit;
+
+  static {
+    try {
+      annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+      annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+      valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+
+      final Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+      create = factory.getMethod("create", List.class, List.class);
+      newEvent = factory.getMethod("newEvent");
+
+      final Class<?> event = Class.forName("jdk.jfr.Event");
+      begin = event.getMethod("begin");
+      set = event.getMethod("set", int.class, Object.class);
+      commit = event.getMethod("commit");
+    } catch (Throwable ex) {
+      LOG.info("Flight recorder events are not available (%s)", ex.toString());
+      create = null;
+    }
+  }
+
+  // A request handled by the server, from reading its code to writing the
+  // response.
+  public static final Type COMMAND = new Type(
+      "codeu.chat.Command", "Command", "A client request handled by the server",
+      "int code", "String command", "long bytesIn", "long bytesOut", "boolean failed");
+
+  // The server's transaction log buffer being written to disk.
+  public static final Type PERSISTENCE_FLUSH = new Type(
+      "codeu.chat.PersistenceFlush", "Persistence Flush", "Buffered transactions written to the log",
+      "int transactions", "boolean failed");
+
+  // One file read back when the server starts.
+  public static final Type PERSISTENCE_RESTORE = new Type(
+      "codeu.chat.PersistenceRestore", "Persistence Restore", "A file read back when the server starts",
+      "String phase", "String file", "long lines");
+
+  // One request this server made to the relay.
+  public static final Type RELAY_REQUEST = new Type(
+      "codeu.chat.RelayRequest", "Relay Request", "A round trip from this server to the relay",
+      "String operation", "int bundles", "boolean failed");
+
+  // One event run by a timeline.
+  public static final Type TIMELINE_TASK = new Type(
+      "codeu.chat.TimelineTask", "Timeline Task", "An event run by a timeline",
+      "String lane", "long lagMicros", "long waitMicros");
+
+  static {
+    // Only once every type above exists, as the listener may be told about a
+    // running recording straight away.
+    if (create != null) {
+      try {
+        listen();
+      } catch (Throwable ex) {
+        LOG.info("Flight recorder events are not available (%s)", ex.toString());
+        create = null;
+      }
+    }
+  }
+
+  // TYPE
+  //
+  // One kind of event. Each field is given as "<type> <name>" where the type
+  // is int, long, boolean, or String.
+  public static final class Type {
+
+    private final String name;
+    private final String label;
+    private final String description;
+    private final String[] types;
+    private final String[] names;
+
+    // Made when the first recording starts.
+    private volatile Object factory;
+
+    private Type(String name, String label, String description, String... fields) {
+
+      this.name = name;
+      this.label = label;
+      this.description = description;
+      this.types = new String[fields.length];
+      this.names = new String[fields.length];
+
+      for (int i = 0; i < fields.length; i++) {
+        final String[] parts = fields[i].split(" ");
+        types[i] = parts[0];
+        names[i] = parts[1];
+      }
+
+      synchronized (TYPES) {
+        TYPES.add(this);
+      }
+    }
+
+    private void make() {
+
+      if (factory != null || create == null) {
+        return;
+      }
+
+      try {
+        final List<Object> annotations = Arrays.asList(
+            annotation("jdk.jfr.Name", name),
+            annotation("jdk.jfr.Label", label),
+            annotation("jdk.jfr.Description", description),
+            annotation("jdk.jfr.Category", CATEGORY),
+            annotation("jdk.jfr.StackTrace", false));
+
+        final List<Object> values = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+          values.add(valueDescriptor.newInstance(typeOf(types[i]), names[i]));
+        }
+
+        factory = create.invoke(null, annotations, values);
+      } catch (Throwable ex) {
+        LOG.warning("Could not make flight recorder event %s (%s)", name, ex.toString());
+      }
+    }
+
+    // BEGIN
+    //
+    // Start an event of this type. While no recording is running this gives
+    // back an event that ignores everything.
+    public Event begin() {
+
+      if (!recording || factory == null) {
+        return Event.NONE;
+      }
+
+      try {
+        final Object event = newEvent.invoke(factory);
+        begin.invoke(event);
+        return new Event(this, event);
+      } catch (Throwable ex) {
+        return Event.NONE;
+      }
+    }
+
+    private int index(String field) {
+      for (int i = 0; i < names.length; i++) {
+        if (names[i].equals(field)) {
+          return i;
+        }
+      }
+      throw new IllegalArgumentException("No field " + field);
+    }
+  }
+
+  // EVENT
+  //
+  // An event that has begun and not yet been committed. Events are not safe to
+  // share between threads.
+  public static final class Event {
+
+    private static final Event NONE = new Event(null, null);
+
+    private final Type type;
+    private final Object event;
+
+    private Event(Type type, Object event) {
+      this.type = type;
+      this.event = event;
+    }
+
+    // IS ACTIVE
+    //
+    // Check if this event will be recorded. Use this to skip working out
+    // values that are only needed for the event.
+    public boolean isActive() {
+      return event != null;
+    }
+
+    public Event set(String field, Object value) {
+      if (event != null) {
+        try {
+          set.invoke(event, type.index(field), value);
+        } catch (Exception ex) {
+          LOG.warning("Could not set %s on flight recorder event (%s)", field, ex.toString());
+        }
+      }
+      return this;
+    }
+
+    public void commit() {
+      if (event != null) {
+        try {
+          commit.invoke(event);
+        } catch (Exception ex) {
+          // Losing one event is not worth more than a warning.
+          LOG.warning("Could not commit flight recorder event (%s)", ex.toString());
+        }
+      }
+    }
+  }
+
+  private static Object annotation(String type, Object value) throws Exception {
+    return annotationElement.newInstance(Class.forName(type), value);
+  }
+
+  private static Class<?> typeOf(String name) {
+    switch (name) {
+      case "int": return int.class;
+      case "long": return long.class;
+      case "boolean": return boolean.class;
+      case "String": return String.class;
+      default: throw new IllegalArgumentException("Unsupported field type " + name);
+    }
+  }
+
+  // LISTEN
+  //
+  // Keep "recording" up to date. FlightRecorderListener is an interface so a
+  // proxy can stand in for it. If the recorder is already running the listener
+  // is told right away.
+  private static void listen() throws Exception {
+
+    final Class<?> recorderClass = Class.forName("jdk.jfr.FlightRecorder");
+    final Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+
+    final Method getRecorder = recorderClass.getMethod("getFlightRecorder");
+    final Method getRecordings = recorderClass.getMethod("getRecordings");
+    final Method getState = Class.forName("jdk.jfr.Recording").getMethod("getState");
+
+    final Object listener = Proxy.newProxyInstance(
+        Flight.class.getClassLoader(),
+        new Class<?>[] { listenerClass },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+              case "hashCode": return System.identityHashCode(proxy);
+              case "equals": return proxy == args[0];
+              case "toString": return "Flight listener";
+            }
+
+            boolean running = false;
+            for (final Object recording : (List<?>) getRecordings.invoke(getRecorder.invoke(null))) {
+              running |= "RUNNING".equals(String.valueOf(getState.invoke(recording)));
+            }
+
+            if (running) {
+              synchronized (TYPES) {
+                for (final Type type : TYPES) {
+                  type.make();
+                }
+              }
+            }
+
+            recording = running;
+
+            return null;
+          }
+        });
+
+    recorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+  }
+}
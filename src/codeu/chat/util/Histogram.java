@@ -0,0 +1,170 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// HISTOGRAM
+//
+// Counts values (like times in microseconds) in buckets that get wider as the
+// values get bigger, so percentiles can be read back to within about 3%
+// without keeping every value. Every power of two is split into SUB_BUCKETS
+// buckets and values below SUB_BUCKETS get a bucket each. Recording does not
+// lock and is safe from any thread.
+public final class Histogram {
+
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  // SUMMARY
+  //
+  // The numbers usually wanted from a histogram, read at one point in time.
+  public static final class Summary {
+
+    public static final Serializer<Summary> SERIALIZER = new Serializer<Summary>() {
+
+      @Override
+      public void write(OutputStream out, Summary value) throws IOException {
+        Serializers.LONG.write(out, value.count);
+        Serializers.LONG.write(out, value.mean);
+        Serializers.LONG.write(out, value.p50);
+        Serializers.LONG.write(out, value.p99);
+        Serializers.LONG.write(out, value.p999);
+        Serializers.LONG.write(out, value.max);
+      }
+
+      @Override
+      public Summary read(InputStream in) throws IOException {
+        return new Summary(Serializers.LONG.read(in),
+                           Serializers.LONG.read(in),
+                           Serializers.LONG.read(in),
+                           Serializers.LONG.read(in),
+                           Serializers.LONG.read(in),
+                           Serializers.LONG.read(in));
+      }
+    };
+
+    public final long count;
+    public final long mean;
+    public final long p50;
+    public final long p99;
+    public final long p999;
+    public final long max;
+
+    public Summary(long count, long mean, long p50, long p99, long p999, long max) {
+      this.count = count;
+      this.mean = mean;
+      this.p50 = p50;
+      this.p99 = p99;
+      this.p999 = p999;
+      this.max = max;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("count=%d mean=%d p50=%d p99=%d p999=%d max=%d",
+                           count, mean, p50, p99, p999, max);
+    }
+  }
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  // RECORD
+  //
+  // Add one value. Negative values are counted as 0.
+  public void record(long value) {
+
+    final long clean = Math.max(0, value);
+
+    buckets.incrementAndGet(index(clean));
+    count.incrementAndGet();
+    sum.addAndGet(clean);
+
+    long current = max.get();
+    while (clean > current && !max.compareAndSet(current, clean)) {
+      current = max.get();
+    }
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public long mean() {
+    final long total = count.get();
+    return total == 0 ? 0 : sum.get() / total;
+  }
+
+  // PERCENTILE
+  //
+  // Get the value that "percent" percent of the recorded values are at or
+  // below, rounded up to the top of its bucket. Returns 0 when nothing has
+  // been recorded.
+  public long percentile(double percent) {
+
+    final long total = count.get();
+
+    if (total == 0) {
+      return 0;
+    }
+
+    final long target = Math.max(1, (long) Math.ceil(total * percent / 100.0));
+
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= target) {
+        return Math.min(upper(i), max.get());
+      }
+    }
+
+    // Values recorded while reading may leave the buckets short of "total".
+    return max.get();
+  }
+
+  public Summary summary() {
+    return new Summary(count(), mean(), percentile(50), percentile(99), percentile(99.9), max());
+  }
+
+  private static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  private static long upper(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int shift = index / SUB_BUCKETS - 1;
+    final long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+}
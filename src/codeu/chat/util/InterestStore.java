@@ -1,59 +1,69 @@
 package codeu.chat.util;
 
-import codeu.chat.common.ConversationHeader;
-import codeu.chat.server.Model;
-import codeu.chat.util.store.Store;
-import codeu.chat.util.store.StoreAccessor;
-
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
+// INTEREST STORE
+//
+// Tracks how far a user has read into each of the things they are interested
+// in. Nothing is pushed into the store when a message is posted. Instead the
+// store holds a cursor for every interest (the size of the conversation, or of
+// the user's activity, when the user last checked) and the number of updates
+// is worked out at read time by comparing the cursor against the current size.
+// This keeps the cost of posting a message the same no matter how many users
+// are watching.
 public class InterestStore {
 
-  //maps from a conversation I'm interested in to the number of messages since the last update.
-  private Map<Uuid, Integer> conversationInterests;
+  //maps from a conversation I'm interested in to the number of messages it had at my last update.
+  private final Map<Uuid, Integer> conversationCursors = new HashMap<>();
 
-  //maps from a user I'm interested in to the set of conversations they created/added to.
-  private Store<Uuid, ConversationHeader> userInterests;
+  //maps from a user I'm interested in to the length of their activity at my last update.
+  private final Map<Uuid, Integer> userCursors = new HashMap<>();
 
-  public InterestStore() {
-    conversationInterests = new HashMap<>();
-    userInterests = new Store<>(Model.UUID_COMPARE);
+  public int conversationInterests() {
+    return conversationCursors.size();
   }
 
-  public void addConversationInterest(Uuid conversation) {
-    conversationInterests.put(conversation, 0);
+  public int userInterests() {
+    return userCursors.size();
   }
 
-  public void increaseMessageCount(Uuid conversation) {
-    conversationInterests.put(conversation, conversationInterests.get(conversation) + 1);
+  public void addConversationInterest(Uuid conversation, int current) {
+    conversationCursors.put(conversation, current);
   }
 
-  public void addConversation(Uuid interest, ConversationHeader c) {
-    userInterests.insert(interest, c);
+  public void removeConversationInterest(Uuid conversation) {
+    conversationCursors.remove(conversation);
   }
 
-  public Iterable<ConversationHeader> getUserUpdate(Uuid id) {
-    Iterable<ConversationHeader> update = userInterests.at(id);
-    if (userInterests.first(id) == null) {
-      update = new ArrayList<>();
-    }
-    userInterests.clear(id);
-    return update;
+  public void addUserInterest(Uuid user, int current) {
+    userCursors.put(user, current);
   }
 
-  public int getConversationUpdate(Uuid conversation) {
-    int messages = conversationInterests.get(conversation);
-    conversationInterests.put(conversation, 0);
-    return messages;
+  public void removeUserInterest(Uuid user) {
+    userCursors.remove(user);
   }
 
-  public StoreAccessor<Uuid, ConversationHeader> userUpdates() {
-    return userInterests;
+  // Get the number of messages added to the conversation since the last update
+  // and move the cursor to "current". Returns 0 if this is not an interest.
+  public int getConversationUpdate(Uuid conversation, int current) {
+    final Integer last = conversationCursors.get(conversation);
+    if (last == null) {
+      return 0;
+    }
+    conversationCursors.put(conversation, current);
+    return Math.max(0, current - last);
   }
 
-  public Map<Uuid, Integer> conversationUpdates() {
-    return conversationInterests;
+  // Get the position in the user's activity of the last update and move the
+  // cursor to "current". If this is not an interest, "current" is returned so
+  // that there will be no updates.
+  public int getUserUpdate(Uuid user, int current) {
+    final Integer last = userCursors.get(user);
+    if (last == null) {
+      return current;
+    }
+    userCursors.put(user, current);
+    return Math.min(last, current);
   }
 }
@@ -15,7 +15,28 @@
 package codeu.chat.util;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+// LOGGER
+//
+// A thin layer over java.util.logging. Every call first checks the level, so a
+// message below the level costs nothing more than the call itself.
+//
+// By default messages are formatted and written on the thread that logs them.
+// After "enableAsync" they are put on a bounded queue instead and a background
+// thread formats and writes them, so a slow console or disk does not hold up
+// the thread that logged. When the queue is full, warnings and errors wait for
+// room but anything less is dropped (and the number dropped is logged later).
+//
+// Finding the class and method that logged needs a stack trace, which is the
+// most expensive part of a call. "setCallerInfo(false)" turns it off and the
+// class the log was made for is used instead.
 public final class Logger {
 
   public interface Log {
@@ -42,12 +63,23 @@ public final class Logger {
     logger.setUseParentHandlers(false);
   }
 
+  // The handlers are kept here rather than added to "logger" because
+  // java.util.logging closes the handlers it knows about when the program
+  // exits, which could be before the last waiting messages are written.
+  private static final List<java.util.logging.Handler> handlers = new CopyOnWriteArrayList<>();
+
+  private static volatile boolean callerInfo = true;
+
+  // Null until "enableAsync" is called.
+  private static volatile Writer writer = null;
+  private static boolean hooked = false;
+
   public static void enableFileOutput(String file) throws IOException {
 
     final java.util.logging.Handler handler =
         new java.util.logging.FileHandler(file, true /* append */);
     handler.setFormatter(new java.util.logging.SimpleFormatter());
-    logger.addHandler(handler);
+    handlers.add(handler);
   }
 
   public static void enableConsoleOutput() {
@@ -55,58 +87,261 @@ public final class Logger {
     final java.util.logging.Handler handler =
         new java.util.logging.ConsoleHandler();
     handler.setFormatter(new java.util.logging.SimpleFormatter());
-    logger.addHandler(handler);
+    handlers.add(handler);
+  }
+
+  // SET CALLER INFO
+  //
+  // Choose whether each message says which class and method logged it.
+  public static void setCallerInfo(boolean enabled) {
+    callerInfo = enabled;
+  }
+
+  // ENABLE ASYNC
+  //
+  // Write messages from a background thread, keeping up to "capacity" waiting
+  // messages. Messages still waiting when the program exits are written
+  // before it does. Calling this again has no effect.
+  public static synchronized void enableAsync(int capacity) {
+
+    if (writer != null) {
+      return;
+    }
+
+    final Writer started = new Writer(Math.max(1, capacity));
+    started.start();
+    writer = started;
+
+    if (!hooked) {
+      hooked = true;
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          flush();
+        }
+      });
+    }
+  }
+
+  // Go back to writing on the thread that logs, once everything waiting has
+  // been written. Only used by tests.
+  static synchronized void disableAsync() {
+    flush();
+    if (writer != null) {
+      writer.interrupt();
+      writer = null;
+    }
+  }
+
+  // Only used by tests.
+  static void addHandler(java.util.logging.Handler handler) {
+    handlers.add(handler);
+  }
+
+  static void removeHandler(java.util.logging.Handler handler) {
+    handlers.remove(handler);
+  }
+
+  // FLUSH
+  //
+  // Wait for every message logged before this call to be written. Does nothing
+  // unless "enableAsync" has been called.
+  public static void flush() {
+
+    final Writer current = writer;
+
+    if (current == null) {
+      return;
+    }
+
+    final CountDownLatch done = new CountDownLatch(1);
+
+    try {
+      current.queue.put(new Entry(null, null, null, done));
+      done.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   public static Log newLog(Class<?> c) {
+    return new Target(java.util.logging.Logger.getLogger(c.getName()), c.getName());
+  }
+
+  private static final class Target implements Log {
+
+    private final java.util.logging.Logger log;
+    private final String name;
+
+    public Target(java.util.logging.Logger log, String name) {
+      this.log = log;
+      this.name = name;
+    }
+
+    @Override
+    public void verbose(String message, Object... params) {
+      write(java.util.logging.Level.FINE, null, message, params);
+    }
 
-    final java.util.logging.Logger log =
-        java.util.logging.Logger.getLogger(c.getName());
+    @Override
+    public void info(String message, Object... params) {
+      write(java.util.logging.Level.INFO, null, message, params);
+    }
 
-    // Note: This Logger calls the standard java Logger, so the class/method lookup
-    // needs to go one level deeper.  Otherwise it will appear that all the log
-    // calls are coming from this object. Use logp() (log precise) to do this.
-    return new Log() {
+    @Override
+    public void warning(String message, Object... params) {
+      write(java.util.logging.Level.WARNING, null, message, params);
+    }
 
-      @Override
-      public void verbose(String message, Object... params) {
-        log.logp(java.util.logging.Level.FINE,
-            Thread.currentThread().getStackTrace()[2].getClassName(),
-            Thread.currentThread().getStackTrace()[2].getMethodName(),
-            String.format(message, params));
+    @Override
+    public void error(String message, Object... params) {
+      write(java.util.logging.Level.SEVERE, null, message, params);
+    }
+
+    @Override
+    public void error(Throwable error, String message, Object... params) {
+      write(java.util.logging.Level.SEVERE, error, message, params);
+    }
+
+    // Every public method calls this directly, so the caller is always two
+    // frames up from here.
+    private void write(java.util.logging.Level level, Throwable error, String message, Object[] params) {
+
+      if (!log.isLoggable(level)) {
+        return;
       }
 
-      @Override
-      public void info(String message, Object... params) {
-        log.logp(java.util.logging.Level.INFO,
-            Thread.currentThread().getStackTrace()[2].getClassName(),
-            Thread.currentThread().getStackTrace()[2].getMethodName(),
-            String.format(message, params));
+      // The record is made now so that it has the time and thread of the
+      // call. Its message is filled in when it is written.
+      final java.util.logging.LogRecord record = new java.util.logging.LogRecord(level, null);
+      record.setLoggerName(name);
+      record.setSourceClassName(name);
+      record.setThrown(error);
+
+      if (callerInfo) {
+        final StackTraceElement caller = new Throwable().getStackTrace()[2];
+        record.setSourceClassName(caller.getClassName());
+        record.setSourceMethodName(caller.getMethodName());
       }
 
-      @Override
-      public void warning(String message, Object... params) {
-        log.logp(java.util.logging.Level.WARNING,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params));
+      final Entry entry = new Entry(record, message, params, null);
+
+      final Writer current = writer;
+
+      if (current == null) {
+        publish(entry);
+        return;
       }
 
-      @Override
-      public void error(String message, Object... params) {
-        log.logp(java.util.logging.Level.SEVERE,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params));
+      freeze(params);
+
+      if (level.intValue() >= java.util.logging.Level.WARNING.intValue()) {
+        try {
+          current.queue.put(entry);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      } else if (!current.queue.offer(entry)) {
+        current.dropped.incrementAndGet();
       }
+    }
+  }
+
+  // A message to be written. An entry with only "done" set marks a point that
+  // "flush" is waiting for.
+  private static final class Entry {
+
+    public final java.util.logging.LogRecord record;
+    public final String message;
+    public final Object[] params;
+    public final CountDownLatch done;
+
+    public Entry(java.util.logging.LogRecord record, String message, Object[] params, CountDownLatch done) {
+      this.record = record;
+      this.message = message;
+      this.params = params;
+      this.done = done;
+    }
+  }
+
+  private static final class Writer extends Thread {
+
+    public final BlockingQueue<Entry> queue;
+    public final AtomicLong dropped = new AtomicLong();
+
+    public Writer(int capacity) {
+      super("log-writer");
+      this.queue = new ArrayBlockingQueue<>(capacity);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          write(queue.take());
+        } catch (InterruptedException ex) {
+          return;
+        } catch (Exception ex) {
+          // A message that cannot be formatted should not stop the rest.
+          ex.printStackTrace();
+        }
+      }
+    }
+
+    private void write(Entry entry) {
+
+      final long lost = dropped.getAndSet(0);
+      if (lost > 0) {
+        final java.util.logging.LogRecord record =
+            new java.util.logging.LogRecord(java.util.logging.Level.WARNING, null);
+        record.setLoggerName(Logger.class.getName());
+        record.setSourceClassName(Logger.class.getName());
+        publish(new Entry(record,
+                          "Dropped %d log messages because the log queue was full",
+                          new Object[] { lost },
+                          null));
+      }
+
+      if (entry.done != null) {
+        entry.done.countDown();
+      } else {
+        publish(entry);
+      }
+    }
+  }
+
+  private static void publish(Entry entry) {
+
+    entry.record.setMessage(format(entry.message, entry.params));
+
+    for (final java.util.logging.Handler handler : handlers) {
+      handler.publish(entry.record);
+    }
+  }
+
+  private static String format(String message, Object[] params) {
+    return params.length == 0 && message.indexOf('%') < 0 ? message : String.format(message, params);
+  }
 
-      @Override
-      public void error(Throwable error, String message, Object... params) {
-        log.logp(java.util.logging.Level.SEVERE,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params), error);
+  // Parameters are formatted later on another thread, so anything that is not
+  // known to stay the same is turned into a string now. The array is the one
+  // made for the call, so it is safe to change.
+  private static void freeze(Object[] params) {
+    for (int i = 0; i < params.length; i++) {
+      final Object param = params[i];
+      if (!(param == null ||
+            param instanceof String ||
+            param instanceof Integer ||
+            param instanceof Long ||
+            param instanceof Double ||
+            param instanceof Boolean ||
+            param instanceof Character ||
+            param instanceof Enum ||
+            param instanceof Uuid ||
+            param instanceof Time)) {
+        params[i] = String.valueOf(param);
       }
-    };
+    }
   }
 }
@@ -25,6 +25,7 @@ public class PersistenceLog {
   public static final String DELETE_CONVERSATION = "DELETE-CONVERSATION";
   public static final String ADD_ADMIN = "ADD-ADMIN";
   public static final String REMOVE_ADMIN = "REMOVE-ADMIN";
+  public static final String RELAY_CURSOR = "RELAY-CURSOR";
   public static final String SPACE = " ";
 
   public static void writeTransaction(String type, Uuid id, String text, long time, Uuid owner, Uuid convoId) {
@@ -76,6 +77,9 @@ public class PersistenceLog {
       case REMOVE_ADMIN:
         log = REMOVE_ADMIN + SPACE + id;
         break;
+      case RELAY_CURSOR:
+        log = RELAY_CURSOR + SPACE + id;
+        break;
     }
     Server.getLogBuffer().add(log);
   }
@@ -95,6 +99,8 @@ public class PersistenceLog {
 
   public static void restore(Controller controller, File path) {
     File log = new File(path, "log.txt");
+    Flight.Event event = Flight.PERSISTENCE_RESTORE.begin();
+    long lines = 0;
     try {
 
       boolean created = log.createNewFile(); // true if file created, false otherwise
@@ -104,6 +110,7 @@ public class PersistenceLog {
         BufferedReader reader = new BufferedReader(new FileReader(log));
         while ((line = reader.readLine()) != null) {
           process(controller, line);
+          lines++;
         }
         reader.close();
       }
@@ -111,8 +118,11 @@ public class PersistenceLog {
     } catch (IOException e) {
       e.printStackTrace();
     }
+    event.set("phase", "transactions").set("file", log.getPath()).set("lines", lines).commit();
 
     File passwords = new File(path, "passwords.txt");
+    event = Flight.PERSISTENCE_RESTORE.begin();
+    lines = 0;
     try {
       boolean created = passwords.createNewFile();
       System.out.println(created);
@@ -121,6 +131,7 @@ public class PersistenceLog {
         BufferedReader reader = new BufferedReader(new FileReader(passwords));
         while ((line = reader.readLine()) != null) {
           processPassword(controller, line);
+          lines++;
         }
         reader.close();
       }
@@ -128,6 +139,7 @@ public class PersistenceLog {
     } catch (IOException e) {
       e.printStackTrace();
     }
+    event.set("phase", "passwords").set("file", passwords.getPath()).set("lines", lines).commit();
   }
 
   private static void process(Controller controller, String line) throws IOException {
@@ -174,6 +186,9 @@ public class PersistenceLog {
       case REMOVE_ADMIN:
         controller.removeAdmin(uuid);
         break;
+      case RELAY_CURSOR:
+        controller.setRelayCursor(uuid, false);
+        break;
     }
   }
 
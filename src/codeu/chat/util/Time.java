@@ -39,18 +39,35 @@ public final class Time implements Comparable<Time> {
     }
   };
 
-  private static final SimpleDateFormat formatter =
-      new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss.SSS");
+  // SimpleDateFormat is not thread-safe so each thread gets its own copy
+  // rather than sharing one formatter between every thread that logs a time.
+  private static final ThreadLocal<SimpleDateFormat> formatter =
+      new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+          return new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss.SSS");
+        }
+      };
 
-  private final Date date;
+  private final long totalMs;
 
-  private Time(long totalMs) { this.date = new Date(totalMs); }
+  private Time(long totalMs) { this.totalMs = totalMs; }
 
-  public long inMs() { return date.getTime(); }
+  public long inMs() { return totalMs; }
 
   @Override
   public int compareTo(Time other) {
-    return date.compareTo(other.date);
+    return Long.compare(totalMs, other.totalMs);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof Time && totalMs == ((Time) other).totalMs;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (totalMs ^ (totalMs >>> 32));
   }
 
   public boolean inRange(Time start, Time end) {
@@ -59,7 +76,7 @@ public final class Time implements Comparable<Time> {
 
   @Override
   public String toString() {
-    return formatter.format(date);
+    return formatter.get().format(new Date(totalMs));
   }
 
   public static Time fromMs(long ms) { return new Time(ms); }
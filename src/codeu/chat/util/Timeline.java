@@ -14,9 +14,14 @@
 
 package codeu.chat.util;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 // TIMELINE
 //
@@ -24,135 +29,387 @@ import java.util.concurrent.PriorityBlockingQueue;
 // when work needs to be ordered by time. The timeline manages its own threads
 // and there is no way to know outside of the code that is executed when the
 // code has been executed.
+//
+// Events that are already due go straight to the "todo" queue. Events in the
+// future are kept in a hashed timing wheel: a ring of buckets where each
+// bucket covers one tick of time. Adding an event only puts it on the
+// "incoming" queue, which the wheel thread moves into the right bucket the
+// next time it wakes, so scheduling never has to search or sort anything and
+// never has to wake another thread early. The wheel thread wakes once a tick
+// while there are events in the wheel and sleeps until something is added
+// when there are not.
+//
+// Due events are run by a pool of executor threads. With one thread (the
+// default) events run one at a time, which is what code that is not
+// thread-safe relies on.
+//
+// Adding an event gives back a task that can be used to cancel it. Events can
+// also be added to run again and again, either at a fixed rate or with a fixed
+// delay between runs, and their period can be changed while they are running.
+//
+// Every event belongs to a lane and due events wait in their lane's own queue.
+// Executor threads take from the lanes by weight, so a lane with four times
+// the weight of another gets four turns for every one the other gets while
+// both have work, and each lane may be limited to a number of threads so that
+// background work can be kept off some of the threads. Within a lane, events
+// run in the order they became due.
+//
+// Each lane keeps three histograms, all in microseconds: how late events
+// started compared to the time they were added for (lag), how long they sat in
+// the lane after becoming due (wait), and how long they took to run (run). Lag
+// that is mostly wait means events are queueing behind each other, while lag
+// with little wait means the wheel itself is running behind.
 public final class Timeline {
 
+  // LANE
+  //
+  // What kind of work an event is. This decides which queue it waits in.
+  public enum Lane {
+
+    // Work someone is waiting on, like a client request.
+    INTERACTIVE,
+
+    // Talking to the relay and handling what it sent.
+    RELAY,
+
+    // Background jobs, like reloading files.
+    MAINTENANCE
+  }
+
+  // The default weights. Threads default to every thread for interactive
+  // work, half for relay work, and one for maintenance.
+  private static final int INTERACTIVE_WEIGHT = 8;
+  private static final int RELAY_WEIGHT = 2;
+  private static final int MAINTENANCE_WEIGHT = 1;
+
   private final static Logger.Log LOG = Logger.newLog(Timeline.class);
 
-  private static final class Event implements Comparable<Event> {
+  // Events in the future may run up to one tick late.
+  private static final long TICK_MS = 2;
 
-    public final long time;
-    public final Runnable callback;
+  // The number of buckets in the wheel. Events further ahead than one turn of
+  // the wheel stay in their bucket until the turn they are due.
+  private static final int WHEEL_SIZE = 512;  // must be a power of two
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
 
-    public Event(long time, Runnable callback) {
+  // TASK
+  //
+  // A handle for an event on the timeline. A task that repeats keeps running
+  // until it is cancelled or the timeline stops. Cancelling does not stop a
+  // run that has already started, but the task will not start again.
+  public static final class Task {
+
+    private static final ThreadLocal<Task> CURRENT = new ThreadLocal<>();
+
+    private final Lane lane;
+    private final Runnable callback;
+    private final boolean repeats;
+    private final boolean fixedRate;
+
+    private volatile long period;
+    private volatile boolean cancelled = false;
+    private volatile boolean done = false;
+
+    // When the task should run next. This is only changed while the task is
+    // not waiting on the timeline.
+    private long time;
+
+    // When the task was last put in its lane (System.nanoTime).
+    private long dueNs;
+
+    private Task(Lane lane, long time, Runnable callback, boolean repeats, boolean fixedRate, long period) {
+      this.lane = lane;
       this.time = time;
       this.callback = callback;
+      this.repeats = repeats;
+      this.fixedRate = fixedRate;
+      this.period = period;
     }
 
-    @Override
-    public int compareTo(Event other) {
-      return Long.compare(time, other.time);
+    // CANCEL
+    //
+    // Stop the task from running (again). Returns false if it had already
+    // finished or been cancelled.
+    public boolean cancel() {
+      if (cancelled || done) {
+        return false;
+      }
+      cancelled = true;
+      return true;
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    // IS DONE
+    //
+    // Check if the task will never run again, either because it ran (for a
+    // task that does not repeat) or because it was cancelled.
+    public boolean isDone() {
+      return done || cancelled;
+    }
+
+    public boolean repeats() {
+      return repeats;
+    }
+
+    public long period() {
+      return period;
+    }
+
+    // SET PERIOD
+    //
+    // Change how often a repeating task runs. The new period is used from the
+    // next time the task is scheduled, which for a task changing its own
+    // period is right after the current run.
+    public void setPeriod(long ms) {
+      if (!repeats) {
+        throw new IllegalStateException("Only repeating tasks have a period");
+      }
+      period = Math.max(fixedRate ? 1 : 0, ms);
+    }
+
+    // CURRENT
+    //
+    // Get the task that is running on this thread, or null if this thread is
+    // not running a task. This lets a repeating task change its own period
+    // without needing the handle that was given back when it was added.
+    public static Task current() {
+      return CURRENT.get();
     }
   }
 
-  private final BlockingQueue<Event> backlog = new PriorityBlockingQueue<>();
-  private final BlockingQueue<Runnable> todo = new LinkedBlockingQueue<>();
+  // The due events for one lane. All fields are guarded by "todo".
+  private static final class Queue {
 
-  private boolean running = true;
+    public final Deque<Task> tasks = new ArrayDeque<>();
 
-  // This thread is used to track the time of events and moves events from the
-  // "backlog" queue to the "todo" queue when it is time to execute. They are
-  // separated to allow this thread to be safely interrupted.
-  private final Thread scheduler = new Thread() {
-    @Override
-    public void run() {
-      while (running) {
+    public int weight;
+    public int threads;
 
-        Event next;
+    public int running = 0;
 
-        try {
-          next = backlog.take();
-        } catch (InterruptedException ex) {
-          // Rather than try to handle the exception here, set "next"
-          // to null and let the normal flow handle the case.
-          next = null;
-        }
+    // Used to pick lanes by weight (smooth weighted round robin). Every time
+    // a lane is picked each waiting lane gains its weight and the picked lane
+    // gives up the total, so over time turns are shared out by weight and
+    // are spread out rather than bunched together.
+    public int credit = 0;
 
-        long sleep = 0;
-
-        if (next != null) {
-
-          final long now = System.currentTimeMillis();
-
-          // Check which queue the event should be added to. If it
-          // is time to execute, it should be added to the "todo"
-          // queue. If it is not time, it should be added back to the
-          // "backlog".
-          // If the item is added back to the backlog, we know how long
-          // it will be until it will be executed. That means we can sleep
-          // until then.
-          if (next.time <= now) {
-            forceAdd(todo, next.callback);
-            sleep = 0;
-          } else {
-            // Put it back (it's not time).
-            forceAdd(backlog, next);
-            sleep = next.time - now;
-          }
-        }
+    // These are safe to use without "todo".
+    public final Histogram lag = new Histogram();
+    public final Histogram wait = new Histogram();
+    public final Histogram run = new Histogram();
 
-        if (sleep > 0) {
-          try {
-            Thread.sleep(sleep);
-          } catch (InterruptedException ex) {
-            // There are two cases this will happen:
-            //  1. A new item was added and we are being woken to
-            //     check if we need to update the time.
-            //  2. It is time to exit and we need to wake-up so that
-            //     we can check that "running" is "false".
-          }
-        }
-      }
+    public Queue(int weight, int threads) {
+      this.weight = weight;
+      this.threads = threads;
     }
-  };
+  }
 
-  // This thread is used to run the code that was given to the time line. This
-  // worker does not need to know anything about the time. Once an event gets to
-  // here - it is considered "on time" and will be executed.
-  private final Thread executor = new Thread() {
+  // Events in the future that the wheel thread has not put in a bucket yet.
+  private final BlockingQueue<Task> incoming = new LinkedBlockingQueue<>();
+
+  // Due events for each lane, in the order of "Lane". This is also the lock
+  // for every queue.
+  private final Queue[] todo = new Queue[Lane.values().length];
+
+  // The number of executor threads waiting for work. Guarded by "todo".
+  private int idle = 0;
+
+  // Set once the scheduler has handed over everything it will when draining.
+  // Guarded by "todo".
+  private boolean settled = false;
+
+  // Only used by the wheel thread.
+  private final List<List<Task>> wheel = new ArrayList<>(WHEEL_SIZE);
+  private final long startMs = System.currentTimeMillis();
+  private long tick = 0;  // the last tick whose bucket has been emptied
+  private volatile int waiting = 0;  // the number of events in the wheel
+
+  private volatile boolean running = true;
+  private volatile boolean draining = false;
+
+  // This thread is used to track the time of events and moves events from the
+  // wheel to the "todo" queue when it is time to execute.
+  private final Thread scheduler = new Thread() {
     @Override
     public void run() {
-      while (running) {
+      while (running && !draining) {
         try {
-          todo.take().run();
-        } catch (Exception ex) {
-          // Catch all exceptions here to stop any rogue action from
-          // take down the timeline.
-          LOG.warning(
-              "An exception was seen on the timeline (%s)",
-              ex.toString());
+          turn();
+        } catch (InterruptedException ex) {
+          // It is time to exit. The loop will check "running".
         }
       }
+      if (draining) {
+        settle();
+      }
     }
   };
 
+  private final List<Thread> executors = new ArrayList<>();
+
+  // TIMELINE
+  //
+  // Create a timeline that runs events on one thread.
   public Timeline() {
+    this(1);
+  }
+
+  // TIMELINE
+  //
+  // Create a timeline that runs events on "threads" threads. Events may run at
+  // the same time so they must be safe to run together.
+  public Timeline(int threads) {
+
+    final int count = Math.max(1, threads);
+
+    todo[Lane.INTERACTIVE.ordinal()] = new Queue(INTERACTIVE_WEIGHT, count);
+    todo[Lane.RELAY.ordinal()] = new Queue(RELAY_WEIGHT, Math.max(1, count / 2));
+    todo[Lane.MAINTENANCE.ordinal()] = new Queue(MAINTENANCE_WEIGHT, 1);
+
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      wheel.add(new ArrayList<Task>());
+    }
+
     scheduler.start();
-    executor.start();
+
+    for (int i = 0; i < count; i++) {
+
+      // This thread is used to run the code that was given to the time line.
+      // This worker does not need to know anything about the time. Once an
+      // event gets to here - it is considered "on time" and will be executed.
+      final Thread executor = new Thread() {
+        @Override
+        public void run() {
+          while (running) {
+            try {
+              if (!execute()) {
+                break;
+              }
+            } catch (InterruptedException ex) {
+              // It is time to exit. The loop will check "running".
+            }
+          }
+        }
+      };
+
+      executors.add(executor);
+      executor.start();
+    }
+  }
+
+  // CONFIGURE
+  //
+  // Change how many turns "lane" gets compared to the other lanes and how many
+  // threads may run its events at the same time.
+  public void configure(Lane lane, int weight, int threads) {
+    synchronized (todo) {
+      final Queue queue = todo[lane.ordinal()];
+      queue.weight = Math.max(1, weight);
+      queue.threads = Math.max(1, threads);
+      todo.notifyAll();
+    }
+  }
+
+  // DEPTH
+  //
+  // Get the number of events in "lane" that are due but have not started.
+  public int depth(Lane lane) {
+    synchronized (todo) {
+      return todo[lane.ordinal()].tasks.size();
+    }
+  }
+
+  // BACKLOG
+  //
+  // Get the number of events that are not due yet.
+  public int backlog() {
+    return waiting + incoming.size();
+  }
+
+  // LAG
+  //
+  // How late events in "lane" started, in microseconds.
+  public Histogram lag(Lane lane) {
+    return todo[lane.ordinal()].lag;
+  }
+
+  // QUEUE WAIT
+  //
+  // How long events in "lane" waited after becoming due, in microseconds.
+  public Histogram queueWait(Lane lane) {
+    return todo[lane.ordinal()].wait;
+  }
+
+  // RUN TIME
+  //
+  // How long events in "lane" took to run, in microseconds.
+  public Histogram runTime(Lane lane) {
+    return todo[lane.ordinal()].run;
   }
 
   // SCHEDULE NOW
   //
   // Add an event to the timeline so that it will occur as soon as possible.
-  public void scheduleNow(Runnable callback) {
-    scheduleAt(System.currentTimeMillis(), callback);
+  public Task scheduleNow(Runnable callback) {
+    return scheduleNow(Lane.INTERACTIVE, callback);
+  }
+
+  public Task scheduleNow(Lane lane, Runnable callback) {
+    return schedule(new Task(lane, System.currentTimeMillis(), callback, false, false, 0));
   }
 
   // SCHEDULE IN
   //
   // Add an event to the timeline so that it will occur in approximately in a
   // set amount of milliseconds.
-  public void scheduleIn(long ms, Runnable callback) {
-    scheduleAt(System.currentTimeMillis() + ms, callback);
+  public Task scheduleIn(long ms, Runnable callback) {
+    return scheduleIn(Lane.INTERACTIVE, ms, callback);
+  }
+
+  public Task scheduleIn(Lane lane, long ms, Runnable callback) {
+    return scheduleAt(lane, System.currentTimeMillis() + ms, callback);
   }
 
   // SCHEDULE AT
   //
   // Add an event to the timeline so that will occur approximately at a fixed
   // point in time.
-  public void scheduleAt(long timeMs, Runnable callback) {
-    final Event event = new Event(timeMs, callback);
-    forceAdd(backlog, event);
-    scheduler.interrupt();  // wake it up
+  public Task scheduleAt(long timeMs, Runnable callback) {
+    return scheduleAt(Lane.INTERACTIVE, timeMs, callback);
+  }
+
+  public Task scheduleAt(Lane lane, long timeMs, Runnable callback) {
+    return schedule(new Task(lane, timeMs, callback, false, false, 0));
+  }
+
+  // SCHEDULE AT FIXED RATE
+  //
+  // Add an event that first occurs in "delayMs" milliseconds and then every
+  // "periodMs" milliseconds after that was meant to start. If a run is late,
+  // the next one is not moved earlier to make up for it.
+  public Task scheduleAtFixedRate(Lane lane, long delayMs, long periodMs, Runnable callback) {
+    return schedule(new Task(lane,
+                             System.currentTimeMillis() + delayMs,
+                             callback,
+                             true,
+                             true,
+                             Math.max(1, periodMs)));
+  }
+
+  // SCHEDULE WITH FIXED DELAY
+  //
+  // Add an event that first occurs in "delayMs" milliseconds and then again
+  // "periodMs" milliseconds after each run ends.
+  public Task scheduleWithFixedDelay(Lane lane, long delayMs, long periodMs, Runnable callback) {
+    return schedule(new Task(lane,
+                             System.currentTimeMillis() + delayMs,
+                             callback,
+                             true,
+                             false,
+                             Math.max(0, periodMs)));
   }
 
   // STOP
@@ -164,7 +421,23 @@ public final class Timeline {
     // Interrupt does not force a thread to exit. It signals the
     // thead that it is time to stop execution. As the threads may
     // be sleeping, this will force them awake.
-    executor.interrupt();
+    for (final Thread executor : executors) {
+      executor.interrupt();
+    }
+    scheduler.interrupt();
+  }
+
+  // DRAIN
+  //
+  // Tell the timeline to shutdown once every event that is already due has
+  // run. Events in the future will not run and repeating events will not run
+  // again. Events that become due while draining (for example ones added by an
+  // event that is running) are still run. This is a non-blocking call.
+  public void drain() {
+    synchronized (todo) {
+      draining = true;
+      todo.notifyAll();
+    }
     scheduler.interrupt();
   }
 
@@ -172,10 +445,263 @@ public final class Timeline {
   //
   // Wait for the timeline to shutdown. This is a blocking call.
   public void join() {
-    forceJoin(executor);
+    for (final Thread executor : executors) {
+      forceJoin(executor);
+    }
     forceJoin(scheduler);
   }
 
+  // TURN
+  //
+  // Move new events into the wheel and everything that is due out of it. When
+  // the wheel is empty this waits for a new event rather than ticking. When it
+  // is not, this waits until the next bucket with anything in it (at most one
+  // turn away) or until a new event comes in, whichever is first.
+  private void turn() throws InterruptedException {
+
+    if (waiting == 0) {
+      final Task first = incoming.take();
+      // Nothing is in the wheel so there are no buckets to catch up on.
+      tick = Math.max(tick, tickAt(System.currentTimeMillis()));
+      place(first);
+    }
+
+    for (Task next = incoming.poll(); next != null; next = incoming.poll()) {
+      place(next);
+    }
+
+    final long now = System.currentTimeMillis();
+    final long current = tickAt(now);
+
+    // Empty every bucket up to now. If the thread fell behind by more than a
+    // turn there is no point visiting a bucket more than once.
+    final long last = Math.min(current, tick + WHEEL_SIZE);
+    for (long t = tick + 1; t <= last; t++) {
+      expire(wheel.get((int) (t & WHEEL_MASK)), now);
+    }
+    tick = current;
+
+    if (waiting > 0) {
+      final long waitMs = Math.max(1, nextBucketMs(current) - System.currentTimeMillis());
+      final Task next = incoming.poll(waitMs, TimeUnit.MILLISECONDS);
+      if (next != null) {
+        place(next);
+      }
+    }
+  }
+
+  // Get the time of the first bucket after "current" that has anything in it.
+  // A bucket may only hold events for a later turn, in which case the wheel
+  // just looks again once that bucket has been visited.
+  private long nextBucketMs(long current) {
+    for (long t = current + 1; t < current + WHEEL_SIZE; t++) {
+      if (!wheel.get((int) (t & WHEEL_MASK)).isEmpty()) {
+        return startMs + t * TICK_MS;
+      }
+    }
+    return startMs + (current + WHEEL_SIZE) * TICK_MS;
+  }
+
+  private void place(Task task) {
+
+    final long due = dueTick(task.time);
+
+    if (due <= tick) {
+      // Its bucket has already been emptied this turn.
+      due(task);
+    } else {
+      wheel.get((int) (due & WHEEL_MASK)).add(task);
+      waiting++;
+    }
+  }
+
+  // Move everything in "bucket" that is due to its lane. Cancelled tasks are
+  // dropped here too so that they do not sit in the wheel until their time.
+  private void expire(List<Task> bucket, long now) {
+    final Iterator<Task> it = bucket.iterator();
+    while (it.hasNext()) {
+      final Task task = it.next();
+      if (task.cancelled) {
+        it.remove();
+        waiting--;
+      } else if (task.time <= now) {
+        it.remove();
+        waiting--;
+        due(task);
+      }
+    }
+  }
+
+  // SETTLE
+  //
+  // Called by the scheduler when it exits while draining. Anything still
+  // waiting that has become due is run and the rest is cancelled.
+  private void settle() {
+    final long now = System.currentTimeMillis();
+    final List<Task> left = new ArrayList<>();
+    incoming.drainTo(left);
+    for (final List<Task> bucket : wheel) {
+      left.addAll(bucket);
+      bucket.clear();
+    }
+    waiting = 0;
+    for (final Task task : left) {
+      if (task.time <= now && !task.cancelled) {
+        due(task);
+      } else {
+        task.cancelled = true;
+      }
+    }
+    synchronized (todo) {
+      settled = true;
+      todo.notifyAll();
+    }
+  }
+
+  // SCHEDULE
+  //
+  // Put a task on the timeline for its time. Tasks that are already due go
+  // straight to their lane and the rest go to the wheel. Once draining, only
+  // tasks that are due are accepted.
+  private Task schedule(Task task) {
+    if (task.time <= System.currentTimeMillis()) {
+      due(task);
+    } else if (draining) {
+      task.cancelled = true;
+    } else {
+      forceAdd(incoming, task);
+    }
+    return task;
+  }
+
+  // Add a task that is due to its lane's queue.
+  private void due(Task task) {
+    task.dueNs = System.nanoTime();
+    synchronized (todo) {
+      todo[task.lane.ordinal()].tasks.addLast(task);
+      if (idle > 0) {
+        todo.notify();
+      }
+    }
+  }
+
+  // EXECUTE
+  //
+  // Wait for a lane that has a due event and a free thread, then run its next
+  // event. Returns false once the timeline has been drained.
+  private boolean execute() throws InterruptedException {
+
+    final Queue lane;
+    final Task task;
+
+    synchronized (todo) {
+      Queue picked = pick();
+      while (picked == null) {
+        if (settled) {
+          // Other threads may also be waiting to find out.
+          todo.notifyAll();
+          return false;
+        }
+        idle++;
+        try {
+          todo.wait();
+        } finally {
+          idle--;
+        }
+        picked = pick();
+      }
+      lane = picked;
+      task = lane.tasks.removeFirst();
+      lane.running++;
+    }
+
+    final long startNs = System.nanoTime();
+    final boolean skip = task.cancelled;
+    final Flight.Event event = Flight.TIMELINE_TASK.begin();
+    long lagUs = 0;
+
+    try {
+      if (!skip) {
+        lagUs = (System.currentTimeMillis() - task.time) * 1000;
+        lane.lag.record(lagUs);
+        lane.wait.record((startNs - task.dueNs) / 1000);
+        Task.CURRENT.set(task);
+        task.callback.run();
+      }
+    } catch (Exception ex) {
+      // Catch all exceptions here to stop any rogue action from
+      // take down the timeline.
+      LOG.warning(
+          "An exception was seen on the timeline (%s)",
+          ex.toString());
+    } finally {
+      Task.CURRENT.remove();
+      if (!skip) {
+        lane.run.record((System.nanoTime() - startNs) / 1000);
+        if (event.isActive()) {
+          event.set("lane", task.lane.name())
+               .set("lagMicros", lagUs)
+               .set("waitMicros", (startNs - task.dueNs) / 1000)
+               .commit();
+        }
+      }
+      synchronized (todo) {
+        lane.running--;
+        // Another thread may have been held back by this lane's limit.
+        if (idle > 0 && !lane.tasks.isEmpty()) {
+          todo.notify();
+        }
+      }
+    }
+
+    if (task.repeats && !task.cancelled && running && !draining) {
+      final long now = System.currentTimeMillis();
+      // A fixed rate task that fell behind skips the runs it missed rather
+      // than running them back to back.
+      task.time = task.fixedRate ? Math.max(now, task.time + task.period) : now + task.period;
+      schedule(task);
+    } else {
+      task.done = true;
+    }
+
+    return true;
+  }
+
+  // Pick the lane to run next or null if no lane can run. Must be called
+  // while holding "todo".
+  private Queue pick() {
+
+    Queue best = null;
+    int total = 0;
+
+    for (final Queue lane : todo) {
+      if (!lane.tasks.isEmpty() && lane.running < lane.threads) {
+        lane.credit += lane.weight;
+        total += lane.weight;
+        if (best == null || lane.credit > best.credit) {
+          best = lane;
+        }
+      }
+    }
+
+    if (best != null) {
+      best.credit -= total;
+    }
+
+    return best;
+  }
+
+  // The last tick that has fully ended at "timeMs".
+  private long tickAt(long timeMs) {
+    return (timeMs - startMs) / TICK_MS;
+  }
+
+  // The first tick that ends at or after "timeMs". Once that tick has ended an
+  // event at "timeMs" is due.
+  private long dueTick(long timeMs) {
+    return (timeMs - startMs + TICK_MS - 1) / TICK_MS;
+  }
+
   private static void forceJoin(Thread thread) {
     while (true) {
       try {
@@ -18,7 +18,6 @@ import java.lang.StringBuilder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Objects;
 
 public final class Uuid {
 
@@ -60,10 +59,12 @@ public final class Uuid {
         chain[i] = Serializers.INTEGER.read(in);
       }
 
+      // Build the chain through the pool so that a response full of ids that
+      // share the same server root only ever produces one copy of that root.
       Uuid head = null;
 
       for (int i = length - 1; i >= 0; i--) {
-        head = new Uuid(head, chain[i]);
+        head = intern(head, chain[i]);
       }
 
       return head;
@@ -85,17 +86,62 @@ public final class Uuid {
     Uuid make();
   }
 
+  // POOL
+  //
+  // A bounded, direct-mapped cache of canonical Uuid instances. Every link is
+  // placed in a slot chosen by its hash; a new value for a slot simply
+  // replaces the old one. This keeps the pool at a fixed size with no
+  // eviction bookkeeping while still catching the common case of the same
+  // roots and recently used ids being decoded over and over again.
+  //
+  // Reads and writes of the slots are not synchronized. As Uuids are immutable
+  // (all fields are final) a racing reader will either see a fully built Uuid
+  // or a different one, and in the worst case it will miss and allocate.
+  private static final class Pool {
+
+    private static final int SIZE = 1 << 12;  // must be a power of two
+    private static final int MASK = SIZE - 1;
+
+    private final Uuid[] slots = new Uuid[SIZE];
+
+    public Uuid get(Uuid root, int id) {
+
+      final int hash = hash(root, id);
+      final int index = (hash ^ (hash >>> 16)) & MASK;
+
+      final Uuid found = slots[index];
+
+      if (found != null && found.id == id && Uuid.equals(found.root, root)) {
+        return found;
+      }
+
+      final Uuid created = new Uuid(root, id, hash);
+      slots[index] = created;
+      return created;
+    }
+  }
+
+  private static final Pool POOL = new Pool();
+
   private final Uuid root;
   private final int id;
 
+  // The hash is computed once as a Uuid can never change and hashing would
+  // otherwise need to walk the full chain every time the Uuid is used as a key.
+  private final int hash;
+
   public Uuid(Uuid root, int id) {
-    this.root = root;
-    this.id = id;
+    this(root, id, hash(root, id));
   }
 
   public Uuid(int id) {
-    this.root = null;
+    this(null, id);
+  }
+
+  private Uuid(Uuid root, int id, int hash) {
+    this.root = root;
     this.id = id;
+    this.hash = hash;
   }
 
   public Uuid root() {
@@ -112,7 +158,7 @@ public final class Uuid {
   }
 
   @Override
-  public int hashCode() { return hash(this); }
+  public int hashCode() { return hash; }
 
   @Override
   public String toString() {
@@ -151,16 +197,27 @@ public final class Uuid {
 
   }
 
-  // Compute a hash code for the Uuids by walking up the chain.
-  private static int hash(Uuid id) {
-
-    int hash = 0;
+  // Compute a hash code for a link from the hash of its root. This gives the
+  // same value as walking up the chain and combining the hash of every id.
+  // "31 + id" is what "Objects.hash(id)" returns without boxing the id.
+  private static int hash(Uuid root, int id) {
+    return (root == null ? 0 : root.hash) ^ (31 + id);
+  }
 
-    for (Uuid current = id; current != null; current = current.root()) {
-      hash ^= Objects.hash(current.id());
-    }
+  // INTERN
+  //
+  // Get the canonical instance for the link made from "root" and "id". The
+  // root should already be canonical (e.g. from an earlier call to intern) for
+  // the pool to be effective, but any root will give a correct result.
+  public static Uuid intern(Uuid root, int id) {
+    return POOL.get(root, id);
+  }
 
-    return hash;
+  // INTERN
+  //
+  // Get the canonical instance for a full Uuid chain. Null will return null.
+  public static Uuid intern(Uuid value) {
+    return value == null ? null : intern(intern(value.root()), value.id());
   }
 
   // Compute human-readable representation for Uuids
@@ -196,7 +253,7 @@ public final class Uuid {
           tokens[index]));
     }
 
-    final Uuid link = new Uuid(root, (int)(id & 0xFFFFFFFF));
+    final Uuid link = intern(root, (int)(id & 0xFFFFFFFF));
 
     final int nextIndex = index + 1;
 
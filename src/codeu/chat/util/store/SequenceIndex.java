@@ -0,0 +1,165 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.store;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import codeu.chat.util.Uuid;
+
+// SEQUENCE INDEX
+//
+// An append-only index of ids where every id is given the next sequence
+// number, starting at zero. This is used to track the order of messages in a
+// conversation without walking the "next" links of each message.
+//
+// Entries are kept in fixed size chunks so that growing the index never copies
+// old entries - only the small directory of chunks is ever resized. That gives:
+//   - O(1) access by sequence number.
+//   - O(log n) search by time.
+//   - Cheap iteration in either direction over any range.
+//
+// For the time search each entry keeps the largest time seen up to that point
+// rather than its own time. Messages can arrive a little out of order (e.g.
+// from the relay) and this keeps the times sorted so that a binary search will
+// always find the first entry at or after the requested time.
+public final class SequenceIndex {
+
+  private static final int CHUNK_BITS = 8;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private Uuid[][] ids = new Uuid[1][];
+  private long[][] times = new long[1][];
+
+  private int size = 0;
+
+  // APPEND
+  //
+  // Add an id to the end of the index and return its sequence number.
+  public int append(Uuid id, long time) {
+
+    final int chunk = size >>> CHUNK_BITS;
+    final int offset = size & CHUNK_MASK;
+
+    if (offset == 0) {
+      if (chunk == ids.length) {
+        final Uuid[][] newIds = new Uuid[chunk * 2][];
+        final long[][] newTimes = new long[chunk * 2][];
+        System.arraycopy(ids, 0, newIds, 0, chunk);
+        System.arraycopy(times, 0, newTimes, 0, chunk);
+        ids = newIds;
+        times = newTimes;
+      }
+      ids[chunk] = new Uuid[CHUNK_SIZE];
+      times[chunk] = new long[CHUNK_SIZE];
+    }
+
+    ids[chunk][offset] = id;
+    times[chunk][offset] = size == 0 ? time : Math.max(time, timeAt(size - 1));
+
+    return size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // The number of entries in the chunks that have been allocated so far.
+  public int capacity() {
+    return ((size + CHUNK_MASK) >>> CHUNK_BITS) << CHUNK_BITS;
+  }
+
+  // AT
+  //
+  // Get the id with the given sequence number. Returns null if there is no
+  // entry with that sequence number.
+  public Uuid at(int sequence) {
+    return sequence < 0 || sequence >= size ?
+        null :
+        ids[sequence >>> CHUNK_BITS][sequence & CHUNK_MASK];
+  }
+
+  // SEEK
+  //
+  // Find the sequence number of the first entry that was added at or after
+  // the given time. If every entry is older, size() is returned.
+  public int seek(long time) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (timeAt(middle) < time) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  // RANGE
+  //
+  // Iterate over the ids from sequence number "start" (inclusive) to "end"
+  // (exclusive) - oldest first. The range is clipped to the entries that exist.
+  public Iterable<Uuid> range(int start, int end) {
+    return view(Math.max(0, start), Math.min(end, size), false);
+  }
+
+  // REVERSE
+  //
+  // Iterate over the same ids as range() but newest first. To get the last
+  // "n" entries use reverse(size() - n, size()).
+  public Iterable<Uuid> reverse(int start, int end) {
+    return view(Math.max(0, start), Math.min(end, size), true);
+  }
+
+  private long timeAt(int sequence) {
+    return times[sequence >>> CHUNK_BITS][sequence & CHUNK_MASK];
+  }
+
+  private Iterable<Uuid> view(final int start, final int end, final boolean reversed) {
+    return new Iterable<Uuid>() {
+      @Override
+      public Iterator<Uuid> iterator() {
+        return new Iterator<Uuid>() {
+
+          private int current = reversed ? end - 1 : start;
+
+          @Override
+          public boolean hasNext() {
+            return current >= start && current < end;
+          }
+
+          @Override
+          public Uuid next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            final Uuid id = at(current);
+            current += reversed ? -1 : 1;
+            return id;
+          }
+
+          @Override
+          public void remove() {
+            // do nothing
+          }
+        };
+      }
+    };
+  }
+}
@@ -30,6 +30,10 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
 
   private final Comparator<KEY> comparator;
 
+  // The number of links in the chain. Clearing a key only drops it from the
+  // index so this never goes down.
+  private int links = 0;
+
   public Store(Comparator<KEY> comparator) {
     this.index = new TreeMap<>(comparator);
     this.comparator = comparator;
@@ -51,6 +55,7 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
     // should always be safe to call to current.
     final StoreLink<KEY, VALUE> newLink = new StoreLink<>(key, value, current.next);
     current.next = newLink;
+    links++;
 
     // Before adding the link to the index, first check if the hint has an
     // equal key. If it does - do not add the index.
@@ -67,6 +72,18 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
     }
   }
 
+  // The number of keys in the index. Values that share a key with an earlier
+  // value are not counted.
+  public int size() {
+    return index.size();
+  }
+
+  // The number of values in the chain, including ones whose key was cleared
+  // and ones that share a key. These are all still reachable from the store.
+  public int links() {
+    return links;
+  }
+
   @Override
   public void clear(KEY key) {
     index.remove(key);
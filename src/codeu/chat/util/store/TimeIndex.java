@@ -0,0 +1,190 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import codeu.chat.util.Time;
+
+// TIME INDEX
+//
+// A store keyed by time that keeps its keys as primitive longs. Keys and values
+// are held in two parallel arrays sorted by key so that lookups are a binary
+// search over longs - no boxing and no comparator calls. As almost everything
+// is created "now", new keys nearly always belong at the end which makes the
+// common insert an append.
+//
+// Values with equal keys are kept in insertion order, the same as Store.
+public final class TimeIndex<VALUE> implements StoreAccessor<Time, VALUE> {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private long[] keys = new long[INITIAL_CAPACITY];
+  private Object[] values = new Object[INITIAL_CAPACITY];
+  private int size = 0;
+
+  public void insert(Time key, VALUE value) {
+    insert(key.inMs(), value);
+  }
+
+  public void insert(long key, VALUE value) {
+
+    // Only search when the new key would not go at the end.
+    final int index = (size == 0 || keys[size - 1] <= key) ? size : upperBound(key);
+
+    if (size == keys.length) {
+      final long[] newKeys = new long[size * 2];
+      final Object[] newValues = new Object[size * 2];
+      System.arraycopy(keys, 0, newKeys, 0, size);
+      System.arraycopy(values, 0, newValues, 0, size);
+      keys = newKeys;
+      values = newValues;
+    }
+
+    System.arraycopy(keys, index, keys, index + 1, size - index);
+    System.arraycopy(values, index, values, index + 1, size - index);
+
+    keys[index] = key;
+    values[index] = value;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // The number of entries the arrays can hold before they have to grow.
+  public int capacity() {
+    return keys.length;
+  }
+
+  @Override
+  public void clear(Time key) {
+
+    final int start = lowerBound(key.inMs());
+    final int end = upperBound(key.inMs());
+    final int removed = end - start;
+
+    if (removed > 0) {
+      System.arraycopy(keys, end, keys, start, size - end);
+      System.arraycopy(values, end, values, start, size - end);
+
+      // Drop the references to the moved values so they can be collected.
+      for (int i = size - removed; i < size; i++) {
+        values[i] = null;
+      }
+
+      size -= removed;
+    }
+  }
+
+  @Override
+  public VALUE first(Time key) {
+    final long ms = key.inMs();
+    final int index = lowerBound(ms);
+    return index < size && keys[index] == ms ? valueAt(index) : null;
+  }
+
+  @Override
+  public Iterable<VALUE> all() {
+    return view(0, size);
+  }
+
+  @Override
+  public Iterable<VALUE> at(Time key) {
+    return view(lowerBound(key.inMs()), upperBound(key.inMs()));
+  }
+
+  @Override
+  public Iterable<VALUE> after(Time start) {
+    return view(lowerBound(start.inMs()), size);
+  }
+
+  @Override
+  public Iterable<VALUE> before(Time end) {
+    return view(0, upperBound(end.inMs()));
+  }
+
+  @Override
+  public Iterable<VALUE> range(Time start, Time end) {
+    return view(lowerBound(start.inMs()), upperBound(end.inMs()));
+  }
+
+  // Find the first index whose key is equal to or greater than "key".
+  private int lowerBound(long key) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (keys[middle] < key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  // Find the first index whose key is greater than "key".
+  private int upperBound(long key) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (keys[middle] <= key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  @SuppressWarnings("unchecked")
+  private VALUE valueAt(int index) {
+    return (VALUE) values[index];
+  }
+
+  private Iterable<VALUE> view(final int start, final int end) {
+    return new Iterable<VALUE>() {
+      @Override
+      public Iterator<VALUE> iterator() {
+        return new Iterator<VALUE>() {
+
+          private int current = start;
+
+          @Override
+          public boolean hasNext() {
+            return current < Math.min(end, size);
+          }
+
+          @Override
+          public VALUE next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return valueAt(current++);
+          }
+
+          @Override
+          public void remove() {
+            // do nothing
+          }
+        };
+      }
+    };
+  }
+}
@@ -22,14 +22,27 @@ public final class TestRunner {
   public static void main(String[] args) {
      final Result result =
          JUnitCore.runClasses(
+             codeu.chat.common.RelayCodecTest.class,
              codeu.chat.common.SecretTest.class,
+             codeu.chat.relay.DiskHistoryTest.class,
              codeu.chat.relay.ServerTest.class,
              codeu.chat.server.BasicControllerTest.class,
+             codeu.chat.server.ModelTest.class,
+             codeu.chat.server.PartitionedRelayTest.class,
              codeu.chat.server.RawControllerTest.class,
+             codeu.chat.server.RelayOutboxTest.class,
+             codeu.chat.server.RemoteRelayTest.class,
+             codeu.chat.server.RequestTraceTest.class,
+             codeu.chat.server.ServerTest.class,
              codeu.chat.server.StorageTest.class,
+             codeu.chat.util.HistogramTest.class,
+             codeu.chat.util.LoggerTest.class,
              codeu.chat.util.TimeTest.class,
+             codeu.chat.util.TimelineTest.class,
              codeu.chat.util.UuidTest.class,
              codeu.chat.util.store.StoreTest.class,
+             codeu.chat.util.store.SequenceIndexTest.class,
+             codeu.chat.util.store.TimeIndexTest.class,
              codeu.chat.util.TokenizerTest.class,
              codeu.chat.AdminTest.class,
              codeu.chat.AuthTest.class
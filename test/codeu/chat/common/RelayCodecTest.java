@@ -0,0 +1,207 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class RelayCodecTest {
+
+  private static final Uuid TEAM_A = new Uuid(Uuid.NULL, 7);
+  private static final Uuid TEAM_B = new Uuid(Uuid.NULL, 8);
+
+  @Test
+  public void testCompactRoundTrip() throws IOException {
+
+    final List<Relay.Bundle> bundles = sample(50);
+    final Collection<Relay.Bundle> result = roundTrip(RelayCodec.bundles(RelayCodec.COMPACT), bundles);
+
+    assertSameBundles(bundles, result);
+  }
+
+  @Test
+  public void testLegacyRoundTrip() throws IOException {
+
+    final List<Relay.Bundle> bundles = sample(10);
+    final Collection<Relay.Bundle> result = roundTrip(RelayCodec.bundles(RelayCodec.LEGACY), bundles);
+
+    assertSameBundles(bundles, result);
+  }
+
+  @Test
+  public void testCompactIsSmaller() throws IOException {
+
+    final List<Relay.Bundle> bundles = sample(100);
+
+    final int legacy = size(RelayCodec.bundles(RelayCodec.LEGACY), bundles);
+    final int compact = size(RelayCodec.bundles(RelayCodec.COMPACT), bundles);
+
+    // Every bundle shares its user and conversation with others so the
+    // compact form should be well under half the size.
+    assertTrue(compact * 2 < legacy);
+  }
+
+  @Test
+  public void testCompactRenamedUserIsResent() throws IOException {
+
+    final Relay.Bundle.Component conversation =
+        RelayCodec.component(new Uuid(TEAM_A, 2), "chat", Time.fromMs(1000));
+    final Uuid userId = new Uuid(TEAM_A, 1);
+
+    final List<Relay.Bundle> bundles = new ArrayList<>();
+    bundles.add(RelayCodec.bundle(
+        Uuid.intern(null, 1), Time.fromMs(5000), TEAM_A,
+        RelayCodec.component(userId, "before", Time.fromMs(900)),
+        conversation,
+        RelayCodec.component(new Uuid(TEAM_A, 3), "one", Time.fromMs(4000))));
+    bundles.add(RelayCodec.bundle(
+        Uuid.intern(null, 2), Time.fromMs(4500), TEAM_A,
+        RelayCodec.component(userId, "apr\u00e8s", Time.fromMs(900)),
+        conversation,
+        RelayCodec.component(new Uuid(TEAM_A, 4), "two", Time.fromMs(4400))));
+
+    final Collection<Relay.Bundle> result = roundTrip(RelayCodec.bundles(RelayCodec.COMPACT), bundles);
+
+    assertSameBundles(bundles, result);
+  }
+
+  @Test
+  public void testCompactOutgoingRoundTrip() throws IOException {
+
+    final List<Relay.Outgoing> outgoing = new ArrayList<>();
+    for (final Relay.Bundle bundle : sample(20)) {
+      outgoing.add(RelayCodec.outgoing(bundle.user(), bundle.conversation(), bundle.message()));
+    }
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RelayCodec.outgoing(RelayCodec.COMPACT).write(out, outgoing);
+
+    final Collection<? extends Relay.Outgoing> result =
+        RelayCodec.outgoing(RelayCodec.COMPACT).read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(outgoing.size(), result.size());
+
+    final Iterator<? extends Relay.Outgoing> actual = result.iterator();
+    for (final Relay.Outgoing expected : outgoing) {
+      final Relay.Outgoing next = actual.next();
+      assertSameComponent(expected.user(), next.user());
+      assertSameComponent(expected.conversation(), next.conversation());
+      assertSameComponent(expected.message(), next.message());
+    }
+  }
+
+  @Test
+  public void testEmptyBatch() throws IOException {
+
+    final Collection<Relay.Bundle> result =
+        roundTrip(RelayCodec.bundles(RelayCodec.COMPACT), new ArrayList<Relay.Bundle>());
+
+    assertTrue(result.isEmpty());
+  }
+
+  @Test
+  public void testVarint() throws IOException {
+
+    final long[] values = { 0, 1, 127, 128, 300, Integer.MAX_VALUE, -1L, Long.MIN_VALUE };
+
+    for (final long value : values) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      RelayCodec.writeVarint(out, value);
+      assertEquals(value, RelayCodec.readVarint(new ByteArrayInputStream(out.toByteArray())));
+    }
+  }
+
+  @Test
+  public void testNegotiate() {
+    assertEquals(RelayCodec.LEGACY, RelayCodec.negotiate(0));
+    assertEquals(RelayCodec.LEGACY, RelayCodec.negotiate(RelayCodec.LEGACY));
+    assertEquals(RelayCodec.COMPACT, RelayCodec.negotiate(RelayCodec.COMPACT));
+    assertEquals(RelayCodec.VERSION, RelayCodec.negotiate(RelayCodec.VERSION + 5));
+  }
+
+  // A batch written by two teams where a handful of users talk in a handful of
+  // conversations, the way a real read would look.
+  private static List<Relay.Bundle> sample(int count) {
+
+    final List<Relay.Bundle> bundles = new ArrayList<>();
+
+    for (int i = 0; i < count; i++) {
+
+      final Uuid team = i % 3 == 0 ? TEAM_B : TEAM_A;
+      final long time = 1500000000000L + i * 250;
+
+      final Relay.Bundle.Component user = RelayCodec.component(
+          new Uuid(team, 100 + i % 4), "user-" + i % 4, Time.fromMs(1400000000000L + i % 4));
+      final Relay.Bundle.Component conversation = RelayCodec.component(
+          new Uuid(team, 200 + i % 2), "conversation " + i % 2, Time.fromMs(1450000000000L));
+      final Relay.Bundle.Component message = RelayCodec.component(
+          new Uuid(team, 1000 + i), "message " + i, Time.fromMs(time - 10));
+
+      bundles.add(RelayCodec.bundle(Uuid.intern(null, 1 + i), Time.fromMs(time), team,
+                                    user, conversation, message));
+    }
+
+    return bundles;
+  }
+
+  private static Collection<Relay.Bundle> roundTrip(Serializer<Collection<Relay.Bundle>> serializer,
+                                                    Collection<Relay.Bundle> bundles) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    serializer.write(out, bundles);
+    return serializer.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  private static int size(Serializer<Collection<Relay.Bundle>> serializer,
+                          Collection<Relay.Bundle> bundles) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    serializer.write(out, bundles);
+    return out.size();
+  }
+
+  private static void assertSameBundles(Collection<Relay.Bundle> expected, Collection<Relay.Bundle> actual) {
+
+    assertEquals(expected.size(), actual.size());
+
+    final Iterator<Relay.Bundle> it = actual.iterator();
+    for (final Relay.Bundle bundle : expected) {
+      final Relay.Bundle next = it.next();
+      assertEquals(bundle.id(), next.id());
+      assertEquals(bundle.time(), next.time());
+      assertEquals(bundle.team(), next.team());
+      assertSameComponent(bundle.user(), next.user());
+      assertSameComponent(bundle.conversation(), next.conversation());
+      assertSameComponent(bundle.message(), next.message());
+    }
+  }
+
+  private static void assertSameComponent(Relay.Bundle.Component expected, Relay.Bundle.Component actual) {
+    assertEquals(expected.id(), actual.id());
+    assertEquals(expected.text(), actual.text());
+    assertEquals(expected.time(), actual.time());
+  }
+}
@@ -0,0 +1,172 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collection;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class DiskHistoryTest {
+
+  private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+  private final Uuid team = new Uuid(3);
+  private final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+  private File directory;
+
+  @Before
+  public void doBefore() throws IOException {
+    directory = Files.createTempDirectory("relay-history").toFile();
+  }
+
+  @After
+  public void doAfter() {
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testReadFromDisk() throws IOException {
+
+    // Only keep two bundles in memory so that most reads come from disk.
+    final Server relay = new Server(2, 8, new DiskHistory(directory, 4096, 1 << 20, DAY_MS));
+    assertTrue(relay.addTeam(team, secret));
+
+    write(relay, 6);
+
+    final Collection<Relay.Bundle> read = relay.read(team, secret, Uuid.NULL, 8);
+    assertEquals(6, read.size());
+
+    int expected = 1;
+    for (final Relay.Bundle bundle : read) {
+      assertTrue(Uuid.equals(bundle.id(), new Uuid(expected)));
+      assertTrue(Uuid.equals(bundle.message().id(), new Uuid(100 + expected)));
+      expected++;
+    }
+  }
+
+  @Test
+  public void testRestart() throws IOException {
+
+    final Server before = new Server(4, 8, new DiskHistory(directory, 4096, 1 << 20, DAY_MS));
+    assertTrue(before.addTeam(team, secret));
+    write(before, 3);
+
+    final Server after = new Server(4, 8, new DiskHistory(directory, 4096, 1 << 20, DAY_MS));
+    assertTrue(after.addTeam(team, secret));
+
+    // Old bundles should still be there and new ids should carry on.
+    final Collection<Relay.Bundle> old = after.read(team, secret, new Uuid(1), 8);
+    assertEquals(2, old.size());
+
+    write(after, 1);
+
+    final Collection<Relay.Bundle> read = after.read(team, secret, new Uuid(3), 8);
+    assertEquals(1, read.size());
+    assertTrue(Uuid.equals(read.iterator().next().id(), new Uuid(4)));
+  }
+
+  @Test
+  public void testRetainBySize() throws IOException {
+
+    // Small segments so that the history rolls over many times.
+    final DiskHistory disk = new DiskHistory(directory, 256, 1024, DAY_MS);
+    final Server relay = new Server(1, 8, disk);
+    assertTrue(relay.addTeam(team, secret));
+
+    write(relay, 100);
+
+    assertEquals(100, disk.lastId());
+    assertTrue(disk.firstId() > 1);
+
+    // The read should start from the oldest bundle that was kept.
+    final Collection<Relay.Bundle> read = relay.read(team, secret, Uuid.NULL, 1);
+    assertEquals(1, read.size());
+    assertEquals(disk.firstId(), read.iterator().next().id().id());
+  }
+
+  @Test
+  public void testRetainByAge() throws IOException {
+
+    final DiskHistory disk = new DiskHistory(directory, 256, 1 << 20, DAY_MS);
+    final Server relay = new Server(1, 8, disk);
+    assertTrue(relay.addTeam(team, secret));
+
+    write(relay, 20);
+    final int first = disk.firstId();
+
+    // Nothing has expired yet.
+    disk.retain();
+    assertEquals(first, disk.firstId());
+
+    // A day later every segment but the one being appended to has expired,
+    // even though no new segment has been started.
+    disk.retain(System.currentTimeMillis() + 2 * DAY_MS);
+    assertTrue(disk.firstId() > first);
+    assertEquals(20, disk.lastId());
+  }
+
+  @Test
+  public void testTornAppendDroppedOnOpen() throws IOException {
+
+    final DiskHistory before = new DiskHistory(directory, 4096, 1 << 20, DAY_MS);
+    final Server relay = new Server(4, 8, before);
+    assertTrue(relay.addTeam(team, secret));
+    write(relay, 3);
+    before.sync();
+
+    // As if the machine went down with the last index entry on disk but not
+    // the bundle it points to.
+    try (final RandomAccessFile index = new RandomAccessFile(new File(directory, "1.index"), "r");
+         final RandomAccessFile log = new RandomAccessFile(new File(directory, "1.log"), "rw")) {
+      index.seek(4);
+      final int start = index.readInt();
+      final int end = index.readInt();
+      log.seek(start);
+      log.write(new byte[end - start]);
+    }
+
+    final DiskHistory after = new DiskHistory(directory, 4096, 1 << 20, DAY_MS);
+    assertEquals(2, after.lastId());
+    assertEquals(2, after.read(1, 8).size());
+  }
+
+  private int nextMessage = 101;
+
+  private void write(Server relay, int count) {
+    for (int i = 0; i < count; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(5), "Conversation", Time.now()),
+                             relay.pack(new Uuid(nextMessage++), "Hello World", Time.now())));
+    }
+  }
+}
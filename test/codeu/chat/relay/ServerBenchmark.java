@@ -0,0 +1,80 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// SERVER BENCHMARK
+//
+// Fills the relay's history and then has many teams poll it the way team
+// servers do: each team keeps the id of the last bundle it saw and asks for
+// everything after it. Most polls find the team fully caught up.
+//
+// Run with: python build.py run codeu.chat.relay.ServerBenchmark [teams] [polls]
+public final class ServerBenchmark {
+
+  private static final int MAX_HISTORY = 1024;
+  private static final int MAX_READ = 16;
+
+  public static void main(String[] args) {
+
+    final int teams = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    final int polls = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+    final Server relay = new Server(MAX_HISTORY, MAX_READ);
+
+    final Uuid[] ids = new Uuid[teams];
+    final Secret[] secrets = new Secret[teams];
+    final Uuid[] roots = new Uuid[teams];
+
+    for (int i = 0; i < teams; i++) {
+      ids[i] = new Uuid(i + 1);
+      secrets[i] = new Secret((byte) i, (byte) (i >> 8));
+      roots[i] = Uuid.NULL;
+      relay.addTeam(ids[i], secrets[i]);
+    }
+
+    // Fill the history twice over so that reads work against a wrapped ring.
+    for (int i = 0; i < 2 * MAX_HISTORY; i++) {
+      final int team = i % teams;
+      relay.write(ids[team],
+                  secrets[team],
+                  relay.pack(new Uuid(1), "User", Time.now()),
+                  relay.pack(new Uuid(2), "Conversation", Time.now()),
+                  relay.pack(new Uuid(3 + i), "Hello World", Time.now()));
+    }
+
+    long bundles = 0;
+
+    final long start = System.nanoTime();
+    for (int poll = 0; poll < polls; poll++) {
+      for (int team = 0; team < teams; team++) {
+        for (final Relay.Bundle bundle : relay.read(ids[team], secrets[team], roots[team], 32)) {
+          roots[team] = bundle.id();
+          bundles++;
+        }
+      }
+    }
+    final long elapsed = System.nanoTime() - start;
+
+    System.out.format("teams=%d polls=%d history=%d%n", teams, polls, MAX_HISTORY);
+    System.out.format("read: %.1f ns/poll (%d bundles returned)%n",
+                      (double) elapsed / ((long) teams * polls),
+                      bundles);
+  }
+}
@@ -14,7 +14,12 @@
 
 package codeu.chat.relay;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -287,4 +292,357 @@ public final class ServerTest {
       assertTrue(Uuid.equals(bundle.id(), new Uuid(3)));
     }
   }
+
+  @Test
+  public void testReadAfterWrap() {
+
+    final Server relay = new Server(4, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    // Write more than the history can hold so that the ring wraps around.
+    for (int i = 0; i < 10; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(5), "Conversation", Time.now()),
+                             relay.pack(new Uuid(100 + i), "Hello World", Time.now())));
+    }
+
+    // Bundle 8 is still in the history so the read should start at bundle 9.
+    final Collection<Relay.Bundle> afterRoot = relay.read(team, secret, new Uuid(8), 8);
+    assertEquals(2, afterRoot.size());
+
+    int expected = 9;
+    for (final Relay.Bundle bundle : afterRoot) {
+      assertTrue(Uuid.equals(bundle.id(), new Uuid(expected)));
+      assertTrue(Uuid.equals(bundle.message().id(), new Uuid(100 + expected - 1)));
+      expected++;
+    }
+
+    // Bundle 2 has been overwritten so the read should start at the oldest
+    // bundle still in the history.
+    final Collection<Relay.Bundle> evicted = relay.read(team, secret, new Uuid(2), 8);
+    assertEquals(4, evicted.size());
+    assertTrue(Uuid.equals(evicted.iterator().next().id(), new Uuid(7)));
+
+    // Reading from the newest bundle should find nothing.
+    assertTrue(relay.read(team, secret, new Uuid(10), 8).isEmpty());
+  }
+
+  @Test
+  public void testConcurrentWrites() throws Exception {
+
+    final Server relay = new Server(1024, 1024);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    final Thread[] writers = new Thread[4];
+    for (int i = 0; i < writers.length; i++) {
+      writers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 200; j++) {
+            relay.write(team,
+                        secret,
+                        relay.pack(new Uuid(4), "User", Time.now()),
+                        relay.pack(new Uuid(5), "Conversation", Time.now()),
+                        relay.pack(new Uuid(6), "Hello World", Time.now()));
+          }
+        }
+      });
+      writers[i].start();
+    }
+
+    for (final Thread writer : writers) {
+      writer.join();
+    }
+
+    // Every write should have its own id and there should be no gaps.
+    final Collection<Relay.Bundle> read = relay.read(team, secret, Uuid.NULL, 1024);
+    assertEquals(800, read.size());
+
+    int expected = 1;
+    for (final Relay.Bundle bundle : read) {
+      assertTrue(Uuid.equals(bundle.id(), new Uuid(expected)));
+      expected++;
+    }
+  }
+
+  @Test
+  public void testAddTeamsKeepsExisting() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+    final Secret other = new Secret((byte)0x03);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    final Map<Uuid, Secret> teams = new HashMap<>();
+    teams.put(team, other);
+    teams.put(new Uuid(4), other);
+
+    assertEquals(1, relay.addTeams(teams));
+
+    // The original secret should still work.
+    assertTrue(relay.write(team,
+                           secret,
+                           relay.pack(new Uuid(5), "User", Time.now()),
+                           relay.pack(new Uuid(6), "Conversation", Time.now()),
+                           relay.pack(new Uuid(7), "Hello World", Time.now())));
+  }
+
+  @Test
+  public void testPollWaitsForWrite() throws Exception {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    final Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ex) {
+          // Write early - the test will still pass.
+        }
+        relay.write(team,
+                    secret,
+                    relay.pack(new Uuid(4), "User", Time.now()),
+                    relay.pack(new Uuid(5), "Conversation", Time.now()),
+                    relay.pack(new Uuid(6), "Hello World", Time.now()));
+      }
+    });
+    writer.start();
+
+    // The poll should return as soon as the write happens and well before the
+    // wait is over.
+    final long start = System.currentTimeMillis();
+    final Collection<Relay.Bundle> read = relay.read(team, secret, Uuid.NULL, 8, 10000, Relay.Filter.ALL);
+    final long elapsed = System.currentTimeMillis() - start;
+
+    writer.join();
+
+    assertEquals(1, read.size());
+    assertTrue(elapsed < 5000);
+  }
+
+  @Test
+  public void testPollTimesOut() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    final long start = System.currentTimeMillis();
+    assertTrue(relay.read(team, secret, Uuid.NULL, 8, 50, Relay.Filter.ALL).isEmpty());
+    assertTrue(System.currentTimeMillis() - start >= 50);
+  }
+
+  @Test
+  public void testPollsPastLimitDoNotWait() throws Exception {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    final Thread[] readers = new Thread[Server.MAX_WAITING];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          relay.read(team, secret, Uuid.NULL, 8, 10000, Relay.Filter.ALL);
+        }
+      });
+      readers[i].start();
+    }
+
+    while (relay.waitingReads() < Server.MAX_WAITING) {
+      Thread.sleep(10);
+    }
+
+    // Every waiting slot is taken so this read should not wait.
+    final long start = System.currentTimeMillis();
+    assertTrue(relay.read(team, secret, Uuid.NULL, 8, 10000, Relay.Filter.ALL).isEmpty());
+    assertTrue(System.currentTimeMillis() - start < 5000);
+
+    // Let the waiting readers go.
+    relay.write(team,
+                secret,
+                relay.pack(new Uuid(4), "User", Time.now()),
+                relay.pack(new Uuid(5), "Conversation", Time.now()),
+                relay.pack(new Uuid(6), "Hello World", Time.now()));
+
+    for (final Thread reader : readers) {
+      reader.join();
+    }
+  }
+
+  @Test
+  public void testCatchUp() {
+
+    // Reads are limited to 1 bundle but catching up should not be.
+    final Server relay = new Server(1024, 1);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    for (int i = 0; i < 600; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(5), "Conversation", Time.now()),
+                             relay.pack(new Uuid(6), "Hello World", Time.now())));
+    }
+
+    final List<Relay.Bundle> received = new ArrayList<>();
+
+    final Uuid last = relay.catchUp(team, secret, new Uuid(100), Relay.Filter.ALL, new Relay.Receiver() {
+      @Override
+      public boolean onBundles(Collection<Relay.Bundle> bundles) {
+        received.addAll(bundles);
+        return true;
+      }
+    });
+
+    assertEquals(500, received.size());
+    assertTrue(Uuid.equals(received.get(0).id(), new Uuid(101)));
+    assertTrue(Uuid.equals(last, new Uuid(600)));
+  }
+
+  @Test
+  public void testCatchUpStop() {
+
+    final Server relay = new Server(1024, 1);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    for (int i = 0; i < 600; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(4), "User", Time.now()),
+                             relay.pack(new Uuid(5), "Conversation", Time.now()),
+                             relay.pack(new Uuid(6), "Hello World", Time.now())));
+    }
+
+    final int[] batches = new int[1];
+
+    // Stopping right away should leave the cursor where it was.
+    final Uuid last = relay.catchUp(team, secret, Uuid.NULL, Relay.Filter.ALL, new Relay.Receiver() {
+      @Override
+      public boolean onBundles(Collection<Relay.Bundle> bundles) {
+        batches[0]++;
+        return false;
+      }
+    });
+
+    assertEquals(1, batches[0]);
+    assertTrue(Uuid.equals(last, Uuid.NULL));
+  }
+
+  @Test
+  public void testReadOtherTeams() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid teamA = new Uuid(3);
+    final Uuid teamB = new Uuid(4);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(teamA, secret));
+    assertTrue(relay.addTeam(teamB, secret));
+
+    write(relay, teamA, secret, 3);
+    write(relay, teamB, secret, 2);
+
+    // Team B should only see team A's bundles.
+    final Collection<Relay.Bundle> first = relay.read(teamB, secret, Uuid.NULL, 8, 0, Relay.Filter.OTHER_TEAMS);
+    assertEquals(3, first.size());
+    for (final Relay.Bundle bundle : first) {
+      assertTrue(Uuid.equals(bundle.team(), teamA));
+    }
+
+    assertTrue(relay.read(teamB, secret, new Uuid(3), 8, 0, Relay.Filter.OTHER_TEAMS).isEmpty());
+
+    write(relay, teamA, secret, 1);
+
+    final Collection<Relay.Bundle> second = relay.read(teamB, secret, new Uuid(3), 8, 0, Relay.Filter.OTHER_TEAMS);
+    assertEquals(1, second.size());
+    assertTrue(Uuid.equals(second.iterator().next().id(), new Uuid(6)));
+  }
+
+  @Test
+  public void testPollIgnoresOwnWrites() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    write(relay, team, secret, 2);
+
+    // Only this team's own bundles are there so the poll should wait it out.
+    final long start = System.currentTimeMillis();
+    assertTrue(relay.read(team, secret, Uuid.NULL, 8, 50, Relay.Filter.OTHER_TEAMS).isEmpty());
+    assertTrue(System.currentTimeMillis() - start >= 50);
+  }
+
+  @Test
+  public void testReadOnlyTeams() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid teamA = new Uuid(3);
+    final Uuid teamB = new Uuid(4);
+    final Secret secret = new Secret((byte)0x00, (byte)0x01, (byte)0x02);
+
+    assertTrue(relay.addTeam(teamA, secret));
+    assertTrue(relay.addTeam(teamB, secret));
+
+    write(relay, teamA, secret, 2);
+    write(relay, teamB, secret, 2);
+
+    final Collection<Relay.Bundle> read =
+        relay.read(teamA, secret, Uuid.NULL, 8, 0, Relay.Filter.only(Arrays.asList(teamB)));
+
+    assertEquals(2, read.size());
+    for (final Relay.Bundle bundle : read) {
+      assertTrue(Uuid.equals(bundle.team(), teamB));
+    }
+  }
+
+  private static void write(Server relay, Uuid team, Secret secret, int count) {
+    for (int i = 0; i < count; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(new Uuid(10), "User", Time.now()),
+                             relay.pack(new Uuid(11), "Conversation", Time.now()),
+                             relay.pack(new Uuid(12), "Hello World", Time.now())));
+    }
+  }
 }
@@ -0,0 +1,78 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.InterestStore;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+// INTEREST BENCHMARK
+//
+// Posts messages into a single conversation that many users are watching and
+// then has every watcher read their update. Posting should cost the same no
+// matter how many watchers there are.
+//
+// Run with: python build.py run codeu.chat.server.InterestBenchmark [watchers] [messages]
+public final class InterestBenchmark {
+
+  public static void main(String[] args) {
+
+    final int watchers = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    final int messages = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+    final Model model = new Model();
+    final View view = new View(model);
+
+    int nextId = 1;
+
+    final User author = new User(new Uuid(nextId++), "author", Time.now());
+    model.add(author);
+
+    final ConversationHeader conversation =
+        new ConversationHeader(new Uuid(nextId++), author.id, Time.now(), "busy");
+    model.add(conversation);
+
+    final Uuid[] users = new Uuid[watchers];
+    for (int i = 0; i < watchers; i++) {
+      final User user = new User(new Uuid(nextId++), "watcher-" + i, Time.now());
+      model.add(user);
+      model.userInterests().put(user.id, new InterestStore());
+      model.addConversationWatch(conversation.id, user.id);
+      model.addUserWatch(author.id, user.id);
+      users[i] = user.id;
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < messages; i++) {
+      model.add(conversation.id, new Message(new Uuid(nextId++), Uuid.NULL, Uuid.NULL, Time.now(), author.id, "hello"));
+    }
+    final long postNs = System.nanoTime() - start;
+
+    long unread = 0;
+    start = System.nanoTime();
+    for (final Uuid user : users) {
+      unread += view.getConversationUpdate(user, "busy");
+      unread += view.getUserUpdate(user, "author").size();
+    }
+    final long readNs = System.nanoTime() - start;
+
+    System.out.format("watchers=%d messages=%d%n", watchers, messages);
+    System.out.format("post: %.1f ns/message%n", (double) postNs / messages);
+    System.out.format("read: %.1f ns/watcher (unread total %d)%n", (double) readNs / watchers, unread);
+  }
+}
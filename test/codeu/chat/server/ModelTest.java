@@ -0,0 +1,175 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.Before;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.util.InterestStore;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class ModelTest {
+
+  private Model model;
+  private User creator;
+  private User other;
+  private ConversationHeader conversation;
+
+  @Before
+  public void doBefore() {
+    model = new Model();
+
+    creator = new User(new Uuid(1), "creator", Time.now());
+    other = new User(new Uuid(2), "other", Time.now());
+    model.add(creator);
+    model.add(other);
+
+    conversation = new ConversationHeader(new Uuid(3), creator.id, Time.now(), "conversation");
+    model.add(conversation);
+  }
+
+  @Test
+  public void testCreatorHasConversation() {
+    assertTrue(model.isUserCreator(conversation, creator.id));
+    assertEquals(1, model.conversationsForUser(creator.id).size());
+    assertTrue(model.conversationsForUser(other.id).isEmpty());
+  }
+
+  @Test
+  public void testMemberAddAndRemove() {
+
+    assertTrue(model.addMember(conversation.id, "other"));
+    assertTrue(model.isUserMember(conversation, other.id));
+    assertEquals(1, model.conversationsForUser(other.id).size());
+
+    assertTrue(model.removeMember(conversation.id, "other"));
+    assertFalse(model.isUserMember(conversation, other.id));
+    assertTrue(model.conversationsForUser(other.id).isEmpty());
+  }
+
+  @Test
+  public void testRemoveMemberKeepsOwner() {
+
+    assertTrue(model.addMember(conversation.id, "other"));
+    assertTrue(model.addOwner(conversation.id, "other"));
+
+    // Still an owner so the conversation should still be listed.
+    assertTrue(model.removeMember(conversation.id, "other"));
+    assertEquals(1, model.conversationsForUser(other.id).size());
+
+    assertTrue(model.removeOwner(conversation.id, "other"));
+    assertTrue(model.conversationsForUser(other.id).isEmpty());
+  }
+
+  @Test
+  public void testRemoveConversation() {
+
+    assertTrue(model.addMember(conversation.id, "other"));
+
+    // Remove using a copy that does not know about the members.
+    model.remove(new ConversationHeader(conversation.id, Uuid.NULL, conversation.creation, conversation.title));
+
+    assertTrue(model.conversationsForUser(creator.id).isEmpty());
+    assertTrue(model.conversationsForUser(other.id).isEmpty());
+  }
+
+  @Test
+  public void testConversationInterestCountsSinceLastRead() {
+
+    final View view = new View(model);
+    model.userInterests().put(other.id, new InterestStore());
+
+    addMessage(4, creator.id);
+    model.addConversationWatch(conversation.id, other.id);
+
+    // Messages from before the watch started are not updates.
+    assertEquals(0, view.getConversationUpdate(other.id, "conversation"));
+
+    addMessage(5, creator.id);
+    addMessage(6, creator.id);
+    assertEquals(2, view.getConversationUpdate(other.id, "conversation"));
+    assertEquals(0, view.getConversationUpdate(other.id, "conversation"));
+
+    model.removeConversationWatch(conversation.id, other.id);
+    addMessage(7, creator.id);
+    assertEquals(0, view.getConversationUpdate(other.id, "conversation"));
+  }
+
+  @Test
+  public void testUserInterestListsEachConversationOnce() {
+
+    final View view = new View(model);
+    model.userInterests().put(other.id, new InterestStore());
+    model.addUserWatch(creator.id, other.id);
+
+    addMessage(4, creator.id);
+    addMessage(5, creator.id);
+    addMessage(6, other.id);
+
+    assertEquals(1, view.getUserUpdate(other.id, "creator").size());
+    assertTrue(view.getUserUpdate(other.id, "creator").isEmpty());
+  }
+
+  @Test
+  public void testUserInterestSeesMoreActivityInSameConversation() {
+
+    final View view = new View(model);
+    model.userInterests().put(other.id, new InterestStore());
+    model.addUserWatch(creator.id, other.id);
+
+    addMessage(4, creator.id);
+    assertEquals(1, view.getUserUpdate(other.id, "creator").size());
+
+    addMessage(5, creator.id);
+    assertEquals(1, view.getUserUpdate(other.id, "creator").size());
+    assertTrue(view.getUserUpdate(other.id, "creator").isEmpty());
+  }
+
+  @Test
+  public void testFootprintPerMessageStaysInBudget() {
+
+    // A message with 32 characters of content should cost well under 512
+    // bytes across the message itself and every store and index it is in.
+    for (int i = 0; i < 10000; i++) {
+      model.add(conversation.id, new Message(new Uuid(100 + i),
+                                             Uuid.NULL,
+                                             Uuid.NULL,
+                                             Time.fromMs(i),
+                                             creator.id,
+                                             String.format("message number %017d", i)));
+    }
+
+    final Map<String, Long> footprint = model.footprint().values();
+
+    assertEquals(10000L, (long) footprint.get("model.messages.entries"));
+    assertEquals(10000L, (long) footprint.get("model.message_by_id.links"));
+    // Activity is kept per conversation, not per message.
+    assertEquals(1L, (long) footprint.get("model.activity_by_user.entries"));
+    assertTrue(footprint.get("model.bytes_per_message") < 512);
+  }
+
+  private void addMessage(int id, Uuid author) {
+    model.add(conversation.id, new Message(new Uuid(id), Uuid.NULL, Uuid.NULL, Time.now(), author, "hello"));
+  }
+}
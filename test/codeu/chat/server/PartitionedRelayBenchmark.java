@@ -0,0 +1,217 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.ClientConnectionSource;
+
+// PARTITIONED RELAY BENCHMARK
+//
+// Starts real relay processes on this machine and has many team servers write
+// batches to them through a partitioned relay, first with one partition, then
+// two, and so on. Each run reports how many messages per second got through so
+// the gain from adding partitions can be compared. Every relay is its own
+// process so the gain is limited by the number of processors on the machine.
+//
+// Run with:
+//   python build.py run codeu.chat.server.PartitionedRelayBenchmark [partitions] [teams] [seconds]
+public final class PartitionedRelayBenchmark {
+
+  private static final int FIRST_PORT = 24100;
+  private static final int BATCH = 32;
+  private static final int CONVERSATIONS = 64;
+
+  public static void main(String[] args) throws Exception {
+
+    final int maxPartitions = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    final int teams = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    final File directory = Files.createTempDirectory("relay-cluster").toFile();
+    final File teamFile = new File(directory, "teams");
+
+    final Uuid[] ids = new Uuid[teams];
+    final Secret[] secrets = new Secret[teams];
+
+    try (final Writer out = new FileWriter(teamFile)) {
+      for (int i = 0; i < teams; i++) {
+        ids[i] = new Uuid(100 + i);
+        secrets[i] = new Secret((byte) i, (byte) 0x5A);
+        out.write(String.format("%s:%02X5A%n", ids[i], i & 0xFF));
+      }
+    }
+
+    System.out.format("teams=%d batch=%d seconds=%d%n", teams, BATCH, seconds);
+    System.out.format("relay logs are in %s%n", directory);
+
+    double single = 0;
+
+    for (int partitions = 1; partitions <= maxPartitions; partitions *= 2) {
+
+      final List<Process> processes = new ArrayList<>();
+
+      try {
+
+        final List<Relay> relays = new ArrayList<>();
+
+        for (int i = 0; i < partitions; i++) {
+          final int port = FIRST_PORT + i;
+          processes.add(startRelay(new File(directory, "partition-" + partitions + "-" + i), port, teamFile));
+          relays.add(new RemoteRelay(new ClientConnectionSource("localhost", port)));
+        }
+
+        for (int i = 0; i < partitions; i++) {
+          waitForPort(FIRST_PORT + i);
+        }
+
+        // Give the relays time to load the team file.
+        Thread.sleep(1000);
+
+        final PartitionedRelay relay = new PartitionedRelay(relays);
+
+        // Warm up the new relay processes before measuring.
+        run(relay, ids, secrets, 2);
+
+        final double rate = run(relay, ids, secrets, seconds);
+
+        if (partitions == 1) {
+          single = rate;
+        }
+
+        System.out.format("partitions=%d: %.0f messages/s (%.2fx)%n", partitions, rate, rate / single);
+
+      } finally {
+        for (final Process process : processes) {
+          process.destroy();
+          process.waitFor();
+        }
+      }
+    }
+  }
+
+  // Every team writes batches as fast as it can for "seconds" seconds.
+  private static double run(final Relay relay,
+                            final Uuid[] ids,
+                            final Secret[] secrets,
+                            int seconds) throws InterruptedException {
+
+    final AtomicLong sent = new AtomicLong();
+    final long end = System.currentTimeMillis() + seconds * 1000L;
+
+    final List<Thread> writers = new ArrayList<>();
+
+    for (int i = 0; i < ids.length; i++) {
+
+      final Uuid team = ids[i];
+      final Secret secret = secrets[i];
+
+      final Thread writer = new Thread() {
+        @Override
+        public void run() {
+
+          final Relay.Bundle.Component user = relay.pack(new Uuid(team, 1), "User", Time.now());
+          int next = 0;
+
+          while (System.currentTimeMillis() < end) {
+
+            final List<Relay.Outgoing> batch = new ArrayList<>();
+
+            for (int j = 0; j < BATCH; j++, next++) {
+              batch.add(outgoing(
+                  user,
+                  relay.pack(new Uuid(team, 2 + next % CONVERSATIONS), "Conversation", Time.now()),
+                  relay.pack(new Uuid(team, 1000 + next), "Hello World", Time.now())));
+            }
+
+            if (relay.write(team, secret, batch)) {
+              sent.addAndGet(batch.size());
+            }
+          }
+        }
+      };
+
+      writers.add(writer);
+      writer.start();
+    }
+
+    final long start = System.nanoTime();
+    for (final Thread writer : writers) {
+      writer.join();
+    }
+    final long elapsed = System.nanoTime() - start;
+
+    return sent.get() * 1e9 / elapsed;
+  }
+
+  private static Relay.Outgoing outgoing(final Relay.Bundle.Component user,
+                                         final Relay.Bundle.Component conversation,
+                                         final Relay.Bundle.Component message) {
+    return new Relay.Outgoing() {
+      @Override
+      public Relay.Bundle.Component user() { return user; }
+      @Override
+      public Relay.Bundle.Component conversation() { return conversation; }
+      @Override
+      public Relay.Bundle.Component message() { return message; }
+    };
+  }
+
+  // Start "RelayMain" in its own process with "directory" as its working
+  // directory so that each relay has its own log file.
+  private static Process startRelay(File directory, int port, File teamFile) throws IOException {
+
+    directory.mkdirs();
+
+    final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+
+    final ProcessBuilder builder = new ProcessBuilder(
+        java,
+        "-cp", new File("bin").getAbsolutePath(),
+        "codeu.chat.RelayMain",
+        Integer.toString(port),
+        teamFile.getAbsolutePath());
+
+    builder.directory(directory);
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(new File(directory, "console.log"));
+
+    return builder.start();
+  }
+
+  private static void waitForPort(int port) throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      try {
+        new Socket("localhost", port).close();
+        return;
+      } catch (IOException ex) {
+        Thread.sleep(100);
+      }
+    }
+    throw new IllegalStateException("Relay on port " + port + " did not start");
+  }
+}
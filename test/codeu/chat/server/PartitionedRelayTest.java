@@ -0,0 +1,186 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.relay.Server;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class PartitionedRelayTest {
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte) 0x00, (byte) 0x01, (byte) 0x02);
+
+  private Server first;
+  private Server second;
+  private PartitionedRelay relay;
+
+  @Before
+  public void doBefore() {
+
+    first = new Server(64, 16);
+    second = new Server(64, 16);
+
+    first.addTeam(TEAM, SECRET);
+    second.addTeam(TEAM, SECRET);
+
+    relay = new PartitionedRelay(Arrays.asList(first, second));
+  }
+
+  @Test
+  public void testConversationStaysOnOnePartition() {
+
+    write(20, 10);
+
+    final Set<Uuid> onFirst = conversations(first.read(TEAM, SECRET, Uuid.NULL, 64));
+    final Set<Uuid> onSecond = conversations(second.read(TEAM, SECRET, Uuid.NULL, 64));
+
+    assertEquals(10, onFirst.size() + onSecond.size());
+    assertFalse(onFirst.isEmpty());
+    assertFalse(onSecond.isEmpty());
+
+    onFirst.retainAll(onSecond);
+    assertTrue(onFirst.isEmpty());
+  }
+
+  @Test
+  public void testReadMergesAndResumes() {
+
+    write(10, 10);
+
+    final Set<Uuid> messages = new HashSet<>();
+
+    Uuid cursor = Uuid.NULL;
+
+    for (int i = 0; i < 3; i++) {
+
+      final Collection<Relay.Bundle> bundles = relay.read(TEAM, SECRET, cursor, 4);
+      assertEquals(i < 2 ? 4 : 2, bundles.size());
+
+      for (final Relay.Bundle bundle : bundles) {
+        assertTrue(messages.add(bundle.message().id()));
+        cursor = bundle.id();
+      }
+    }
+
+    assertEquals(10, messages.size());
+    assertTrue(relay.read(TEAM, SECRET, cursor, 4).isEmpty());
+  }
+
+  @Test
+  public void testUnknownCursorStartsOver() {
+
+    write(6, 3);
+
+    assertEquals(6, relay.read(TEAM, SECRET, new Uuid(5), 16).size());
+  }
+
+  @Test
+  public void testPollReturnsWhenOnePartitionWrites() throws Exception {
+
+    write(4, 4);
+
+    Uuid cursor = Uuid.NULL;
+    for (final Relay.Bundle bundle : relay.read(TEAM, SECRET, Uuid.NULL, 16)) {
+      cursor = bundle.id();
+    }
+
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException ex) {
+          return;
+        }
+        write(1, 1);
+      }
+    };
+    writer.start();
+
+    final long start = System.currentTimeMillis();
+    final Collection<Relay.Bundle> bundles =
+        relay.read(TEAM, SECRET, cursor, 16, 5000, Relay.Filter.ALL);
+    final long elapsed = System.currentTimeMillis() - start;
+
+    writer.join();
+
+    assertEquals(1, bundles.size());
+    assertTrue(elapsed < 4000);
+  }
+
+  @Test
+  public void testPollTimesOut() {
+
+    final long start = System.currentTimeMillis();
+    final Collection<Relay.Bundle> bundles =
+        relay.read(TEAM, SECRET, Uuid.NULL, 16, 200, Relay.Filter.ALL);
+    final long elapsed = System.currentTimeMillis() - start;
+
+    assertTrue(bundles.isEmpty());
+    assertTrue(elapsed >= 150);
+  }
+
+  @Test
+  public void testCatchUp() {
+
+    write(30, 7);
+
+    final List<Relay.Bundle> received = new ArrayList<>();
+
+    final Uuid last = relay.catchUp(TEAM, SECRET, Uuid.NULL, Relay.Filter.ALL, new Relay.Receiver() {
+      @Override
+      public boolean onBundles(Collection<Relay.Bundle> bundles) {
+        received.addAll(bundles);
+        return true;
+      }
+    });
+
+    assertEquals(30, received.size());
+    assertTrue(relay.read(TEAM, SECRET, last, 16).isEmpty());
+  }
+
+  // Write "count" messages spread over "conversations" conversations.
+  private void write(int count, int conversations) {
+    for (int i = 0; i < count; i++) {
+      assertTrue(relay.write(TEAM,
+                             SECRET,
+                             relay.pack(new Uuid(1), "User", Time.now()),
+                             relay.pack(new Uuid(100 + i % conversations), "Conversation", Time.now()),
+                             relay.pack(new Uuid(1000 + i), "Hello World", Time.now())));
+    }
+  }
+
+  private static Set<Uuid> conversations(Collection<Relay.Bundle> bundles) {
+    final Set<Uuid> result = new HashSet<>();
+    for (final Relay.Bundle bundle : bundles) {
+      result.add(bundle.conversation().id());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,253 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+
+public final class RelayOutboxTest {
+
+  // A relay that records batch writes and can be told to fail them.
+  private static final class RecordingRelay implements Relay {
+
+    final List<Integer> batches = new ArrayList<>();
+    final List<Uuid> messages = new ArrayList<>();
+    volatile boolean fail = false;
+
+    @Override
+    public Relay.Bundle.Component pack(Uuid id, String text, Time time) { return null; }
+
+    @Override
+    public boolean write(Uuid teamId, Secret teamSecret, Relay.Bundle.Component user,
+                         Relay.Bundle.Component conversation, Relay.Bundle.Component message) {
+      return false;
+    }
+
+    @Override
+    public synchronized boolean write(Uuid teamId, Secret teamSecret, Collection<? extends Relay.Outgoing> outgoing) {
+      if (fail) {
+        return false;
+      }
+      batches.add(outgoing.size());
+      for (final Relay.Outgoing entry : outgoing) {
+        messages.add(entry.message().id());
+      }
+      return true;
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
+      return new ArrayList<>();
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range, long waitMs, Relay.Filter filter) {
+      return new ArrayList<>();
+    }
+
+    @Override
+    public Uuid catchUp(Uuid teamId, Secret teamSecret, Uuid root, Relay.Filter filter, Relay.Receiver receiver) {
+      return root;
+    }
+
+    synchronized int sent() {
+      return messages.size();
+    }
+  }
+
+  private final Uuid team = new Uuid(1);
+  private final Secret secret = new Secret((byte)0x01);
+
+  private File directory;
+  private File file;
+
+  @Before
+  public void doBefore() throws IOException {
+    directory = Files.createTempDirectory("relay-outbox").toFile();
+    file = new File(directory, "outbox.bin");
+  }
+
+  @After
+  public void doAfter() {
+    for (final File child : directory.listFiles()) {
+      child.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testBatchesMessages() throws Exception {
+
+    final RecordingRelay relay = new RecordingRelay();
+    final RelayOutbox outbox = new RelayOutbox(relay, team, secret, file, 100);
+
+    for (int i = 0; i < 10; i++) {
+      add(outbox, 100 + i);
+    }
+
+    waitFor(relay, 10);
+    outbox.stop();
+
+    // Messages added together should not need a request each.
+    assertTrue(relay.batches.size() < 10);
+    assertTrue(Uuid.equals(relay.messages.get(0), new Uuid(100)));
+    assertEquals(0, outbox.size());
+  }
+
+  @Test
+  public void testUnsentSurviveRestart() throws Exception {
+
+    final RecordingRelay down = new RecordingRelay();
+    down.fail = true;
+
+    final RelayOutbox before = new RelayOutbox(down, team, secret, file, 100);
+    add(before, 100);
+    add(before, 101);
+    before.stop();
+
+    assertEquals(0, down.sent());
+
+    final RecordingRelay up = new RecordingRelay();
+    final RelayOutbox after = new RelayOutbox(up, team, secret, file, 100);
+
+    waitFor(up, 2);
+    after.stop();
+
+    assertTrue(Uuid.equals(up.messages.get(0), new Uuid(100)));
+    assertTrue(Uuid.equals(up.messages.get(1), new Uuid(101)));
+  }
+
+  @Test
+  public void testSyncSavesWithoutStopping() throws Exception {
+
+    final RecordingRelay down = new RecordingRelay();
+    down.fail = true;
+
+    final RelayOutbox outbox = new RelayOutbox(down, team, secret, file, 100);
+    add(outbox, 100);
+    add(outbox, 101);
+    add(outbox, 102);
+    outbox.sync();
+
+    // Open a copy as if the server had crashed here.
+    final File copy = new File(directory, "copy.bin");
+    Files.copy(file.toPath(), copy.toPath());
+    outbox.stop();
+
+    final RelayOutbox after = new RelayOutbox(down, team, secret, copy, 100);
+    assertEquals(3, after.size());
+    after.stop();
+  }
+
+  @Test
+  public void testDropsOldestWhenFull() throws Exception {
+
+    final RecordingRelay down = new RecordingRelay();
+    down.fail = true;
+
+    final RelayOutbox outbox = new RelayOutbox(down, team, secret, file, 2);
+    add(outbox, 100);
+    add(outbox, 101);
+    add(outbox, 102);
+    outbox.stop();
+
+    assertEquals(2, outbox.size());
+
+    final RecordingRelay up = new RecordingRelay();
+    final RelayOutbox after = new RelayOutbox(up, team, secret, file, 2);
+
+    waitFor(up, 2);
+    after.stop();
+
+    assertTrue(Uuid.equals(up.messages.get(0), new Uuid(101)));
+  }
+
+  @Test
+  public void testSentNotResentAfterRestart() throws Exception {
+
+    final RecordingRelay up = new RecordingRelay();
+    final RelayOutbox before = new RelayOutbox(up, team, secret, file, 100);
+    add(before, 100);
+    add(before, 101);
+    waitFor(up, 2);
+    while (before.size() > 0) {
+      Thread.sleep(10);
+    }
+    before.stop();
+
+    final RecordingRelay again = new RecordingRelay();
+    final RelayOutbox after = new RelayOutbox(again, team, secret, file, 100);
+    Thread.sleep(200);
+    after.stop();
+
+    assertEquals(0, after.size());
+    assertEquals(0, again.sent());
+  }
+
+  @Test
+  public void testStaysFullAcrossManyDrops() throws Exception {
+
+    final RecordingRelay down = new RecordingRelay();
+    down.fail = true;
+
+    // Enough drops to make the file be rewritten more than once.
+    final RelayOutbox outbox = new RelayOutbox(down, team, secret, file, 4);
+    for (int i = 0; i < 20; i++) {
+      add(outbox, 100 + i);
+    }
+    outbox.stop();
+
+    assertEquals(4, outbox.size());
+
+    final RecordingRelay up = new RecordingRelay();
+    final RelayOutbox after = new RelayOutbox(up, team, secret, file, 4);
+
+    waitFor(up, 4);
+    after.stop();
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(Uuid.equals(up.messages.get(i), new Uuid(116 + i)));
+    }
+  }
+
+  private static void add(RelayOutbox outbox, int message) {
+    outbox.add(new Uuid(2), "user", Time.now(),
+               new Uuid(3), "conversation", Time.now(),
+               new Uuid(message), "hello", Time.now());
+  }
+
+  private static void waitFor(RecordingRelay relay, int count) throws InterruptedException {
+    final long end = System.currentTimeMillis() + 5000;
+    while (relay.sent() < count && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, relay.sent());
+  }
+}
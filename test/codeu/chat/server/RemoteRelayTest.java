@@ -0,0 +1,181 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Relay;
+import codeu.chat.common.RelayCodec;
+import codeu.chat.common.Secret;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+
+public final class RemoteRelayTest {
+
+  private static final Uuid TEAM = new Uuid(3);
+  private static final Secret SECRET = new Secret((byte) 0x00, (byte) 0x01, (byte) 0x02);
+
+  // A relay from before versions existed. It closes the connection on a
+  // version request, answers plain reads with nothing and single writes with
+  // true, and answers anything else with NO_MESSAGE. Every request type it
+  // sees is recorded.
+  private static final class LegacyRelay implements ConnectionSource {
+
+    final List<Integer> requests = new ArrayList<>();
+
+    @Override
+    public Connection connect() {
+
+      final ByteArrayOutputStream request = new ByteArrayOutputStream();
+
+      return new Connection() {
+
+        private InputStream response = null;
+
+        @Override
+        public InputStream in() {
+          return new InputStream() {
+            @Override
+            public int read() throws IOException {
+              if (response == null) {
+                response = respond(request.toByteArray());
+              }
+              return response.read();
+            }
+          };
+        }
+
+        @Override
+        public OutputStream out() { return request; }
+
+        @Override
+        public void close() { }
+      };
+    }
+
+    @Override
+    public void close() { }
+
+    private synchronized InputStream respond(byte[] request) throws IOException {
+
+      final int type = Serializers.INTEGER.read(new ByteArrayInputStream(request));
+      requests.add(type);
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+      if (type == NetworkCode.RELAY_WRITE_REQUEST) {
+        Serializers.INTEGER.write(out, NetworkCode.RELAY_WRITE_RESPONSE);
+        Serializers.BOOLEAN.write(out, true);
+      } else if (type == NetworkCode.RELAY_READ_REQUEST) {
+        Serializers.INTEGER.write(out, NetworkCode.RELAY_READ_RESPONSE);
+        Serializers.INTEGER.write(out, 0);
+      } else if (type != NetworkCode.RELAY_VERSION_REQUEST) {
+        Serializers.INTEGER.write(out, NetworkCode.NO_MESSAGE);
+      }
+
+      return new ByteArrayInputStream(out.toByteArray());
+    }
+  }
+
+  private static Relay.Outgoing outgoing(int message) {
+
+    final Relay.Bundle.Component user = RelayCodec.component(new Uuid(1), "user", Time.now());
+    final Relay.Bundle.Component conversation = RelayCodec.component(new Uuid(2), "conversation", Time.now());
+    final Relay.Bundle.Component text = RelayCodec.component(new Uuid(message), "message", Time.now());
+
+    return new Relay.Outgoing() {
+      @Override
+      public Relay.Bundle.Component user() { return user; }
+
+      @Override
+      public Relay.Bundle.Component conversation() { return conversation; }
+
+      @Override
+      public Relay.Bundle.Component message() { return text; }
+    };
+  }
+
+  @Test
+  public void testLegacyBatchIsSentOneAtATime() {
+
+    final LegacyRelay legacy = new LegacyRelay();
+    final RemoteRelay relay = new RemoteRelay(legacy);
+
+    final Collection<Relay.Outgoing> batch = new ArrayList<>();
+    for (int i = 10; i < 13; i++) {
+      batch.add(outgoing(i));
+    }
+
+    assertTrue(relay.write(TEAM, SECRET, batch));
+    assertEquals(3, count(legacy, NetworkCode.RELAY_WRITE_REQUEST));
+    assertEquals(0, count(legacy, NetworkCode.RELAY_WRITE_BATCH_REQUEST));
+  }
+
+  @Test
+  public void testLegacyPollUsesPlainReads() {
+
+    final LegacyRelay legacy = new LegacyRelay();
+    final RemoteRelay relay = new RemoteRelay(legacy);
+
+    assertTrue(relay.read(TEAM, SECRET, Uuid.NULL, 8, 0, Relay.Filter.OTHER_TEAMS).isEmpty());
+    assertEquals(1, count(legacy, NetworkCode.RELAY_READ_REQUEST));
+    assertEquals(0, count(legacy, NetworkCode.RELAY_POLL_REQUEST));
+  }
+
+  @Test
+  public void testLegacyCatchUpUsesPlainReads() {
+
+    final LegacyRelay legacy = new LegacyRelay();
+    final RemoteRelay relay = new RemoteRelay(legacy);
+
+    final Uuid last = relay.catchUp(TEAM, SECRET, Uuid.NULL, Relay.Filter.OTHER_TEAMS, new Relay.Receiver() {
+      @Override
+      public boolean onBundles(Collection<Relay.Bundle> bundles) {
+        return true;
+      }
+    });
+
+    assertEquals(Uuid.NULL, last);
+    assertEquals(1, count(legacy, NetworkCode.RELAY_READ_REQUEST));
+    assertEquals(0, count(legacy, NetworkCode.RELAY_CATCH_UP_REQUEST));
+  }
+
+  private static int count(LegacyRelay legacy, int type) {
+    int count = 0;
+    synchronized (legacy) {
+      for (final int request : legacy.requests) {
+        if (request == type) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,104 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.server.RequestTrace.Phase;
+
+public final class RequestTraceTest {
+
+  private RequestTrace trace;
+
+  @Before
+  public void doBefore() {
+    trace = RequestTrace.start();
+  }
+
+  @After
+  public void doAfter() {
+    trace.stop();
+  }
+
+  @Test
+  public void testSplit() {
+
+    trace.split(1000, 1100, 1400, 1500);
+
+    assertEquals(100, trace.get(Phase.READ));
+    assertEquals(300, trace.get(Phase.MODEL));
+    assertEquals(100, trace.get(Phase.WRITE));
+  }
+
+  @Test
+  public void testModelExcludesFlushAndHashing() {
+
+    RequestTrace.add(Phase.FLUSH, 10);
+    RequestTrace.add(Phase.HASH_WAIT, 20);
+    RequestTrace.add(Phase.HASH, 30);
+
+    trace.split(1000, 1100, 1400, 1500);
+
+    assertEquals(240, trace.get(Phase.MODEL));
+    assertEquals(10, trace.get(Phase.FLUSH));
+    assertEquals(20, trace.get(Phase.HASH_WAIT));
+    assertEquals(30, trace.get(Phase.HASH));
+  }
+
+  @Test
+  public void testModelNeverNegative() {
+
+    // Hashing finished after the first write so it is longer than the gap.
+    RequestTrace.add(Phase.HASH, 500);
+
+    trace.split(1000, 1100, 1400, 1500);
+
+    assertEquals(0, trace.get(Phase.MODEL));
+  }
+
+  @Test
+  public void testWriteBeforeReadEnds() {
+
+    trace.split(1000, 1300, 1200, 1500);
+
+    assertEquals(300, trace.get(Phase.READ));
+    assertEquals(0, trace.get(Phase.MODEL));
+    assertEquals(200, trace.get(Phase.WRITE));
+  }
+
+  @Test
+  public void testNoReadOrWrite() {
+
+    trace.split(1000, 0, 0, 1500);
+
+    assertEquals(0, trace.get(Phase.READ));
+    assertEquals(500, trace.get(Phase.MODEL));
+    assertEquals(0, trace.get(Phase.WRITE));
+  }
+
+  @Test
+  public void testAddOnlyCountsCurrentTrace() {
+
+    trace.stop();
+    RequestTrace.add(Phase.FLUSH, 10);
+    trace.resume();
+
+    assertEquals(0, trace.get(Phase.FLUSH));
+  }
+}
@@ -0,0 +1,197 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Secret;
+import codeu.chat.common.ServerStats;
+import codeu.chat.common.SlowRequest;
+import codeu.chat.common.User;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.Connection;
+
+public final class ServerTest {
+
+  // One thread and room for one waiting task, so the test can fill it.
+  private final ThreadPoolExecutor hashers = new ThreadPoolExecutor(
+      1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1));
+
+  private File directory;
+  private Server server;
+  private Uuid admin;
+
+  @Before
+  public void doBefore() throws Exception {
+    directory = Files.createTempDirectory("server").toFile();
+    server = new Server(new Uuid(1), Secret.parse("AB"), new NoOpRelay(), directory, hashers);
+
+    final InputStream in = call(request(NetworkCode.GET_USERS_REQUEST));
+    assertEquals(NetworkCode.GET_USERS_RESPONSE, (int) Serializers.INTEGER.read(in));
+    admin = Serializers.collection(User.SERIALIZER).read(in).iterator().next().id;
+  }
+
+  @After
+  public void doAfter() {
+    server.stop();
+  }
+
+  @Test
+  public void testSetPasswordThenAuth() throws Exception {
+
+    final ByteArrayOutputStream set = request(NetworkCode.SET_PASSWORD_REQUEST);
+    Uuid.SERIALIZER.write(set, admin);
+    Serializers.STRING.write(set, "password");
+
+    InputStream in = call(set);
+    assertEquals(NetworkCode.SET_PASSWORD_RESPONSE, (int) Serializers.INTEGER.read(in));
+    assertTrue(Serializers.BOOLEAN.read(in));
+
+    in = call(auth("password"));
+    assertEquals(NetworkCode.AUTH_RESPONSE, (int) Serializers.INTEGER.read(in));
+    assertTrue(Serializers.BOOLEAN.read(in));
+
+    in = call(auth("wrong"));
+    assertEquals(NetworkCode.AUTH_RESPONSE, (int) Serializers.INTEGER.read(in));
+    assertFalse(Serializers.BOOLEAN.read(in));
+  }
+
+  @Test
+  public void testFullHashQueueRejects() throws Exception {
+
+    // Keep the only hasher busy and fill the queue behind it.
+    final CountDownLatch release = new CountDownLatch(1);
+    final Runnable block = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    hashers.execute(block);
+    hashers.execute(block);
+
+    try {
+      final InputStream in = call(auth("password"));
+      assertEquals(NetworkCode.NO_MESSAGE, (int) Serializers.INTEGER.read(in));
+    } finally {
+      release.countDown();
+    }
+
+    assertEquals(1, (long) stats().values().get("passwords.rejected"));
+  }
+
+  @Test
+  public void testCommandStats() throws Exception {
+
+    // One GET_USERS was already sent to find the admin.
+    call(request(NetworkCode.GET_USERS_REQUEST));
+
+    final InputStream in = call(request(999));
+    assertEquals(NetworkCode.NO_MESSAGE, (int) Serializers.INTEGER.read(in));
+
+    final ServerStats stats = stats();
+
+    assertEquals(1, (long) stats.values().get("command.unknown"));
+    assertEquals(2, (long) stats.values().get("command.get_users.count"));
+    assertEquals(0, (long) stats.values().get("command.get_users.errors"));
+    assertEquals(8, (long) stats.values().get("command.get_users.bytes_in"));
+    assertTrue(stats.values().get("command.get_users.bytes_out") > 8);
+    assertTrue(stats.histograms().containsKey("command.get_users.latency_us"));
+
+    // Commands that have not been used are left out.
+    assertFalse(stats.values().containsKey("command.new_message.count"));
+  }
+
+  @Test
+  public void testSlowRequestsDropOldest() {
+
+    for (int i = 0; i <= Server.SLOW_REQUEST_HISTORY; i++) {
+      server.onSlowRequest(new SlowRequest(Time.now(), "request-" + i, 1000, false));
+    }
+
+    final List<SlowRequest> kept = new ArrayList<>(server.slowRequests());
+
+    assertEquals(Server.SLOW_REQUEST_HISTORY, kept.size());
+    assertEquals("request-1", kept.get(0).command);
+    assertEquals("request-" + Server.SLOW_REQUEST_HISTORY, kept.get(kept.size() - 1).command);
+  }
+
+  private ServerStats stats() throws IOException, InterruptedException {
+    final InputStream in = call(request(NetworkCode.STATS_REQUEST));
+    assertEquals(NetworkCode.STATS_RESPONSE, (int) Serializers.INTEGER.read(in));
+    return ServerStats.SERIALIZER.read(in);
+  }
+
+  private ByteArrayOutputStream auth(String password) throws IOException {
+    final ByteArrayOutputStream out = request(NetworkCode.AUTH_REQUEST);
+    Uuid.SERIALIZER.write(out, admin);
+    Serializers.STRING.write(out, password);
+    return out;
+  }
+
+  private static ByteArrayOutputStream request(int type) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(out, type);
+    return out;
+  }
+
+  // Send one request to the server over an in-memory connection and wait for
+  // the server to close it.
+  private InputStream call(ByteArrayOutputStream request) throws InterruptedException {
+
+    final InputStream in = new ByteArrayInputStream(request.toByteArray());
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final CountDownLatch closed = new CountDownLatch(1);
+
+    server.handleConnection(new Connection() {
+      @Override
+      public InputStream in() { return in; }
+
+      @Override
+      public OutputStream out() { return out; }
+
+      @Override
+      public void close() { closed.countDown(); }
+    });
+
+    assertTrue(closed.await(10, TimeUnit.SECONDS));
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+}
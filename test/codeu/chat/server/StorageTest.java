@@ -3,14 +3,18 @@ package codeu.chat.server;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.Secret;
 import codeu.chat.common.User;
+import codeu.chat.util.PersistenceLog;
 import codeu.chat.util.Uuid;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test for persistent storage
@@ -47,4 +51,26 @@ public class StorageTest {
 
         assertEquals(2, Server.getLogBuffer().size());
     }
+
+    @Test
+    public void relayCursorRestored() throws IOException {
+
+        File persistentPath = Files.createTempDirectory("storage").toFile();
+        File log = new File(persistentPath, "log.txt");
+
+        try (FileWriter writer = new FileWriter(log)) {
+            writer.write(PersistenceLog.RELAY_CURSOR + " " + new Uuid(5) + "\n");
+            writer.write(PersistenceLog.RELAY_CURSOR + " " + new Uuid(9) + "\n");
+        }
+
+        controller = new Controller(new Uuid(4), model, persistentPath);
+
+        // The last cursor in the log wins.
+        assertTrue(Uuid.equals(new Uuid(9), model.relayCursor()));
+
+        for (File file : persistentPath.listFiles()) {
+            file.delete();
+        }
+        persistentPath.delete();
+    }
 }
@@ -0,0 +1,104 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public final class HistogramTest {
+
+  @Test
+  public void testEmpty() {
+
+    final Histogram histogram = new Histogram();
+
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.mean());
+    assertEquals(0, histogram.percentile(50));
+    assertEquals(0, histogram.max());
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+
+    final Histogram histogram = new Histogram();
+
+    for (int i = 1; i <= 10; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(10, histogram.count());
+    assertEquals(5, histogram.mean());
+    assertEquals(5, histogram.percentile(50));
+    assertEquals(10, histogram.percentile(100));
+    assertEquals(10, histogram.max());
+  }
+
+  @Test
+  public void testPercentilesWithinError() {
+
+    final Histogram histogram = new Histogram();
+
+    for (int i = 1; i <= 100000; i++) {
+      histogram.record(i);
+    }
+
+    assertClose(50000, histogram.percentile(50));
+    assertClose(99000, histogram.percentile(99));
+    assertClose(99900, histogram.percentile(99.9));
+    assertEquals(100000, histogram.percentile(100));
+  }
+
+  @Test
+  public void testLargeAndNegativeValues() {
+
+    final Histogram histogram = new Histogram();
+
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE / 2);
+
+    assertEquals(0, histogram.percentile(50));
+    assertEquals(Long.MAX_VALUE / 2, histogram.percentile(100));
+  }
+
+  @Test
+  public void testSummarySerializer() throws Exception {
+
+    final Histogram histogram = new Histogram();
+    histogram.record(7);
+    histogram.record(700);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Histogram.Summary.SERIALIZER.write(out, histogram.summary());
+
+    final Histogram.Summary summary =
+        Histogram.Summary.SERIALIZER.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(2, summary.count);
+    assertEquals(353, summary.mean);
+    assertEquals(7, summary.p50);
+    assertEquals(700, summary.max);
+  }
+
+  private static void assertClose(long expected, long actual) {
+    assertTrue(String.format("expected about %d but was %d", expected, actual),
+               Math.abs(expected - actual) <= expected / 32);
+  }
+}
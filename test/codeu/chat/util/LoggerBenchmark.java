@@ -0,0 +1,111 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util;
+
+import java.io.File;
+
+// LOGGER BENCHMARK
+//
+// Measures how long a call to the log takes on the thread that logs, in each
+// of the logger's modes:
+//
+//   disabled - the message is below the level so it is not logged
+//   sync     - the message is formatted and written before the call returns
+//   async    - the message is queued for the background writer
+//
+// each with and without caller info. Messages go to a log file in the temp
+// directory as they would in the server. In async mode the queue is flushed
+// between rounds (outside the timing) so that no message is dropped and only
+// the cost of queueing is measured.
+//
+// Run with: python build.py run codeu.chat.util.LoggerBenchmark [calls]
+public final class LoggerBenchmark {
+
+  private static final Logger.Log LOG = Logger.newLog(LoggerBenchmark.class);
+
+  private static final int QUEUE_SIZE = 8192;
+  private static final int ROUND = QUEUE_SIZE / 2;
+
+  public static void main(String[] args) throws Exception {
+
+    final int calls = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+    final File file = File.createTempFile("logger-benchmark", ".log");
+    file.deleteOnExit();
+    Logger.enableFileOutput(file.getPath());
+
+    final Uuid id = new Uuid(42);
+
+    measure("disabled", calls, false, new Call() {
+      @Override
+      public void run(int i) {
+        LOG.verbose("Handling connection %s count=%d", id, i);
+      }
+    });
+
+    final Call info = new Call() {
+      @Override
+      public void run(int i) {
+        LOG.info("Handling connection %s count=%d", id, i);
+      }
+    };
+
+    Logger.setCallerInfo(true);
+    measure("sync caller", calls, false, info);
+    Logger.setCallerInfo(false);
+    measure("sync", calls, false, info);
+
+    Logger.enableAsync(QUEUE_SIZE);
+
+    Logger.setCallerInfo(true);
+    measure("async caller", calls, true, info);
+    Logger.setCallerInfo(false);
+    measure("async", calls, true, info);
+  }
+
+  private interface Call {
+    void run(int i);
+  }
+
+  private static void measure(String name, int calls, boolean async, Call call) {
+
+    // Warm up.
+    round(Math.min(calls, ROUND), async, call);
+
+    long total = 0;
+    for (int done = 0; done < calls; done += ROUND) {
+      total += round(Math.min(ROUND, calls - done), async, call);
+    }
+
+    System.out.format("%-14s %8.1f ns/call%n", name, (double) total / calls);
+  }
+
+  // Make "calls" calls and return how long they took in nanoseconds.
+  private static long round(int calls, boolean async, Call call) {
+
+    final long start = System.nanoTime();
+    for (int i = 0; i < calls; i++) {
+      call.run(i);
+    }
+    final long elapsed = System.nanoTime() - start;
+
+    if (async) {
+      Logger.flush();
+    }
+
+    return elapsed;
+  }
+}
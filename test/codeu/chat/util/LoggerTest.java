@@ -0,0 +1,164 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Test;
+
+public final class LoggerTest {
+
+  // Keeps the messages logged by this test and can be made to hold up the
+  // writer until "release" is counted down.
+  private static final class RecordingHandler extends Handler {
+
+    final List<LogRecord> records = new ArrayList<>();
+    final CountDownLatch release;
+
+    RecordingHandler(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (records) {
+        if (record.getLoggerName().equals(LoggerTest.class.getName()) ||
+            record.getLoggerName().equals(Logger.class.getName())) {
+          records.add(record);
+        }
+      }
+    }
+
+    @Override
+    public void flush() { }
+
+    @Override
+    public void close() { }
+
+    List<String> messages() {
+      final List<String> messages = new ArrayList<>();
+      synchronized (records) {
+        for (final LogRecord record : records) {
+          messages.add(record.getMessage());
+        }
+      }
+      return messages;
+    }
+  }
+
+  private static final Logger.Log LOG = Logger.newLog(LoggerTest.class);
+
+  private RecordingHandler handler;
+
+  @After
+  public void doAfter() {
+    Logger.disableAsync();
+    Logger.removeHandler(handler);
+  }
+
+  @Test
+  public void testAsyncKeepsOrder() {
+
+    handler = new RecordingHandler(new CountDownLatch(0));
+    Logger.addHandler(handler);
+    Logger.enableAsync(1024);
+
+    Logger.setCallerInfo(true);
+
+    for (int i = 0; i < 100; i++) {
+      LOG.info("message %d", i);
+    }
+    Logger.flush();
+
+    final List<String> messages = handler.messages();
+    assertEquals(100, messages.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("message " + i, messages.get(i));
+    }
+
+    // The record is built on the thread that logged, so the caller it names is
+    // this test and not the writer thread.
+    assertEquals(LoggerTest.class.getName(), handler.records.get(0).getSourceClassName());
+    assertEquals("testAsyncKeepsOrder", handler.records.get(0).getSourceMethodName());
+  }
+
+  @Test
+  public void testAsyncFreezesParams() {
+
+    handler = new RecordingHandler(new CountDownLatch(0));
+    Logger.addHandler(handler);
+    Logger.enableAsync(16);
+
+    final StringBuilder changing = new StringBuilder("before");
+    LOG.info("value %s", changing);
+    changing.setLength(0);
+    changing.append("after");
+    Logger.flush();
+
+    assertEquals("value before", handler.messages().get(0));
+  }
+
+  @Test
+  public void testFullQueueDropsAndReports() {
+
+    final CountDownLatch release = new CountDownLatch(1);
+    handler = new RecordingHandler(release);
+    Logger.addHandler(handler);
+    Logger.enableAsync(4);
+
+    // The writer takes the first message and is held up in the handler, so
+    // only four more fit in the queue.
+    for (int i = 0; i < 20; i++) {
+      LOG.info("message %d", i);
+    }
+
+    release.countDown();
+    Logger.flush();
+
+    final List<String> messages = handler.messages();
+
+    // The messages that were kept are still in order and the number dropped
+    // is reported before the next message is written.
+    int kept = 0;
+    int dropped = 0;
+    int last = -1;
+    for (final String message : messages) {
+      if (message.startsWith("Dropped ")) {
+        dropped += Integer.parseInt(message.split(" ")[1]);
+      } else {
+        final int value = Integer.parseInt(message.substring("message ".length()));
+        assertTrue(value > last);
+        last = value;
+        kept++;
+      }
+    }
+
+    assertTrue(dropped > 0);
+    assertEquals(20, kept + dropped);
+  }
+}
@@ -25,4 +25,18 @@ public final class TimeTest {
     assertEquals(0, Time.fromMs(0).inMs());
     assertEquals(10, Time.fromMs(10).inMs());
   }
+
+  @Test
+  public void testCompare() {
+    assertTrue(Time.fromMs(5).compareTo(Time.fromMs(10)) < 0);
+    assertTrue(Time.fromMs(10).compareTo(Time.fromMs(5)) > 0);
+    assertEquals(0, Time.fromMs(7).compareTo(Time.fromMs(7)));
+  }
+
+  @Test
+  public void testEquals() {
+    assertEquals(Time.fromMs(42), Time.fromMs(42));
+    assertEquals(Time.fromMs(42).hashCode(), Time.fromMs(42).hashCode());
+    assertNotEquals(Time.fromMs(42), Time.fromMs(43));
+  }
 }
@@ -0,0 +1,138 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+// TIMELINE BENCHMARK
+//
+// Measures two things:
+//
+//   throughput - many threads schedule events to run now, as the server does
+//                for every connection, and the time until all of them have run
+//                is measured.
+//
+//   lateness   - events are scheduled at random points up to a second ahead,
+//                as timers and retries are, and how long after their time each
+//                one ran is recorded.
+//
+// Run with: python build.py run codeu.chat.util.TimelineBenchmark [threads] [events]
+public final class TimelineBenchmark {
+
+  private static final int PRODUCERS = 8;
+  private static final int DELAYED = 20000;
+  private static final long MAX_DELAY_MS = 1000;
+
+  public static void main(String[] args) throws Exception {
+
+    final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+    final int events = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+    System.out.format("threads=%d producers=%d%n", threads, PRODUCERS);
+
+    throughput(threads, events);
+    lateness(threads);
+  }
+
+  private static void throughput(int threads, final int events) throws InterruptedException {
+
+    final Timeline timeline = new Timeline(threads);
+    final CountDownLatch done = new CountDownLatch(events);
+
+    final Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    };
+
+    final Thread[] producers = new Thread[PRODUCERS];
+
+    final long start = System.nanoTime();
+
+    for (int i = 0; i < PRODUCERS; i++) {
+      producers[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < events / PRODUCERS; j++) {
+            timeline.scheduleNow(task);
+          }
+        }
+      };
+      producers[i].start();
+    }
+
+    for (final Thread producer : producers) {
+      producer.join();
+    }
+
+    final long scheduled = System.nanoTime() - start;
+
+    // Count down what was lost to rounding so the latch can reach zero.
+    for (int i = (events / PRODUCERS) * PRODUCERS; i < events; i++) {
+      done.countDown();
+    }
+
+    done.await();
+
+    final long elapsed = System.nanoTime() - start;
+
+    timeline.stop();
+    timeline.join();
+
+    System.out.format("throughput: %d events, scheduled in %.1f ms, all ran in %.1f ms (%.0f events/s)%n",
+                      events,
+                      scheduled / 1e6,
+                      elapsed / 1e6,
+                      events * 1e9 / elapsed);
+  }
+
+  private static void lateness(int threads) throws InterruptedException {
+
+    final Timeline timeline = new Timeline(threads);
+    final CountDownLatch done = new CountDownLatch(DELAYED);
+    final long[] late = new long[DELAYED];
+    final Random random = new Random(7);
+
+    for (int i = 0; i < DELAYED; i++) {
+
+      final int index = i;
+      final long at = System.currentTimeMillis() + (long) (random.nextDouble() * MAX_DELAY_MS);
+
+      timeline.scheduleAt(at, new Runnable() {
+        @Override
+        public void run() {
+          late[index] = System.currentTimeMillis() - at;
+          done.countDown();
+        }
+      });
+    }
+
+    done.await();
+
+    timeline.stop();
+    timeline.join();
+
+    Arrays.sort(late);
+
+    System.out.format("lateness: %d events, p50=%d ms p99=%d ms max=%d ms%n",
+                      DELAYED,
+                      late[DELAYED / 2],
+                      late[DELAYED * 99 / 100],
+                      late[DELAYED - 1]);
+  }
+}
@@ -0,0 +1,427 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public final class TimelineTest {
+
+  private Timeline timeline;
+
+  @After
+  public void doAfter() {
+    if (timeline != null) {
+      timeline.stop();
+      timeline.join();
+    }
+  }
+
+  @Test
+  public void testNowRunsInOrder() throws Exception {
+
+    timeline = new Timeline();
+
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch done = new CountDownLatch(100);
+
+    for (int i = 0; i < 100; i++) {
+      final int value = i;
+      timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          order.add(value);
+          done.countDown();
+        }
+      });
+    }
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, (int) order.get(i));
+    }
+  }
+
+  @Test
+  public void testInWaits() throws Exception {
+
+    timeline = new Timeline();
+
+    final long start = System.currentTimeMillis();
+    final long[] ran = new long[1];
+    final CountDownLatch done = new CountDownLatch(1);
+
+    timeline.scheduleIn(100, new Runnable() {
+      @Override
+      public void run() {
+        ran[0] = System.currentTimeMillis();
+        done.countDown();
+      }
+    });
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(ran[0] - start >= 100);
+  }
+
+  @Test
+  public void testNewEventWakesWheel() throws Exception {
+
+    timeline = new Timeline();
+
+    // Something far ahead in the wheel so the scheduler has a long wait.
+    timeline.scheduleIn(5000, new Runnable() {
+      @Override
+      public void run() { }
+    });
+
+    Thread.sleep(50);
+
+    final long start = System.currentTimeMillis();
+    final long[] ran = new long[1];
+    final CountDownLatch done = new CountDownLatch(1);
+
+    timeline.scheduleIn(20, new Runnable() {
+      @Override
+      public void run() {
+        ran[0] = System.currentTimeMillis();
+        done.countDown();
+      }
+    });
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(ran[0] - start >= 20);
+    assertTrue(ran[0] - start < 1000);
+  }
+
+  @Test
+  public void testAtRunsInTimeOrder() throws Exception {
+
+    timeline = new Timeline();
+
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch done = new CountDownLatch(3);
+    final long now = System.currentTimeMillis();
+
+    final int[] delays = { 300, 100, 200 };
+
+    for (final int delay : delays) {
+      timeline.scheduleAt(now + delay, new Runnable() {
+        @Override
+        public void run() {
+          order.add(delay);
+          done.countDown();
+        }
+      });
+    }
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(100, (int) order.get(0));
+    assertEquals(200, (int) order.get(1));
+    assertEquals(300, (int) order.get(2));
+  }
+
+  @Test
+  public void testMoreThanOneTurnAhead() throws Exception {
+
+    timeline = new Timeline();
+
+    final long start = System.currentTimeMillis();
+    final long[] ran = new long[1];
+    final CountDownLatch done = new CountDownLatch(1);
+
+    // Far enough ahead that the wheel goes all the way around first.
+    timeline.scheduleIn(1500, new Runnable() {
+      @Override
+      public void run() {
+        ran[0] = System.currentTimeMillis();
+        done.countDown();
+      }
+    });
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(ran[0] - start >= 1500);
+  }
+
+  @Test
+  public void testManyThreads() throws Exception {
+
+    timeline = new Timeline(4);
+
+    final AtomicInteger count = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(1000);
+
+    for (int i = 0; i < 1000; i++) {
+      timeline.scheduleIn(i % 20, new Runnable() {
+        @Override
+        public void run() {
+          count.incrementAndGet();
+          done.countDown();
+        }
+      });
+    }
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(1000, count.get());
+  }
+
+  @Test
+  public void testLanesShareByWeight() throws Exception {
+
+    timeline = new Timeline();
+
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    // Hold the only thread so that both lanes fill up before anything runs.
+    timeline.scheduleNow(new Runnable() {
+      @Override
+      public void run() {
+        blocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException ex) { }
+      }
+    });
+
+    assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+    final List<Timeline.Lane> order = Collections.synchronizedList(new ArrayList<Timeline.Lane>());
+    final CountDownLatch done = new CountDownLatch(40);
+
+    for (final Timeline.Lane lane : new Timeline.Lane[] { Timeline.Lane.RELAY, Timeline.Lane.INTERACTIVE }) {
+      for (int i = 0; i < 20; i++) {
+        timeline.scheduleNow(lane, new Runnable() {
+          @Override
+          public void run() {
+            order.add(lane);
+            done.countDown();
+          }
+        });
+      }
+    }
+
+    assertEquals(20, timeline.depth(Timeline.Lane.RELAY));
+    assertEquals(20, timeline.depth(Timeline.Lane.INTERACTIVE));
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    // Interactive work has four times the weight of relay work.
+    int interactive = 0;
+    for (int i = 0; i < 10; i++) {
+      if (order.get(i) == Timeline.Lane.INTERACTIVE) {
+        interactive++;
+      }
+    }
+    assertEquals(8, interactive);
+  }
+
+  @Test
+  public void testLaneThreadLimit() throws Exception {
+
+    timeline = new Timeline(4);
+
+    final CountDownLatch release = new CountDownLatch(1);
+
+    // Maintenance only gets one thread so the rest of these wait.
+    for (int i = 0; i < 3; i++) {
+      timeline.scheduleNow(Timeline.Lane.MAINTENANCE, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          } catch (InterruptedException ex) { }
+        }
+      });
+    }
+
+    final CountDownLatch done = new CountDownLatch(1);
+
+    timeline.scheduleNow(new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(2, timeline.depth(Timeline.Lane.MAINTENANCE));
+
+    release.countDown();
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+
+    timeline = new Timeline();
+
+    final AtomicInteger count = new AtomicInteger();
+
+    final Timeline.Task task = timeline.scheduleIn(100, new Runnable() {
+      @Override
+      public void run() {
+        count.incrementAndGet();
+      }
+    });
+
+    assertTrue(task.cancel());
+    assertFalse(task.cancel());
+    assertTrue(task.isDone());
+
+    Thread.sleep(300);
+    assertEquals(0, count.get());
+  }
+
+  @Test
+  public void testFixedRateRepeats() throws Exception {
+
+    timeline = new Timeline();
+
+    final CountDownLatch done = new CountDownLatch(5);
+
+    final Timeline.Task task = timeline.scheduleAtFixedRate(Timeline.Lane.RELAY, 0, 10, new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(task.cancel());
+  }
+
+  @Test
+  public void testFixedDelaySetsOwnPeriod() throws Exception {
+
+    timeline = new Timeline();
+
+    final List<Long> times = Collections.synchronizedList(new ArrayList<Long>());
+    final CountDownLatch done = new CountDownLatch(3);
+
+    // Starts with a long delay and shortens it from inside the task.
+    timeline.scheduleWithFixedDelay(Timeline.Lane.RELAY, 0, 60000, new Runnable() {
+      @Override
+      public void run() {
+        times.add(System.currentTimeMillis());
+        Timeline.Task.current().setPeriod(50);
+        done.countDown();
+        if (done.getCount() == 0) {
+          Timeline.Task.current().cancel();
+        }
+      }
+    });
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(times.get(1) - times.get(0) >= 50);
+    assertTrue(times.get(2) - times.get(1) >= 50);
+  }
+
+  @Test
+  public void testDrainRunsDueEvents() throws Exception {
+
+    timeline = new Timeline();
+
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger now = new AtomicInteger();
+    final AtomicInteger later = new AtomicInteger();
+
+    timeline.scheduleNow(new Runnable() {
+      @Override
+      public void run() {
+        blocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException ex) { }
+      }
+    });
+
+    assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+    for (int i = 0; i < 10; i++) {
+      timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          now.incrementAndGet();
+        }
+      });
+    }
+
+    final Timeline.Task future = timeline.scheduleIn(60000, new Runnable() {
+      @Override
+      public void run() {
+        later.incrementAndGet();
+      }
+    });
+
+    timeline.drain();
+    release.countDown();
+    timeline.join();
+
+    assertEquals(10, now.get());
+    assertEquals(0, later.get());
+    assertTrue(future.isDone());
+  }
+
+  @Test
+  public void testStats() throws Exception {
+
+    timeline = new Timeline();
+
+    final CountDownLatch done = new CountDownLatch(1);
+
+    timeline.scheduleNow(Timeline.Lane.RELAY, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException ex) { }
+        done.countDown();
+      }
+    });
+
+    timeline.scheduleIn(60000, new Runnable() {
+      @Override
+      public void run() { }
+    });
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    // The run is recorded after the callback returns.
+    timeline.scheduleNow(Timeline.Lane.RELAY, new Runnable() {
+      @Override
+      public void run() { }
+    });
+    while (timeline.runTime(Timeline.Lane.RELAY).count() < 2) {
+      Thread.sleep(1);
+    }
+
+    assertEquals(2, timeline.lag(Timeline.Lane.RELAY).count());
+    assertEquals(2, timeline.queueWait(Timeline.Lane.RELAY).count());
+    assertTrue(timeline.runTime(Timeline.Lane.RELAY).max() >= 20000);
+    assertEquals(0, timeline.runTime(Timeline.Lane.INTERACTIVE).count());
+    assertEquals(1, timeline.backlog());
+  }
+}
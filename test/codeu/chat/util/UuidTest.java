@@ -14,6 +14,8 @@
 
 package codeu.chat.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -149,4 +151,51 @@ public final class UuidTest {
 
     assertEquals(start, end);
   }
+
+  @Test
+  public void testInternSameInstance() {
+
+    final Uuid u1 = Uuid.intern(new Uuid(new Uuid(1), 2));
+    final Uuid u2 = Uuid.intern(new Uuid(new Uuid(1), 2));
+
+    assertSame(u1, u2);
+    assertSame(u1.root(), u2.root());
+  }
+
+  @Test
+  public void testSerializerSharesRoot() throws IOException {
+
+    final Uuid root = new Uuid(7);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Uuid.SERIALIZER.write(out, new Uuid(root, 8));
+    Uuid.SERIALIZER.write(out, new Uuid(root, 9));
+
+    final ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    final Uuid a = Uuid.SERIALIZER.read(in);
+    final Uuid b = Uuid.SERIALIZER.read(in);
+
+    assertEquals(new Uuid(root, 8), a);
+    assertEquals(new Uuid(root, 9), b);
+    assertSame(a.root(), b.root());
+  }
+
+  @Test
+  public void testParseSharesRoot() throws IOException {
+
+    final Uuid a = Uuid.parse("100.200");
+    final Uuid b = Uuid.parse("100.300");
+
+    assertSame(a.root(), b.root());
+  }
+
+  @Test
+  public void testHashMatchesEquals() {
+
+    final Uuid u1 = new Uuid(new Uuid(1), 2);
+    final Uuid u2 = Uuid.intern(new Uuid(new Uuid(1), 2));
+
+    assertEquals(u1, u2);
+    assertEquals(u1.hashCode(), u2.hashCode());
+  }
 }
@@ -0,0 +1,105 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+import codeu.chat.util.Uuid;
+
+public final class SequenceIndexTest {
+
+  private SequenceIndex index;
+
+  @Before
+  public void doBefore() {
+    index = new SequenceIndex();
+  }
+
+  @Test
+  public void testAppendAndAt() {
+
+    // Go past a single chunk to make sure lookups cross chunk boundaries.
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, index.append(new Uuid(i + 1), i));
+    }
+
+    assertEquals(1000, index.size());
+    assertEquals(new Uuid(1), index.at(0));
+    assertEquals(new Uuid(257), index.at(256));
+    assertEquals(new Uuid(1000), index.at(999));
+    assertNull(index.at(1000));
+    assertNull(index.at(-1));
+  }
+
+  @Test
+  public void testSeek() {
+
+    for (int i = 0; i < 10; i++) {
+      index.append(new Uuid(i + 1), i * 10);
+    }
+
+    assertEquals(0, index.seek(0));
+    assertEquals(3, index.seek(25));
+    assertEquals(3, index.seek(30));
+    assertEquals(10, index.seek(1000));
+  }
+
+  @Test
+  public void testSeekOutOfOrder() {
+
+    index.append(new Uuid(1), 10);
+    index.append(new Uuid(2), 30);
+    index.append(new Uuid(3), 20);  // arrived late
+    index.append(new Uuid(4), 40);
+
+    assertEquals(1, index.seek(20));
+    assertEquals(3, index.seek(35));
+  }
+
+  @Test
+  public void testRangeAndReverse() {
+
+    for (int i = 0; i < 5; i++) {
+      index.append(new Uuid(i + 1), i);
+    }
+
+    assertEquals(ids(2, 3, 4), list(index.range(1, 4)));
+    assertEquals(ids(5, 4), list(index.reverse(index.size() - 2, index.size())));
+    assertEquals(ids(1, 2, 3, 4, 5), list(index.range(-5, 50)));
+    assertTrue(list(index.range(3, 3)).isEmpty());
+  }
+
+  private static List<Uuid> ids(int... values) {
+    final List<Uuid> list = new ArrayList<>();
+    for (final int value : values) {
+      list.add(new Uuid(value));
+    }
+    return list;
+  }
+
+  private static List<Uuid> list(Iterable<Uuid> values) {
+    final List<Uuid> list = new ArrayList<>();
+    for (final Uuid value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+import codeu.chat.util.Time;
+
+public final class TimeIndexTest {
+
+  private TimeIndex<Integer> index;
+
+  @Before
+  public void doBefore() {
+    index = new TimeIndex<>();
+  }
+
+  @Test
+  public void testOrderInOrderInsert() {
+
+    for (int i = 0; i < 40; i++) {
+      index.insert(i, i * 10);
+    }
+
+    assertEquals(40, index.size());
+    assertEquals(Integer.valueOf(0), index.all().iterator().next());
+    assertEquals(Integer.valueOf(390), index.first(Time.fromMs(39)));
+  }
+
+  @Test
+  public void testOrderReverseOrderInsert() {
+
+    index.insert(4, 40);
+    index.insert(3, 30);
+    index.insert(2, 20);
+    index.insert(1, 10);
+    index.insert(0, 0);
+
+    assertEquals(list(0, 10, 20, 30, 40), list(index.all()));
+  }
+
+  @Test
+  public void testDuplicateKeysKeepInsertOrder() {
+
+    index.insert(1, 10);
+    index.insert(2, 20);
+    index.insert(1, 11);
+    index.insert(1, 12);
+
+    assertEquals(Integer.valueOf(10), index.first(Time.fromMs(1)));
+    assertEquals(list(10, 11, 12), list(index.at(Time.fromMs(1))));
+    assertEquals(list(10, 11, 12, 20), list(index.all()));
+  }
+
+  @Test
+  public void testRange() {
+
+    for (int i = 0; i < 10; i++) {
+      index.insert(i * 2, i);
+    }
+
+    assertEquals(list(2, 3, 4), list(index.range(Time.fromMs(3), Time.fromMs(8))));
+    assertEquals(list(7, 8, 9), list(index.after(Time.fromMs(13))));
+    assertEquals(list(0, 1), list(index.before(Time.fromMs(3))));
+    assertNull(index.first(Time.fromMs(3)));
+  }
+
+  @Test
+  public void testClear() {
+
+    index.insert(1, 10);
+    index.insert(2, 20);
+    index.insert(2, 21);
+    index.insert(3, 30);
+
+    index.clear(Time.fromMs(2));
+
+    assertNull(index.first(Time.fromMs(2)));
+    assertEquals(list(10, 30), list(index.all()));
+    assertEquals(2, index.size());
+  }
+
+  private static List<Integer> list(Integer... values) {
+    final List<Integer> list = new ArrayList<>();
+    for (final Integer value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+
+  private static List<Integer> list(Iterable<Integer> values) {
+    final List<Integer> list = new ArrayList<>();
+    for (final Integer value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+}